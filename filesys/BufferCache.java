@@ -0,0 +1,559 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A block buffer cache in front of another file system. Files opened through
+ * the cache are read and written in fixed-size blocks held in memory, so
+ * repeated small reads and writes do not each pay for a trip to the
+ * underlying file system.
+ *
+ * <p>
+ * The cache holds <tt>BufferCache.numBlocks</tt> blocks of
+ * <tt>BufferCache.blockSize</tt> bytes, keyed by file and block number, and
+ * evicts with the CLOCK algorithm. Writes only dirty the cached block. A
+ * flusher thread writes dirty blocks back every
+ * <tt>BufferCache.flushInterval</tt> ticks, and a file's dirty blocks are also
+ * written back when its last <tt>OpenFile</tt> is closed, so that readers who
+ * bypass the cache see the data. When a file is read sequentially, a
+ * readahead thread fetches the next <tt>BufferCache.readahead</tt> blocks in
+ * the background.
+ *
+ * <p>
+ * Since writes return before their data reaches the underlying file system,
+ * a block it fails to write (for example, because the disk is full) is
+ * reported by the next write to that file, which returns -1. The failed
+ * block's data is lost.
+ *
+ * <p>
+ * All opens of the same name share one cached file, until the name is
+ * removed. Its blocks stay cached after it is closed, and are used again if
+ * it is reopened.
+ */
+public class BufferCache implements FileSystem {
+    /**
+     * Allocate a new buffer cache in front of <i>fileSystem</i>, and start
+     * its flusher and readahead threads.
+     *
+     * @param	fileSystem	the file system to cache.
+     */
+    public BufferCache(FileSystem fileSystem) {
+	this.fileSystem = fileSystem;
+
+	blockSize = Config.getInteger("BufferCache.blockSize", 512);
+	int numBlocks = Config.getInteger("BufferCache.numBlocks", 64);
+	flushInterval = Config.getInteger("BufferCache.flushInterval", 10000);
+	readahead = Config.getInteger("BufferCache.readahead", 4);
+	Lib.assertTrue(blockSize > 0 && numBlocks > 0 && flushInterval > 0 &&
+		       readahead >= 0);
+
+	buffers = new Buffer[numBlocks];
+	for (int i=0; i<numBlocks; i++)
+	    buffers[i] = new Buffer();
+
+	new KThread(new Runnable() {
+		public void run() { flusher(); }
+	    }).setName("buffer cache flusher").fork();
+
+	if (readahead > 0) {
+	    new KThread(new Runnable() {
+		    public void run() { prefetcher(); }
+		}).setName("buffer cache readahead").fork();
+	}
+    }
+
+    public OpenFile open(String name, boolean create) {
+	lock.acquire();
+
+	CachedFile file = files.get(name);
+	if (file != null && file.openCount == 0) {
+	    file.underlying = fileSystem.open(name, create);
+	    if (file.underlying == null) {
+		// removed behind our back
+		file.removed = true;
+		invalidate(file);
+		files.remove(name);
+		file = null;
+	    }
+	}
+
+	if (file == null) {
+	    OpenFile underlying = fileSystem.open(name, create);
+	    if (underlying != null) {
+		file = new CachedFile(name, underlying);
+		files.put(name, file);
+	    }
+	}
+
+	if (file != null)
+	    file.openCount++;
+
+	lock.release();
+
+	if (file == null)
+	    return null;
+
+	return new File(file);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+
+	CachedFile file = files.remove(name);
+	if (file != null) {
+	    // the data is going away, so there's nothing to write back
+	    file.removed = true;
+	    invalidate(file);
+	}
+
+	lock.release();
+
+	return fileSystem.remove(name);
+    }
+
+    /**
+     * Write every dirty block back to the underlying file system.
+     */
+    public void flush() {
+	for (int i=0; i<buffers.length; i++) {
+	    lock.acquire();
+
+	    Buffer b = buffers[i];
+	    if (b.file != null && b.dirty && !b.busy) {
+		b.busy = true;
+		writeBack(b);
+		release(b);
+	    }
+
+	    lock.release();
+	}
+    }
+
+    /**
+     * Print the cache's hit and miss counts.
+     */
+    public void print() {
+	System.out.println("Buffer cache: hits " + numHits + ", misses " +
+			   numMisses + ", readaheads " + numReadaheads +
+			   ", writebacks " + numWritebacks);
+    }
+
+    private void close(CachedFile file) {
+	lock.acquire();
+
+	// flush before letting go, so a racing open can't see a closed file
+	if (file.openCount == 1 && !file.removed)
+	    flush(file);
+
+	if (--file.openCount == 0) {
+	    file.underlying.close();
+	    file.underlying = null;
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Read from a cached file. Called without the cache lock held.
+     */
+    private int read(CachedFile file, int pos, byte[] buf, int offset,
+		     int length) {
+	lock.acquire();
+
+	int amount = Math.max(Math.min(length, file.length - pos), 0);
+
+	for (int done=0; done<amount; ) {
+	    int block = (pos+done) / blockSize;
+	    int blockOffset = (pos+done) % blockSize;
+	    int n = Math.min(amount-done, blockSize-blockOffset);
+
+	    countAccess(file, block);
+	    Buffer b = getBuffer(file, block, true);
+	    System.arraycopy(b.data, blockOffset, buf, offset+done, n);
+	    release(b);
+
+	    noteAccess(file, block);
+
+	    done += n;
+	}
+
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Write to a cached file. Called without the cache lock held.
+     */
+    private int write(CachedFile file, int pos, byte[] buf, int offset,
+		      int length) {
+	lock.acquire();
+
+	if (file.writeFailed) {
+	    file.writeFailed = false;
+	    lock.release();
+	    return -1;
+	}
+
+	for (int done=0; done<length; ) {
+	    int block = (pos+done) / blockSize;
+	    int blockOffset = (pos+done) % blockSize;
+	    int n = Math.min(length-done, blockSize-blockOffset);
+
+	    // a block we're about to overwrite completely needn't be read
+	    boolean fill = (n < blockSize && block*blockSize < file.length);
+
+	    countAccess(file, block);
+	    Buffer b = getBuffer(file, block, fill);
+	    System.arraycopy(buf, offset+done, b.data, blockOffset, n);
+	    b.dirty = true;
+	    release(b);
+
+	    done += n;
+	    file.length = Math.max(file.length, pos+done);
+	}
+
+	lock.release();
+
+	return length;
+    }
+
+    /**
+     * Return the buffer holding <i>block</i> of <i>file</i>, marked busy so
+     * that it stays put until <tt>release()</tt>. On a miss, a buffer is
+     * evicted and, if <i>fill</i> is <tt>true</tt>, the block is read into
+     * it. Called with the cache lock held; the lock is released while
+     * waiting for I/O.
+     */
+    private Buffer getBuffer(CachedFile file, int block, boolean fill) {
+	while (true) {
+	    Buffer b = file.blocks.get(block);
+	    if (b != null) {
+		if (b.busy) {
+		    busyChanged.sleep();
+		    continue;
+		}
+
+		b.busy = true;
+		b.referenced = true;
+		return b;
+	    }
+
+	    Buffer victim = chooseVictim();
+	    if (victim == null) {
+		busyChanged.sleep();
+		continue;
+	    }
+
+	    victim.busy = true;
+
+	    // the world may change while we write, so look again afterwards
+	    if (victim.file != null && victim.dirty) {
+		writeBack(victim);
+		release(victim);
+		continue;
+	    }
+
+	    if (victim.file != null)
+		victim.file.blocks.remove(victim.block);
+
+	    victim.file = file;
+	    victim.block = block;
+	    victim.referenced = true;
+	    file.blocks.put(block, victim);
+
+	    if (fill) {
+		fill(victim);
+	    }
+	    else {
+		for (int i=0; i<blockSize; i++)
+		    victim.data[i] = 0;
+	    }
+
+	    return victim;
+	}
+    }
+
+    private void countAccess(CachedFile file, int block) {
+	if (file.blocks.get(block) != null)
+	    numHits++;
+	else
+	    numMisses++;
+    }
+
+    private void release(Buffer b) {
+	// the file was removed while this buffer was in use
+	if (b.file != null && b.file.removed) {
+	    b.dirty = false;
+	    b.file = null;
+	}
+
+	b.busy = false;
+	busyChanged.wakeAll();
+    }
+
+    /**
+     * Pick a buffer to reuse with the CLOCK algorithm, giving each
+     * referenced buffer a second chance. Returns <tt>null</tt> if every
+     * buffer is busy.
+     */
+    private Buffer chooseVictim() {
+	for (int i=0; i<2*buffers.length; i++) {
+	    Buffer b = buffers[hand];
+	    hand = (hand+1) % buffers.length;
+
+	    if (b.busy)
+		continue;
+
+	    if (b.file == null || !b.referenced)
+		return b;
+
+	    b.referenced = false;
+	}
+
+	return null;
+    }
+
+    /**
+     * Read a busy buffer's block from the underlying file, releasing the
+     * cache lock during the read.
+     */
+    private void fill(Buffer b) {
+	CachedFile file = b.file;
+	int pos = b.block * blockSize;
+
+	lock.release();
+
+	int amount = 0;
+	if (file.underlying != null)
+	    amount = Math.max(file.underlying.read(pos, b.data, 0, blockSize),
+			      0);
+
+	for (int i=amount; i<blockSize; i++)
+	    b.data[i] = 0;
+
+	lock.acquire();
+    }
+
+    /**
+     * Write a busy, dirty buffer's block back to the underlying file,
+     * releasing the cache lock during the write.
+     */
+    private void writeBack(Buffer b) {
+	CachedFile file = b.file;
+	int pos = b.block * blockSize;
+	int length = Math.min(blockSize, file.length - pos);
+
+	b.dirty = false;
+
+	// a removed file's data is gone, and its name may belong to a new file
+	if (file.removed)
+	    return;
+
+	numWritebacks++;
+
+	// the last close flushes, so only open files have dirty blocks
+	OpenFile underlying = file.underlying;
+	Lib.assertTrue(underlying != null);
+
+	lock.release();
+
+	boolean written = (length <= 0 ||
+			   underlying.write(pos, b.data, 0, length) == length);
+
+	lock.acquire();
+
+	if (!written)
+	    file.writeFailed = true;
+    }
+
+    private void flush(CachedFile file) {
+	while (true) {
+	    // the flusher or the prefetcher may be using the underlying file
+	    // with a busy buffer, so wait for those too
+	    Buffer pending = null;
+	    for (Iterator i=file.blocks.values().iterator(); i.hasNext(); ) {
+		Buffer b = (Buffer) i.next();
+		if (b.dirty || b.busy) {
+		    pending = b;
+		    break;
+		}
+	    }
+
+	    if (pending == null)
+		return;
+
+	    // the block map may change while we sleep or write, so look again
+	    if (pending.busy) {
+		busyChanged.sleep();
+		continue;
+	    }
+
+	    pending.busy = true;
+	    writeBack(pending);
+	    release(pending);
+	}
+    }
+
+    /**
+     * Drop every block of a removed file, dirty or not.
+     */
+    private void invalidate(CachedFile file) {
+	for (Iterator i=file.blocks.values().iterator(); i.hasNext(); ) {
+	    Buffer b = (Buffer) i.next();
+
+	    // a busy buffer is dropped when its user releases it
+	    b.dirty = false;
+	    if (!b.busy)
+		b.file = null;
+	}
+
+	file.blocks.clear();
+    }
+
+    /**
+     * Track sequential access, and queue readahead after two consecutive
+     * blocks have been read.
+     */
+    private void noteAccess(CachedFile file, int block) {
+	if (block == file.lastBlock + 1 && readahead > 0) {
+	    for (int i=1; i<=readahead; i++) {
+		int next = block + i;
+		if (next*blockSize >= file.length)
+		    break;
+
+		if (file.blocks.get(next) == null &&
+		    readaheadQueue.size() < buffers.length) {
+		    readaheadQueue.add(new Readahead(file, next));
+		    readaheadWaiting.wake();
+		}
+	    }
+	}
+
+	file.lastBlock = block;
+    }
+
+    private void prefetcher() {
+	lock.acquire();
+
+	while (true) {
+	    while (readaheadQueue.isEmpty())
+		readaheadWaiting.sleep();
+
+	    Readahead r = readaheadQueue.removeFirst();
+
+	    if (r.file.openCount > 0 && !r.file.removed &&
+		r.file.blocks.get(r.block) == null) {
+		Buffer b = getBuffer(r.file, r.block, true);
+		numReadaheads++;
+
+		// a prefetched block isn't hot until someone actually reads it
+		b.referenced = false;
+		release(b);
+	    }
+	}
+    }
+
+    private void flusher() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(flushInterval);
+	    flush();
+	}
+    }
+
+    private class Buffer {
+	CachedFile file = null;
+	int block;
+	byte[] data = new byte[blockSize];
+	boolean dirty = false, busy = false, referenced = false;
+    }
+
+    private class CachedFile {
+	CachedFile(String name, OpenFile underlying) {
+	    this.name = name;
+	    this.underlying = underlying;
+
+	    length = Math.max(underlying.length(), 0);
+	}
+
+	String name;
+	OpenFile underlying;
+	int length;
+	int openCount = 0;
+	boolean removed = false;
+	/** Set when a block could not be written back, until reported. */
+	boolean writeFailed = false;
+	int lastBlock = -2;
+	HashMap<Integer, Buffer> blocks = new HashMap<Integer, Buffer>();
+    }
+
+    private class Readahead {
+	Readahead(CachedFile file, int block) {
+	    this.file = file;
+	    this.block = block;
+	}
+
+	CachedFile file;
+	int block;
+    }
+
+    private class File extends OpenFileWithPosition {
+	File(CachedFile file) {
+	    super(BufferCache.this, file.name);
+
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || length < 0)
+		return -1;
+
+	    return BufferCache.this.read(file, pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || length < 0)
+		return -1;
+
+	    return BufferCache.this.write(file, pos, buf, offset, length);
+	}
+
+	public int length() {
+	    if (file == null)
+		return -1;
+
+	    return file.length;
+	}
+
+	public void close() {
+	    if (file != null) {
+		BufferCache.this.close(file);
+		file = null;
+	    }
+	}
+
+	private CachedFile file;
+    }
+
+    private FileSystem fileSystem;
+
+    private int blockSize, flushInterval, readahead;
+    private Buffer[] buffers;
+    private int hand = 0;
+
+    private HashMap<String, CachedFile> files =
+	new HashMap<String, CachedFile>();
+    private LinkedList<Readahead> readaheadQueue = new LinkedList<Readahead>();
+
+    private Lock lock = new Lock();
+    private Condition busyChanged = new Condition(lock);
+    private Condition readaheadWaiting = new Condition(lock);
+
+    private int numHits = 0, numMisses = 0, numReadaheads = 0;
+    private int numWritebacks = 0;
+}
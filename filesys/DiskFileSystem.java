@@ -0,0 +1,502 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+/**
+ * A file system stored on the machine's simulated disk. To use it, set
+ * <tt>Machine.disk = true</tt> and
+ * <tt>ThreadedKernel.fileSystem = nachos.filesys.DiskFileSystem</tt>.
+ *
+ * <p>
+ * The disk is laid out as follows. Sector 0 holds a header identifying a
+ * formatted disk. Sector 1 is the inode of the free map, a file with one bit
+ * per sector that is set if the sector is in use. Sector 2 is the inode of
+ * the directory, a file of fixed-size entries each holding the inode sector
+ * and the name of one file. Every other sector holds an inode, an indirect
+ * block, or file data.
+ *
+ * <p>
+ * The disk is mounted the first time the file system is used. If it is not
+ * formatted yet, or if <tt>DiskFileSystem.format</tt> is <tt>true</tt>, it is
+ * formatted, and then each file listed in <tt>DiskFileSystem.importFiles</tt>
+ * (a quoted, space-separated list) is copied onto it from the stub file
+ * system, so that a fresh disk can hold the shell and test programs.
+ *
+ * <p>
+ * The free map and directory are kept in memory and written through to disk
+ * whenever they change. A removed file keeps its inode and blocks until the
+ * last <tt>OpenFile</tt> referring to it is closed.
+ */
+public class DiskFileSystem implements FileSystem {
+    /**
+     * Allocate a new disk file system. The disk is not touched until the
+     * file system is first used, because there are no threads yet.
+     */
+    public DiskFileSystem() {
+	Lib.assertTrue(Machine.disk() != null,
+		       "DiskFileSystem requires Machine.disk = true");
+
+	disk = new SynchDisk(Machine.disk());
+	sectorSize = disk.getSectorSize();
+	numSectors = disk.getNumSectors();
+
+	Lib.assertTrue(sectorSize >= 64 &&
+		       sectorSize % directoryEntrySize == 0,
+		       "Disk.sectorSize unsuitable for DiskFileSystem");
+    }
+
+    public OpenFile open(String name, boolean create) {
+	if (!checkName(name))
+	    return null;
+
+	lock.acquire();
+	mount();
+
+	int sector = lookup(name);
+	if (sector == 0 && create)
+	    sector = createFile(name);
+
+	Inode inode = null;
+	if (sector != 0) {
+	    inode = openInodes.get(sector);
+	    if (inode == null) {
+		inode = new Inode(this, sector);
+		inode.load();
+		openInodes.put(sector, inode);
+	    }
+
+	    inode.openCount++;
+	}
+
+	lock.release();
+
+	if (inode == null)
+	    return null;
+
+	return new File(inode, name);
+    }
+
+    public boolean remove(String name) {
+	if (!checkName(name))
+	    return false;
+
+	lock.acquire();
+	mount();
+
+	int index = findEntry(name);
+	if (index >= 0) {
+	    int sector = entrySectors[index];
+	    setEntry(index, 0, null);
+
+	    Inode inode = openInodes.get(sector);
+	    if (inode != null) {
+		inode.removed = true;
+	    }
+	    else {
+		inode = new Inode(this, sector);
+		inode.load();
+		releaseInode(inode);
+	    }
+	}
+
+	lock.release();
+
+	return index >= 0;
+    }
+
+    /**
+     * Print statistics about this file system's disk requests.
+     */
+    public void print() {
+	disk.print();
+    }
+
+    /**
+     * Free a removed file's blocks and its inode.
+     */
+    private void releaseInode(Inode inode) {
+	inode.freeBlocks();
+	freeSector(inode.sector);
+    }
+
+    private void close(Inode inode) {
+	lock.acquire();
+
+	if (--inode.openCount == 0) {
+	    openInodes.remove(inode.sector);
+
+	    if (inode.removed)
+		releaseInode(inode);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Read the free map and directory from disk, formatting the disk first if
+     * necessary. Called with the file system lock held.
+     */
+    private void mount() {
+	if (mounted)
+	    return;
+
+	mounted = true;
+
+	byte[] header = new byte[sectorSize];
+	disk.readSector(headerSector, header);
+
+	boolean format = (Lib.bytesToInt(header, 0) != magic ||
+			  Lib.bytesToInt(header, 4) != numSectors ||
+			  Lib.bytesToInt(header, 8) != sectorSize ||
+			  Config.getBoolean("DiskFileSystem.format", false));
+
+	if (format) {
+	    format();
+	}
+	else {
+	    freeMapFile = new Inode(this, freeMapSector);
+	    freeMapFile.load();
+	    freeMap = new byte[freeMapFile.length];
+	    freeMapFile.read(0, freeMap, 0, freeMap.length);
+
+	    directoryFile = new Inode(this, directorySector);
+	    directoryFile.load();
+	    loadDirectory();
+	}
+
+	if (format)
+	    importFiles();
+    }
+
+    private void format() {
+	System.out.println("DiskFileSystem: formatting " + numSectors +
+			   " sectors");
+
+	freeMap = new byte[Lib.divRoundUp(numSectors, 8)];
+	markSector(headerSector, true);
+	markSector(freeMapSector, true);
+	markSector(directorySector, true);
+
+	// the free map's own blocks are allocated up front, so that updating
+	// the free map never needs to allocate; until they exist, allocation
+	// must not try to write the free map
+	formatting = true;
+	freeMapFile = new Inode(this, freeMapSector);
+	freeMapFile.clear();
+	byte[] zeros = new byte[freeMap.length];
+	freeMapFile.write(0, zeros, 0, zeros.length);
+	formatting = false;
+
+	directoryFile = new Inode(this, directorySector);
+	directoryFile.clear();
+	directoryFile.store();
+	entrySectors = new int[0];
+	entryNames = new String[0];
+
+	freeMapFile.write(0, freeMap, 0, freeMap.length);
+
+	byte[] header = new byte[sectorSize];
+	Lib.bytesFromInt(header, 0, magic);
+	Lib.bytesFromInt(header, 4, numSectors);
+	Lib.bytesFromInt(header, 8, sectorSize);
+	disk.writeSector(headerSector, header);
+    }
+
+    /**
+     * Copy the files named by <tt>DiskFileSystem.importFiles</tt> from the
+     * stub file system onto the disk. Called with the file system lock held.
+     */
+    private void importFiles() {
+	String names = Config.getString("DiskFileSystem.importFiles", null);
+	if (names == null || Machine.stubFileSystem() == null)
+	    return;
+
+	StringTokenizer st = new StringTokenizer(names);
+	while (st.hasMoreTokens()) {
+	    String name = st.nextToken();
+
+	    OpenFile source = Machine.stubFileSystem().open(name, false);
+	    if (source == null || !checkName(name) || lookup(name) != 0) {
+		System.out.println("DiskFileSystem: cannot import " + name);
+		continue;
+	    }
+
+	    byte[] data = Lib.loadFile(source);
+	    source.close();
+
+	    int sector = createFile(name);
+	    if (sector == 0) {
+		System.out.println("DiskFileSystem: no room for " + name);
+		continue;
+	    }
+
+	    Inode inode = new Inode(this, sector);
+	    inode.load();
+	    if (data == null ||
+		inode.write(0, data, 0, data.length) != data.length)
+		System.out.println("DiskFileSystem: no room for " + name);
+	}
+    }
+
+    /**
+     * Allocate an inode for a new, empty file and enter it in the directory.
+     * Returns the inode's sector, or 0 if there is no room. Called with the
+     * file system lock held.
+     */
+    private int createFile(String name) {
+	int sector = allocateSector();
+	if (sector == 0)
+	    return 0;
+
+	Inode inode = new Inode(this, sector);
+	inode.clear();
+	inode.store();
+
+	if (!addEntry(name, sector)) {
+	    freeSector(sector);
+	    return 0;
+	}
+
+	return sector;
+    }
+
+    /**
+     * Allocate a free sector. Returns the sector, or 0 if the disk is full.
+     */
+    int allocateSector() {
+	boolean held = lock.isHeldByCurrentThread();
+	if (!held)
+	    lock.acquire();
+
+	int sector = 0;
+	for (int i=0; i<freeMap.length; i++) {
+	    if (freeMap[i] == (byte) 0xFF)
+		continue;
+
+	    for (int bit=0; bit<8; bit++) {
+		int s = i*8 + bit;
+		if (s < numSectors && (freeMap[i] & (1<<bit)) == 0) {
+		    sector = s;
+		    break;
+		}
+	    }
+
+	    if (sector != 0)
+		break;
+	}
+
+	if (sector != 0) {
+	    markSector(sector, true);
+	    if (!formatting)
+		storeFreeMap(sector);
+	}
+
+	if (!held)
+	    lock.release();
+
+	return sector;
+    }
+
+    /**
+     * Return a sector to the free map.
+     */
+    void freeSector(int sector) {
+	boolean held = lock.isHeldByCurrentThread();
+	if (!held)
+	    lock.acquire();
+
+	Lib.assertTrue(sector > directorySector && sector < numSectors);
+
+	markSector(sector, false);
+	storeFreeMap(sector);
+
+	if (!held)
+	    lock.release();
+    }
+
+    private void markSector(int sector, boolean used) {
+	if (used)
+	    freeMap[sector/8] |= (byte) (1 << (sector%8));
+	else
+	    freeMap[sector/8] &= (byte) ~(1 << (sector%8));
+    }
+
+    /**
+     * Write the part of the free map holding <i>sector</i>'s bit to disk.
+     */
+    private void storeFreeMap(int sector) {
+	int start = (sector/8) / sectorSize * sectorSize;
+	int length = Math.min(sectorSize, freeMap.length - start);
+
+	freeMapFile.write(start, freeMap, start, length);
+    }
+
+    private void loadDirectory() {
+	int numEntries = directoryFile.length / directoryEntrySize;
+	byte[] buf = new byte[numEntries * directoryEntrySize];
+	directoryFile.read(0, buf, 0, buf.length);
+
+	entrySectors = new int[numEntries];
+	entryNames = new String[numEntries];
+
+	for (int i=0; i<numEntries; i++) {
+	    int offset = i * directoryEntrySize;
+
+	    entrySectors[i] = Lib.bytesToInt(buf, offset);
+	    if (entrySectors[i] != 0)
+		entryNames[i] = Lib.bytesToString(buf, offset+4,
+						  maxNameLength+1);
+	}
+    }
+
+    private int findEntry(String name) {
+	for (int i=0; i<entrySectors.length; i++) {
+	    if (entrySectors[i] != 0 && entryNames[i].equals(name))
+		return i;
+	}
+
+	return -1;
+    }
+
+    private int lookup(String name) {
+	int index = findEntry(name);
+
+	return (index < 0) ? 0 : entrySectors[index];
+    }
+
+    /**
+     * Enter a file in the directory, reusing a free entry if there is one and
+     * growing the directory otherwise.
+     */
+    private boolean addEntry(String name, int sector) {
+	int index = 0;
+	while (index < entrySectors.length && entrySectors[index] != 0)
+	    index++;
+
+	if (index == entrySectors.length) {
+	    int[] sectors = new int[index+1];
+	    String[] names = new String[index+1];
+	    System.arraycopy(entrySectors, 0, sectors, 0, index);
+	    System.arraycopy(entryNames, 0, names, 0, index);
+	    entrySectors = sectors;
+	    entryNames = names;
+	}
+
+	if (!setEntry(index, sector, name)) {
+	    entrySectors[index] = 0;
+	    entryNames[index] = null;
+	    return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Update a directory entry in memory and on disk. Returns
+     * <tt>false</tt> if the directory could not grow to hold it.
+     */
+    private boolean setEntry(int index, int sector, String name) {
+	entrySectors[index] = sector;
+	entryNames[index] = name;
+
+	byte[] buf = new byte[directoryEntrySize];
+	Lib.bytesFromInt(buf, 0, sector);
+	if (name != null) {
+	    byte[] nameBytes = name.getBytes();
+	    System.arraycopy(nameBytes, 0, buf, 4, nameBytes.length);
+	}
+
+	int pos = index * directoryEntrySize;
+	return directoryFile.write(pos, buf, 0, buf.length) == buf.length;
+    }
+
+    private static boolean checkName(String name) {
+	if (name.length() == 0 || name.length() > maxNameLength)
+	    return false;
+
+	for (int i=0; i<name.length(); i++) {
+	    char c = name.charAt(i);
+	    if (c <= ' ' || c >= 0x7F || c == '/')
+		return false;
+	}
+
+	return true;
+    }
+
+    private class File extends OpenFileWithPosition {
+	File(Inode inode, String name) {
+	    super(DiskFileSystem.this, name);
+
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null || pos < 0 || length < 0)
+		return -1;
+
+	    return inode.read(pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null || pos < 0 || length < 0)
+		return -1;
+
+	    int amount = inode.write(pos, buf, offset, length);
+	    if (amount == 0 && length > 0)
+		return -1;
+
+	    return amount;
+	}
+
+	public int length() {
+	    if (inode == null)
+		return -1;
+
+	    return inode.length;
+	}
+
+	public void close() {
+	    if (inode != null) {
+		DiskFileSystem.this.close(inode);
+		inode = null;
+	    }
+	}
+
+	private Inode inode;
+    }
+
+    /** The disk this file system is stored on. */
+    SynchDisk disk;
+
+    private int sectorSize, numSectors;
+
+    private Lock lock = new Lock();
+    private boolean mounted = false;
+    private boolean formatting = false;
+
+    private Inode freeMapFile;
+    private byte[] freeMap;
+
+    private Inode directoryFile;
+    private int[] entrySectors;
+    private String[] entryNames;
+
+    private HashMap<Integer, Inode> openInodes = new HashMap<Integer, Inode>();
+
+    private static final int headerSector = 0;
+    private static final int freeMapSector = 1;
+    private static final int directorySector = 2;
+
+    private static final int magic = 0x4E414653;
+
+    /**
+     * The size of a directory entry: the four byte inode sector, followed by
+     * the file name, padded with zeros.
+     */
+    private static final int directoryEntrySize = 32;
+    private static final int maxNameLength = directoryEntrySize - 4 - 1;
+}
@@ -0,0 +1,271 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A file's inode: its length and the sectors that hold its data. An inode
+ * occupies one sector on disk, formatted as follows:
+ *
+ * <table>
+ * <tr><td>offset</td><td>size</td><td>value</td></tr>
+ * <tr><td>0</td><td>4</td><td>length of the file in bytes</td></tr>
+ * <tr><td>4</td><td>4</td><td>indirect block sector, or 0</td></tr>
+ * <tr><td>8</td><td>4 each</td><td>direct block sectors, or 0</td></tr>
+ * </table>
+ *
+ * <p>
+ * The indirect block is a sector full of further block sectors. A block
+ * whose sector is 0 has never been written, and reads as zeros.
+ *
+ * <p>
+ * Only one <tt>Inode</tt> object exists for each open file, shared by all of
+ * its <tt>OpenFile</tt>s. Its lock serializes reads and writes of the file.
+ */
+class Inode {
+    /**
+     * Allocate an in-memory inode for the inode stored in <i>sector</i>. The
+     * caller must call <tt>load()</tt> or <tt>clear()</tt> before using it.
+     */
+    Inode(DiskFileSystem fileSystem, int sector) {
+	this.fileSystem = fileSystem;
+	this.disk = fileSystem.disk;
+	this.sector = sector;
+
+	sectorSize = disk.getSectorSize();
+	direct = new int[sectorSize/4 - 2];
+    }
+
+    /**
+     * Read this inode from disk.
+     */
+    void load() {
+	byte[] buf = new byte[sectorSize];
+	disk.readSector(sector, buf);
+
+	length = Lib.bytesToInt(buf, 0);
+	indirect = Lib.bytesToInt(buf, 4);
+	for (int i=0; i<direct.length; i++)
+	    direct[i] = Lib.bytesToInt(buf, 8 + i*4);
+
+	indirectTable = null;
+    }
+
+    /**
+     * Make this an empty file, without touching the disk.
+     */
+    void clear() {
+	length = 0;
+	indirect = 0;
+	indirectTable = null;
+	for (int i=0; i<direct.length; i++)
+	    direct[i] = 0;
+    }
+
+    /**
+     * Write this inode to disk.
+     */
+    void store() {
+	byte[] buf = new byte[sectorSize];
+
+	Lib.bytesFromInt(buf, 0, length);
+	Lib.bytesFromInt(buf, 4, indirect);
+	for (int i=0; i<direct.length; i++)
+	    Lib.bytesFromInt(buf, 8 + i*4, direct[i]);
+
+	disk.writeSector(sector, buf);
+    }
+
+    /**
+     * Return the largest number of bytes a file can hold.
+     */
+    int maxLength() {
+	return (direct.length + sectorSize/4) * sectorSize;
+    }
+
+    /**
+     * Return the sector holding <i>block</i> of this file, or 0 if the block
+     * has never been written.
+     */
+    int getSector(int block) {
+	if (block < direct.length)
+	    return direct[block];
+
+	if (indirect == 0)
+	    return 0;
+
+	return getIndirectTable()[block - direct.length];
+    }
+
+    /**
+     * Allocate a sector for <i>block</i> of this file. Returns the sector, or
+     * 0 if the disk is full.
+     */
+    private int allocateBlock(int block) {
+	if (block >= direct.length && indirect == 0) {
+	    indirect = fileSystem.allocateSector();
+	    if (indirect == 0)
+		return 0;
+
+	    indirectTable = new int[sectorSize/4];
+	    storeIndirectTable();
+	}
+
+	int s = fileSystem.allocateSector();
+	if (s == 0)
+	    return 0;
+
+	if (block < direct.length) {
+	    direct[block] = s;
+	}
+	else {
+	    getIndirectTable()[block - direct.length] = s;
+	    storeIndirectTable();
+	}
+
+	return s;
+    }
+
+    private int[] getIndirectTable() {
+	if (indirectTable == null) {
+	    byte[] buf = new byte[sectorSize];
+	    disk.readSector(indirect, buf);
+
+	    indirectTable = new int[sectorSize/4];
+	    for (int i=0; i<indirectTable.length; i++)
+		indirectTable[i] = Lib.bytesToInt(buf, i*4);
+	}
+
+	return indirectTable;
+    }
+
+    private void storeIndirectTable() {
+	byte[] buf = new byte[sectorSize];
+	for (int i=0; i<indirectTable.length; i++)
+	    Lib.bytesFromInt(buf, i*4, indirectTable[i]);
+
+	disk.writeSector(indirect, buf);
+    }
+
+    /**
+     * Read from this file, starting at <i>pos</i>. Returns the number of
+     * bytes read, which is less than <i>length</i> only at the end of the
+     * file.
+     */
+    int read(int pos, byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	int amount = Math.max(Math.min(length, this.length - pos), 0);
+	byte[] sectorBuf = new byte[sectorSize];
+
+	for (int done=0; done<amount; ) {
+	    int block = (pos+done) / sectorSize;
+	    int blockOffset = (pos+done) % sectorSize;
+	    int n = Math.min(amount-done, sectorSize-blockOffset);
+
+	    int s = getSector(block);
+	    if (s == 0) {
+		for (int i=0; i<n; i++)
+		    buf[offset+done+i] = 0;
+	    }
+	    else {
+		disk.readSector(s, sectorBuf);
+		System.arraycopy(sectorBuf, blockOffset, buf, offset+done, n);
+	    }
+
+	    done += n;
+	}
+
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Write to this file, starting at <i>pos</i>, and extend the file if the
+     * write goes past its end. Returns the number of bytes written, which is
+     * less than <i>length</i> only if the disk or the file is full.
+     */
+    int write(int pos, byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	int amount = Math.max(Math.min(length, maxLength() - pos), 0);
+	byte[] sectorBuf = new byte[sectorSize];
+
+	int done = 0;
+	boolean changed = false;
+	while (done < amount) {
+	    int block = (pos+done) / sectorSize;
+	    int blockOffset = (pos+done) % sectorSize;
+	    int n = Math.min(amount-done, sectorSize-blockOffset);
+
+	    int s = getSector(block);
+	    if (s == 0) {
+		s = allocateBlock(block);
+		if (s == 0)
+		    break;
+		changed = true;
+
+		// a new block starts out as zeros
+		for (int i=0; i<sectorSize; i++)
+		    sectorBuf[i] = 0;
+	    }
+	    else if (n < sectorSize) {
+		disk.readSector(s, sectorBuf);
+	    }
+
+	    System.arraycopy(buf, offset+done, sectorBuf, blockOffset, n);
+	    disk.writeSector(s, sectorBuf);
+
+	    done += n;
+	}
+
+	if (pos+done > this.length) {
+	    this.length = pos+done;
+	    changed = true;
+	}
+
+	if (changed)
+	    store();
+
+	lock.release();
+
+	return done;
+    }
+
+    /**
+     * Return the sectors of every data block (and the indirect block) to the
+     * free map. The inode itself is not freed.
+     */
+    void freeBlocks() {
+	for (int block=0; block<direct.length + sectorSize/4; block++) {
+	    int s = getSector(block);
+	    if (s != 0)
+		fileSystem.freeSector(s);
+	}
+
+	if (indirect != 0)
+	    fileSystem.freeSector(indirect);
+
+	clear();
+    }
+
+    /** The sector this inode is stored in. */
+    final int sector;
+    /** The length of the file in bytes. */
+    int length;
+    /** The number of <tt>OpenFile</tt>s referring to this inode. */
+    int openCount = 0;
+    /** <tt>true</tt> if the file has been removed from the directory. */
+    boolean removed = false;
+
+    private DiskFileSystem fileSystem;
+    private SynchDisk disk;
+    private int sectorSize;
+
+    private int[] direct;
+    private int indirect;
+    private int[] indirectTable = null;
+
+    private Lock lock = new Lock();
+}
@@ -0,0 +1,454 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Provides a synchronous interface to the machine's disk. A thread that reads
+ * or writes sectors sleeps until its request has finished.
+ *
+ * <p>
+ * Requests from different threads are queued, and the next one to start is
+ * chosen by <tt>SynchDisk.scheduler</tt>:
+ *
+ * <ul>
+ * <li><tt>fcfs</tt>: in arrival order.
+ * <li><tt>scan</tt>: the elevator algorithm. The head sweeps towards higher
+ * sectors serving every request on its way, then back down.
+ * <li><tt>clook</tt> (the default): like <tt>scan</tt>, but only sweeps
+ * upwards, jumping back to the lowest pending request at the end of each
+ * sweep, so that every sector waits about equally long.
+ * </ul>
+ *
+ * <p>
+ * When a request starts, queued requests in the same direction for the
+ * sectors just before or after it are merged into one transfer, up to
+ * <tt>SynchDisk.maxMerge</tt> sectors. If <tt>SynchDisk.deadline</tt> is
+ * positive, a request that has waited that many ticks is started next
+ * regardless of where the head is, so that no request starves.
+ *
+ * <p>
+ * A thread reading a file sequentially only has one request queued at a
+ * time, so by the time it asks for the next sector the head has usually been
+ * sent elsewhere. If <tt>SynchDisk.anticipate</tt> is positive, the disk
+ * stays idle for up to that many ticks after a request finishes, waiting for
+ * the same thread's next request, before starting anyone else's.
+ */
+public class SynchDisk {
+    /**
+     * Allocate a new <tt>SynchDisk</tt>.
+     *
+     * @param	disk	the underlying disk to use.
+     */
+    public SynchDisk(Disk disk) {
+	this.disk = disk;
+
+	String policy = Config.getString("SynchDisk.scheduler", "clook");
+	if (policy.equals("fcfs"))
+	    scheduler = fcfs;
+	else if (policy.equals("scan"))
+	    scheduler = scan;
+	else if (policy.equals("clook"))
+	    scheduler = clook;
+	else
+	    Lib.assertNotReached("unknown SynchDisk.scheduler: " + policy);
+
+	maxMerge = Config.getInteger("SynchDisk.maxMerge",
+				     disk.getSectorsPerTrack());
+	deadline = Config.getInteger("SynchDisk.deadline", 250000);
+	anticipate = Config.getInteger("SynchDisk.anticipate", 1000);
+	Lib.assertTrue(maxMerge > 0 && deadline >= 0 && anticipate >= 0);
+
+	disk.setInterruptHandler(new Runnable() {
+		public void run() { requestDone(); }
+	    });
+    }
+
+    /**
+     * Read consecutive sectors, waiting until they have been read.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors to read.
+     * @param	buf	the buffer to store the sectors in.
+     * @param	offset	the offset in the buffer of the first byte to store.
+     */
+    public void readSectors(int sector, int count, byte[] buf, int offset) {
+	request(false, sector, count, buf, offset);
+    }
+
+    /**
+     * Write consecutive sectors, waiting until they have been written.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors to write.
+     * @param	buf	the buffer holding the data to write.
+     * @param	offset	the offset in the buffer of the first byte to write.
+     */
+    public void writeSectors(int sector, int count, byte[] buf, int offset) {
+	request(true, sector, count, buf, offset);
+    }
+
+    /**
+     * Read one sector into the start of <i>buf</i>.
+     *
+     * @param	sector	the sector to read.
+     * @param	buf	the buffer to store the sector in.
+     */
+    public void readSector(int sector, byte[] buf) {
+	readSectors(sector, 1, buf, 0);
+    }
+
+    /**
+     * Write one sector from the start of <i>buf</i>.
+     *
+     * @param	sector	the sector to write.
+     * @param	buf	the buffer holding the data to write.
+     */
+    public void writeSector(int sector, byte[] buf) {
+	writeSectors(sector, 1, buf, 0);
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return disk.getNumSectors();
+    }
+
+    /**
+     * Return the size of a sector in bytes.
+     *
+     * @return	the sector size.
+     */
+    public int getSectorSize() {
+	return disk.getSectorSize();
+    }
+
+    /**
+     * Print the number of requests and transfers, how many requests were
+     * merged, and how long requests took from arrival to completion.
+     */
+    public void print() {
+	System.out.println("Disk scheduler: requests " + numRequests +
+			   ", transfers " + numTransfers +
+			   ", merged " + numMerged +
+			   ", expired " + numExpired +
+			   ", anticipated " + numAnticipated + "/" +
+			   numAnticipations);
+
+	if (numRequests > 0) {
+	    System.out.println("Disk latency: mean " +
+			       totalLatency/numRequests + " ticks, max " +
+			       maxLatency + ", queued mean " +
+			       totalQueued/numRequests + ", seek " +
+			       seekTracks*Stats.SeekTime + " ticks over " +
+			       seekTracks + " tracks");
+	}
+    }
+
+    private void request(boolean write, int sector, int count, byte[] buf,
+			 int offset) {
+	Request r = new Request(write, sector, count, buf, offset);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	r.arrival = Machine.timer().getTime();
+	pending.add(r);
+
+	if (anticipating == r.thread) {
+	    anticipating = null;
+	    numAnticipated++;
+	    startNext(r);
+	}
+	else if (current == null && anticipating == null) {
+	    startNext(null);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	r.done.P();
+    }
+
+    /**
+     * Pick the next request, merge its neighbours into it, and start the
+     * transfer. If <i>first</i> is not <tt>null</tt>, it goes next unless
+     * another request has passed its deadline. Called with interrupts
+     * disabled when the disk is idle.
+     */
+    private void startNext(Request first) {
+	Lib.assertTrue(Machine.interrupt().disabled() && current == null);
+
+	if (pending.isEmpty())
+	    return;
+
+	long time = Machine.timer().getTime();
+
+	if (deadline > 0) {
+	    Request oldest = pending.getFirst();
+	    if (time - oldest.arrival >= deadline) {
+		first = oldest;
+		numExpired++;
+	    }
+	}
+
+	if (first == null)
+	    first = scheduler.choose();
+
+	pending.remove(first);
+
+	current = new LinkedList<Request>();
+	current.add(first);
+	int start = first.sector, end = first.sector + first.count;
+
+	for (boolean merged=true; merged; ) {
+	    merged = false;
+
+	    for (Iterator i=pending.iterator(); i.hasNext(); ) {
+		Request r = (Request) i.next();
+		if (r.write != first.write ||
+		    end - start + r.count > maxMerge)
+		    continue;
+
+		if (r.sector == end) {
+		    current.addLast(r);
+		    end += r.count;
+		}
+		else if (r.sector + r.count == start) {
+		    current.addFirst(r);
+		    start = r.sector;
+		}
+		else {
+		    continue;
+		}
+
+		i.remove();
+		numMerged++;
+		merged = true;
+	    }
+	}
+
+	int startTrack = start / disk.getSectorsPerTrack();
+	seekTracks += Math.abs(startTrack - disk.getHeadTrack());
+	lastSector = end - 1;
+
+	for (Iterator i=current.iterator(); i.hasNext(); )
+	    ((Request) i.next()).started = time;
+
+	numTransfers++;
+
+	if (current.size() == 1) {
+	    transferBuf = first.buf;
+	    transferOffset = first.offset;
+	}
+	else {
+	    // gather the merged requests into one buffer
+	    int sectorSize = disk.getSectorSize();
+	    transferBuf = new byte[(end-start) * sectorSize];
+	    transferOffset = 0;
+
+	    if (first.write) {
+		for (Iterator i=current.iterator(); i.hasNext(); ) {
+		    Request r = (Request) i.next();
+		    System.arraycopy(r.buf, r.offset, transferBuf,
+				     (r.sector-start) * sectorSize,
+				     r.count * sectorSize);
+		}
+	    }
+	}
+
+	transferStart = start;
+
+	if (first.write)
+	    disk.writeSectors(start, end-start, transferBuf, transferOffset);
+	else
+	    disk.readSectors(start, end-start, transferBuf, transferOffset);
+    }
+
+    /**
+     * Called by the disk interrupt handler when a transfer finishes.
+     */
+    private void requestDone() {
+	long time = Machine.timer().getTime();
+	int sectorSize = disk.getSectorSize();
+
+	for (Iterator i=current.iterator(); i.hasNext(); ) {
+	    Request r = (Request) i.next();
+
+	    // scatter a merged read back to its requests
+	    if (!r.write && transferBuf != r.buf) {
+		System.arraycopy(transferBuf, (r.sector-transferStart) *
+				 sectorSize, r.buf, r.offset,
+				 r.count * sectorSize);
+	    }
+
+	    long latency = time - r.arrival;
+	    numRequests++;
+	    totalLatency += latency;
+	    totalQueued += r.started - r.arrival;
+	    maxLatency = Math.max(maxLatency, latency);
+
+	    r.done.V();
+	}
+
+	KThread thread = current.getFirst().thread;
+
+	current = null;
+	transferBuf = null;
+
+	// with nobody else waiting, the next request starts right away anyway
+	if (anticipate > 0 && !pending.isEmpty()) {
+	    anticipating = thread;
+	    anticipation++;
+	    numAnticipations++;
+
+	    if (anticipator == null) {
+		anticipator = new KThread(new Runnable() {
+			public void run() { anticipator(); }
+		    }).setName("disk anticipation");
+		anticipator.fork();
+	    }
+
+	    anticipationStarted.V();
+	}
+	else {
+	    startNext(null);
+	}
+    }
+
+    /**
+     * Give up waiting for a thread's next request once
+     * <tt>SynchDisk.anticipate</tt> ticks have passed.
+     */
+    private void anticipator() {
+	while (true) {
+	    anticipationStarted.P();
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    int started = anticipation;
+	    Machine.interrupt().restore(intStatus);
+
+	    ThreadedKernel.alarm.waitUntil(anticipate);
+
+	    intStatus = Machine.interrupt().disable();
+
+	    if (anticipating != null && anticipation == started) {
+		anticipating = null;
+		startNext(null);
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	}
+    }
+
+    private interface Scheduler {
+	/** Choose the next request to start from the nonempty queue. */
+	Request choose();
+    }
+
+    private Scheduler fcfs = new Scheduler() {
+	    public Request choose() {
+		return pending.getFirst();
+	    }
+	};
+
+    private Scheduler scan = new Scheduler() {
+	    public Request choose() {
+		Request next = nearest(ascending);
+		if (next == null) {
+		    ascending = !ascending;
+		    next = nearest(ascending);
+		}
+
+		return next;
+	    }
+	};
+
+    private Scheduler clook = new Scheduler() {
+	    public Request choose() {
+		Request next = nearest(true);
+		if (next != null)
+		    return next;
+
+		// wrap around to the lowest request
+		Request lowest = null;
+		for (Iterator i=pending.iterator(); i.hasNext(); ) {
+		    Request r = (Request) i.next();
+		    if (lowest == null || r.sector < lowest.sector)
+			lowest = r;
+		}
+
+		return lowest;
+	    }
+	};
+
+    /**
+     * Return the pending request closest to the last sector transferred, in
+     * the given direction, or <tt>null</tt> if there is none. Ties go to the
+     * request that arrived first.
+     */
+    private Request nearest(boolean up) {
+	Request best = null;
+	for (Iterator i=pending.iterator(); i.hasNext(); ) {
+	    Request r = (Request) i.next();
+
+	    if (up ? r.sector < lastSector : r.sector > lastSector)
+		continue;
+
+	    if (best == null ||
+		(up ? r.sector < best.sector : r.sector > best.sector))
+		best = r;
+	}
+
+	return best;
+    }
+
+    private class Request {
+	Request(boolean write, int sector, int count, byte[] buf,
+		int offset) {
+	    Lib.assertTrue(count > 0 && sector >= 0 &&
+			   sector + count <= disk.getNumSectors());
+
+	    this.write = write;
+	    this.sector = sector;
+	    this.count = count;
+	    this.buf = buf;
+	    this.offset = offset;
+	}
+
+	boolean write;
+	int sector, count, offset;
+	byte[] buf;
+	long arrival, started;
+	KThread thread = KThread.currentThread();
+	Semaphore done = new Semaphore(0);
+    }
+
+    private Disk disk;
+
+    private Scheduler scheduler;
+    private int maxMerge, deadline, anticipate;
+
+    private LinkedList<Request> pending = new LinkedList<Request>();
+    private LinkedList<Request> current = null;
+    private byte[] transferBuf;
+    private int transferOffset, transferStart;
+
+    private int lastSector = -1;
+    private boolean ascending = true;
+
+    private KThread anticipating = null;
+    private int anticipation = 0;
+    private KThread anticipator = null;
+    private Semaphore anticipationStarted = new Semaphore(0);
+
+    private int numRequests = 0, numTransfers = 0, numMerged = 0;
+    private int numExpired = 0;
+    private int numAnticipations = 0, numAnticipated = 0;
+    private long totalLatency = 0, totalQueued = 0, maxLatency = 0;
+    private long seekTracks = 0;
+}
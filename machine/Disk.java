@@ -0,0 +1,246 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A simulated disk, stored in a memory-mapped host file. The disk has
+ * <tt>Disk.numTracks</tt> tracks of <tt>Disk.sectorsPerTrack</tt> sectors,
+ * each <tt>Disk.sectorSize</tt> bytes long. The image file is named by
+ * <tt>Disk.imageFile</tt>, and is created (filled with zeros) if it does not
+ * exist.
+ *
+ * <p>
+ * Like the other devices, the disk is asynchronous. A request to read or
+ * write a run of consecutive sectors returns immediately, and the disk
+ * interrupt handler is called once the whole run has been transferred. Only
+ * one request may be outstanding at a time.
+ *
+ * <p>
+ * The time a request takes is modelled on a real disk. The head first seeks
+ * to the track of the first sector, taking <tt>Stats.SeekTime</tt> ticks per
+ * track crossed. It then waits for the sector to rotate under it; the
+ * platter turns one sector every <tt>Stats.RotationTime</tt> ticks, and its
+ * position is derived from the current time. Finally, each sector takes
+ * <tt>Stats.RotationTime</tt> ticks to pass under the head, plus a seek to the
+ * next track whenever the run crosses a track boundary.
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public Disk(Privilege privilege) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	numTracks = Config.getInteger("Disk.numTracks", 64);
+	sectorsPerTrack = Config.getInteger("Disk.sectorsPerTrack", 32);
+	sectorSize = Config.getInteger("Disk.sectorSize", 512);
+	Lib.assertTrue(numTracks > 0 && sectorsPerTrack > 0 && sectorSize > 0);
+
+	numSectors = numTracks * sectorsPerTrack;
+
+	final String imageName = Config.getString("Disk.imageFile",
+						  "nachos.disk");
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { openImage(imageName); }
+	    });
+
+	interrupt = new Runnable() {
+		public void run() { interrupt(); }
+	    };
+
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { image.force(); }
+	    });
+    }
+
+    private void openImage(String imageName) {
+	try {
+	    RandomAccessFile file = new RandomAccessFile(imageName, "rw");
+
+	    long size = (long) numSectors * sectorSize;
+	    if (file.length() < size)
+		file.setLength(size);
+
+	    image = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					  size);
+
+	    // the mapping stays valid after the file is closed
+	    file.close();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot open disk image: " + e);
+	}
+    }
+
+    /**
+     * Set this disk's interrupt handler. The handler is called when a read
+     * or write request has finished.
+     *
+     * @param	handler	the disk interrupt handler.
+     */
+    public void setInterruptHandler(Runnable handler) {
+	this.handler = handler;
+    }
+
+    /**
+     * Start reading <i>count</i> consecutive sectors, beginning with
+     * <i>sector</i>, into <i>buf</i>. The buffer must not be used until the
+     * disk interrupt handler is called.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors to read.
+     * @param	buf	the buffer to store the sectors in.
+     * @param	offset	the offset in the buffer of the first byte to store.
+     */
+    public void readSectors(int sector, int count, byte[] buf, int offset) {
+	startRequest(false, sector, count, buf, offset);
+    }
+
+    /**
+     * Start writing <i>count</i> consecutive sectors, beginning with
+     * <i>sector</i>, from <i>buf</i>. The buffer must not be changed until
+     * the disk interrupt handler is called.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors to write.
+     * @param	buf	the buffer holding the data to write.
+     * @param	offset	the offset in the buffer of the first byte to write.
+     */
+    public void writeSectors(int sector, int count, byte[] buf, int offset) {
+	startRequest(true, sector, count, buf, offset);
+    }
+
+    private void startRequest(boolean write, int sector, int count,
+			      byte[] buf, int offset) {
+	Lib.assertTrue(!busy, "disk request already outstanding");
+	Lib.assertTrue(count > 0 && sector >= 0 &&
+		       sector + count <= numSectors);
+	Lib.assertTrue(offset >= 0 && offset + count*sectorSize <= buf.length);
+
+	busy = true;
+	requestWrite = write;
+	requestSector = sector;
+	requestCount = count;
+	requestBuf = buf;
+	requestOffset = offset;
+
+	long time = privilege.stats.totalTicks;
+	long delay = seekTime(headTrack, sector / sectorsPerTrack);
+
+	// wait for the first sector to come around
+	long rotation = (time + delay) / Stats.RotationTime;
+	int underHead = (int) (rotation % sectorsPerTrack);
+	int wanted = sector % sectorsPerTrack;
+	delay += ((wanted - underHead + sectorsPerTrack) % sectorsPerTrack) *
+	    Stats.RotationTime;
+
+	// transfer, seeking again at each track boundary
+	delay += (long) count * Stats.RotationTime;
+	delay += seekTime(sector / sectorsPerTrack,
+			  (sector + count - 1) / sectorsPerTrack);
+
+	headTrack = (sector + count - 1) / sectorsPerTrack;
+
+	privilege.interrupt.schedule(Math.max(delay, 1),
+				     write ? "disk write" : "disk read",
+				     interrupt);
+    }
+
+    private static long seekTime(int fromTrack, int toTrack) {
+	return (long) Math.abs(toTrack - fromTrack) * Stats.SeekTime;
+    }
+
+    private void interrupt() {
+	Lib.assertTrue(busy);
+
+	image.position(requestSector * sectorSize);
+
+	if (requestWrite) {
+	    image.put(requestBuf, requestOffset, requestCount * sectorSize);
+	    privilege.stats.numDiskWrites += requestCount;
+	}
+	else {
+	    image.get(requestBuf, requestOffset, requestCount * sectorSize);
+	    privilege.stats.numDiskReads += requestCount;
+	}
+
+	busy = false;
+	requestBuf = null;
+
+	if (handler != null)
+	    handler.run();
+    }
+
+    /**
+     * Return the number of sectors on this disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return numSectors;
+    }
+
+    /**
+     * Return the size of a sector in bytes.
+     *
+     * @return	the sector size.
+     */
+    public int getSectorSize() {
+	return sectorSize;
+    }
+
+    /**
+     * Return the number of sectors on each track.
+     *
+     * @return	the number of sectors per track.
+     */
+    public int getSectorsPerTrack() {
+	return sectorsPerTrack;
+    }
+
+    /**
+     * Return the number of tracks on this disk.
+     *
+     * @return	the number of tracks.
+     */
+    public int getNumTracks() {
+	return numTracks;
+    }
+
+    /**
+     * Return the track the head is over, or will be over when the
+     * outstanding request finishes.
+     *
+     * @return	the current track.
+     */
+    public int getHeadTrack() {
+	return headTrack;
+    }
+
+    private Privilege privilege;
+    private Runnable interrupt;
+    private Runnable handler = null;
+
+    private int numTracks, sectorsPerTrack, sectorSize, numSectors;
+    private MappedByteBuffer image;
+
+    private int headTrack = 0;
+
+    private boolean busy = false;
+    private boolean requestWrite;
+    private int requestSector, requestCount, requestOffset;
+    private byte[] requestBuf;
+}
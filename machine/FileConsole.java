@@ -0,0 +1,269 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A console that reads its input from one host file and writes its output to
+ * another, through memory-mapped buffers. Useful for replaying long scripted
+ * sessions and capturing large outputs.
+ *
+ * <p>
+ * <tt>nachos.conf</tt> selects this console with
+ * <tt>Machine.fileConsole = true</tt>. <tt>FileConsole.inputFile</tt> names
+ * the input; without one, no input ever arrives.
+ * <tt>FileConsole.outputFile</tt> names the output, which is created or
+ * truncated; without one, output goes to System.out. Bytes are passed through
+ * unchanged.
+ *
+ * <p>
+ * The console models a serial line running at <tt>FileConsole.baudRate</tt>
+ * bits per second, taking one tick to be a microsecond and each byte to be 10
+ * bits on the wire. Data moves in blocks of up to
+ * <tt>FileConsole.blockSize</tt> bytes, with one interrupt per block. The
+ * next block of input is only sent once the reader has taken the last one
+ * and asks for more, so a reader with no room holds up the line instead of
+ * losing input.
+ */
+public class FileConsole implements SerialConsole {
+    /**
+     * Allocate a new file console.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public FileConsole(Privilege privilege) {
+	System.out.print(" file-console");
+
+	this.privilege = privilege;
+
+	int baudRate = Config.getInteger("FileConsole.baudRate", 115200);
+	int blockSize = Config.getInteger("FileConsole.blockSize", 64);
+	Lib.assertTrue(baudRate > 0 && blockSize > 0);
+
+	ticksPerByte = Math.max(10000000L / baudRate, 1);
+
+	incoming = new byte[blockSize];
+	outgoing = new byte[blockSize];
+
+	final String inputName = Config.getString("FileConsole.inputFile", null);
+	final String outputName =
+	    Config.getString("FileConsole.outputFile", null);
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { openFiles(inputName, outputName); }
+	    });
+
+	receiveInterrupt = new Runnable() {
+		public void run() { receiveInterrupt(); }
+	    };
+
+	sendInterrupt = new Runnable() {
+		public void run() { sendInterrupt(); }
+	    };
+
+	closeOutput = new Runnable() {
+		public void run() { closeOutput(); }
+	    };
+
+	remapOutput = new Runnable() {
+		public void run() { remapOutput(); }
+	    };
+
+	if (output != null) {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() {
+			FileConsole.this.privilege.doPrivileged(closeOutput);
+		    }
+		});
+	}
+
+	scheduleReceiveInterrupt();
+    }
+
+    private void openFiles(String inputName, String outputName) {
+	try {
+	    if (inputName != null) {
+		RandomAccessFile file = new RandomAccessFile(inputName, "r");
+		FileChannel channel = file.getChannel();
+
+		input = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				    channel.size());
+
+		// the mapping stays valid after the file is closed
+		file.close();
+	    }
+
+	    if (outputName != null) {
+		outputFile = new RandomAccessFile(outputName, "rw");
+		outputFile.setLength(0);
+		outputChannel = outputFile.getChannel();
+
+		output = outputChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+					   outputWindow);
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot open console file: " + e);
+	}
+    }
+
+    public final void setInterruptHandlers(Runnable receiveInterruptHandler,
+					   Runnable sendInterruptHandler) {
+	this.receiveInterruptHandler = receiveInterruptHandler;
+	this.sendInterruptHandler = sendInterruptHandler;
+    }
+
+    /**
+     * Schedule the arrival of the next block of input, if there is any left.
+     */
+    private void scheduleReceiveInterrupt() {
+	if (receivePending || input == null || !input.hasRemaining())
+	    return;
+
+	receivePending = true;
+
+	int length = Math.min(incoming.length, input.remaining());
+
+	privilege.interrupt.schedule(ticksPerByte * length, "console read",
+				     receiveInterrupt);
+    }
+
+    private void receiveInterrupt() {
+	Lib.assertTrue(incomingCount == 0);
+
+	receivePending = false;
+	incomingHead = 0;
+	incomingCount = Math.min(incoming.length, input.remaining());
+	input.get(incoming, 0, incomingCount);
+
+	if (receiveInterruptHandler != null)
+	    receiveInterruptHandler.run();
+    }
+
+    public final int readByte() {
+	byte[] key = new byte[1];
+
+	if (readBytes(key, 0, 1) == 0)
+	    return -1;
+
+	return key[0]&0xFF;
+    }
+
+    public final int readBytes(byte[] buf, int offset, int length) {
+	// the reader has room, so the line can carry the next block
+	if (incomingCount == 0) {
+	    scheduleReceiveInterrupt();
+	    return 0;
+	}
+
+	int amount = Math.min(length, incomingCount);
+	System.arraycopy(incoming, incomingHead, buf, offset, amount);
+
+	incomingHead += amount;
+	incomingCount -= amount;
+
+	privilege.stats.numConsoleReads += amount;
+
+	return amount;
+    }
+
+    private void sendInterrupt() {
+	Lib.assertTrue(outgoingCount > 0);
+
+	if (output == null) {
+	    System.out.write(outgoing, 0, outgoingCount);
+	    System.out.flush();
+	}
+	else {
+	    if (output.remaining() < outgoingCount)
+		privilege.doPrivileged(remapOutput);
+
+	    output.put(outgoing, 0, outgoingCount);
+	}
+
+	privilege.stats.numConsoleWrites += outgoingCount;
+	outgoingCount = 0;
+
+	if (sendInterruptHandler != null)
+	    sendInterruptHandler.run();
+    }
+
+    /**
+     * Map the next window of the output file, starting where the current one
+     * is full.
+     */
+    private void remapOutput() {
+	outputBase += output.position();
+
+	try {
+	    output = outputChannel.map(FileChannel.MapMode.READ_WRITE,
+				       outputBase, outputWindow);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("cannot extend console output: " + e);
+	}
+    }
+
+    /**
+     * Cut the output file back to the bytes actually written, since mapping
+     * a window extends the file to the end of the window.
+     */
+    private void closeOutput() {
+	try {
+	    output.force();
+	    outputChannel.truncate(outputBase + output.position());
+	    outputFile.close();
+	}
+	catch (IOException e) {
+	}
+    }
+
+    public final void writeByte(int value) {
+	writeBytes(new byte[] { (byte) value }, 0, 1);
+    }
+
+    public final int writeBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(length > 0);
+
+	outgoingCount = Math.min(length, outgoing.length);
+	System.arraycopy(buf, offset, outgoing, 0, outgoingCount);
+
+	privilege.interrupt.schedule(ticksPerByte * outgoingCount,
+				     "console write", sendInterrupt);
+
+	return outgoingCount;
+    }
+
+    private Privilege privilege;
+
+    private Runnable receiveInterrupt;
+    private Runnable sendInterrupt;
+    private Runnable closeOutput;
+    private Runnable remapOutput;
+
+    private Runnable receiveInterruptHandler = null;
+    private Runnable sendInterruptHandler = null;
+
+    private long ticksPerByte;
+
+    private MappedByteBuffer input = null;
+    private byte[] incoming;
+    private int incomingHead = 0, incomingCount = 0;
+    private boolean receivePending = false;
+
+    private RandomAccessFile outputFile = null;
+    private FileChannel outputChannel = null;
+    private MappedByteBuffer output = null;
+    private long outputBase = 0;
+    private byte[] outgoing;
+    private int outgoingCount = 0;
+
+    private static final int outputWindow = 0x100000;
+}
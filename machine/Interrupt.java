@@ -102,6 +102,52 @@ public final class Interrupt {
 	return oldStatus;
     }
 
+    /**
+     * Called when no thread can run. Rather than advancing simulated time a
+     * tick at a time until something happens, jump straight to the next
+     * device interrupt or to <i>wakeTime</i>, whichever comes first, and
+     * invoke every handler due by then. Interrupts scheduled as polls, such
+     * as the timer and the standard console's checks for host input, do not
+     * bound the jump: each falls due once, and reschedules itself from the
+     * new time.
+     *
+     * <p>
+     * The skipped time is counted as kernel ticks, as if the kernel had been
+     * idling through it.
+     *
+     * @param	wakeTime	the earliest time a sleeping thread needs to
+     *				run, or <tt>Long.MAX_VALUE</tt> if none does.
+     */
+    public void idle(long wakeTime) {
+	boolean intStatus = disable();
+
+	long target = wakeTime;
+	for (Iterator i=pending.iterator(); i.hasNext(); ) {
+	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	    if (!toOccur.poll) {
+		target = Math.min(target, toOccur.time);
+		break;
+	    }
+	}
+
+	// with nothing to wait for, let the timer run as usual
+	if (target == Long.MAX_VALUE && !pending.isEmpty())
+	    target = ((PendingInterrupt) pending.first()).time;
+
+	Stats stats = privilege.stats;
+
+	// restoring interrupts below takes us the last tick
+	long skip = target - Stats.KernelTick - stats.totalTicks;
+	if (skip > 0) {
+	    Lib.debug(dbgInt, "Idling until time = " + target);
+
+	    stats.kernelTicks += skip;
+	    stats.totalTicks += skip;
+	}
+
+	restore(intStatus);
+    }
+
     /**
      * Tests whether interrupts are enabled.
      *
@@ -120,11 +166,13 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    private void schedule(long when, String type, Runnable handler,
+			  boolean poll) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler,
+							poll);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
@@ -180,6 +228,8 @@ public final class Interrupt {
 		privilege.processor.flushPipe();
 
 	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Trace.enabled())
+		Trace.interrupt(next.type);
 			
 	    next.handler.run();
 	}
@@ -202,10 +252,12 @@ public final class Interrupt {
     }
 
     private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
+	PendingInterrupt(long time, String type, Runnable handler,
+			 boolean poll) {
 	    this.time = time;
 	    this.type = type;
 	    this.handler = handler;
+	    this.poll = poll;
 	    this.id = numPendingInterruptsCreated++;
 	}
 
@@ -228,6 +280,7 @@ public final class Interrupt {
 	long time;
 	String type;
 	Runnable handler;
+	boolean poll;
 
 	private long id;
     }
@@ -243,7 +296,11 @@ public final class Interrupt {
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	    Interrupt.this.schedule(when, type, handler, false);
+	}
+
+	public void schedulePoll(long when, String type, Runnable handler) {
+	    Interrupt.this.schedule(when, type, handler, true);
 	}
 
 	public void tick(boolean inKernelMode) {
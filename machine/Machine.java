@@ -52,6 +52,9 @@ public final class Machine {
 	TCB.givePrivilege(privilege);
 	privilege.stats = stats;
 
+	Trace.initialize(privilege, testDirectory);
+	Lib.seedRandom(Replay.initialize(privilege, testDirectory, randomSeed));
+
 	securityManager.enable();
 	createDevices();
 	checkUserClasses();
@@ -162,8 +165,6 @@ public final class Machine {
 		}
 	    }
 	}
-
-	Lib.seedRandom(randomSeed);
     }
 
     private static void createDevices() {
@@ -179,8 +180,15 @@ public final class Machine {
 	    processor = new Processor(privilege, numPhysPages);
 	}				      
 
-	if (Config.getBoolean("Machine.console"))
-	    console = new StandardConsole(privilege);
+	if (Config.getBoolean("Machine.console")) {
+	    if (Config.getBoolean("Machine.fileConsole", false))
+		console = new FileConsole(privilege);
+	    else
+		console = new StandardConsole(privilege);
+	}
+
+	if (Config.getBoolean("Machine.disk"))
+	    disk = new Disk(privilege);
 
 	if (Config.getBoolean("Machine.stubFileSystem"))
 	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
@@ -330,6 +338,13 @@ public final class Machine {
      */
     public static SerialConsole console() { return console; }
     
+    /**
+     * Return the disk.
+     *
+     * @return	the disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
+    
     /**
      * Return the stub filesystem.
      *
@@ -356,6 +371,7 @@ public final class Machine {
     private static ElevatorBank bank = null;
     private static Processor processor = null;
     private static SerialConsole console = null;
+    private static Disk disk = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
@@ -5,11 +5,13 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 /**
  * A full-duplex network link. Provides ordered, unreliable delivery of
@@ -57,6 +59,13 @@ import java.net.SocketException;
  * for a network layer in Nachos. This should simplify your design for the
  * session/transport layer, since you can assume packets never arrive out of
  * order.
+ *
+ * <p>
+ * Datagrams are received by a host thread that waits on a <tt>Selector</tt>
+ * and drains the underlying <tt>DatagramChannel</tt> into a fixed ring of
+ * receive slots. The ring absorbs bursts while the kernel is busy; datagrams
+ * that arrive while the ring is full are dropped and counted in
+ * <tt>Stats.numReceiveOverflows</tt>.
  */
 public class NetworkLink {
     /**
@@ -65,7 +74,9 @@ public class NetworkLink {
      * <p>
      * <tt>nachos.conf</tt> specifies the reliability of the network. The
      * reliability, between 0 and 1, is the probability that any particular
-     * packet will not get dropped by the network.
+     * packet will not get dropped by the network. The optional key
+     * <tt>NetworkLink.receiveQueueSize</tt> sets the number of datagrams that
+     * can be buffered before the kernel reads them.
      *
      * @param	privilege      	encapsulates privileged access to the Nachos
      * 				machine.
@@ -87,23 +98,58 @@ public class NetworkLink {
 	reliability = Config.getDouble("NetworkLink.reliability");
 	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
 
-	socket = null;
+	receiveQueueSize = Config.getInteger("NetworkLink.receiveQueueSize",
+					     defaultReceiveQueueSize);
+	Lib.assertTrue(receiveQueueSize > 0);
+
+	receiveSlots = new byte[receiveQueueSize][Packet.maxPacketLength];
+	receiveLengths = new int[receiveQueueSize];
+
+	receiveBuffer = ByteBuffer.allocateDirect(Packet.maxPacketLength);
+	sendBuffer = ByteBuffer.allocateDirect(Packet.maxPacketLength);
+	linkAddresses = new InetSocketAddress[Packet.linkAddressLimit];
+
+	channel = null;
 
 	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
 	    try {
-		socket = new DatagramSocket(portBase + linkAddress, localHost);
+		channel = DatagramChannel.open();
+		channel.socket().bind(getSocketAddress(linkAddress));
 		break;
 	    }
-	    catch (SocketException e) {
+	    catch (IOException e) {
+		closeChannel();
 	    }
 	}
 
-	if (socket == null) {
+	if (channel == null) {
 	    System.out.println("");
 	    System.out.println("Unable to acquire a link address!");
 	    Lib.assertNotReached();
 	}
 
+	try {
+	    channel.configureBlocking(false);
+	    selector = Selector.open();
+	    channel.register(selector, SelectionKey.OP_READ);
+	}
+	catch (IOException e) {
+	    System.out.println("");
+	    System.out.println("Unable to set up the network channel!");
+	    Lib.assertNotReached();
+	}
+
+	// the address depends on which other instances are running
+	if (Replay.replaying()) {
+	    byte[] recorded = Replay.replay(Replay.inputLinkAddress);
+	    if (recorded != null)
+		linkAddress = recorded[0];
+	}
+	else if (Replay.recording()) {
+	    Replay.record(Replay.inputLinkAddress, new byte[] { linkAddress },
+			  1);
+	}
+
 	System.out.print("(" + linkAddress + ")");
 
 	receiveInterrupt = new Runnable() {
@@ -123,6 +169,25 @@ public class NetworkLink {
 	receiveThread.start();
     }
 
+    private void closeChannel() {
+	if (channel != null) {
+	    try {
+		channel.close();
+	    }
+	    catch (IOException e) {
+	    }
+	}
+
+	channel = null;
+    }
+
+    private InetSocketAddress getSocketAddress(int link) {
+	if (linkAddresses[link] == null)
+	    linkAddresses[link] = new InetSocketAddress(localHost, portBase+link);
+
+	return linkAddresses[link];
+    }
+
     /**
      * Returns the address of this network link.
      *
@@ -132,6 +197,35 @@ public class NetworkLink {
 	return linkAddress;
     }
 
+    /**
+     * Return the number of packets this link has put on the wire. Packets
+     * dropped because of the link's reliability are not included.
+     *
+     * @return	the number of packets sent.
+     */
+    public int getNumPacketsSent() {
+	return privilege.stats.numPacketsSent;
+    }
+
+    /**
+     * Return the number of packets this link has delivered to the kernel.
+     *
+     * @return	the number of packets received.
+     */
+    public int getNumPacketsReceived() {
+	return privilege.stats.numPacketsReceived;
+    }
+
+    /**
+     * Return the number of packets that were discarded because they arrived
+     * while the receive queue was full.
+     *
+     * @return	the number of receive overflows.
+     */
+    public synchronized int getNumReceiveOverflows() {
+	return privilege.stats.numReceiveOverflows + receiveOverflows;
+    }
+
     /**
      * Set this link's receive and send interrupt handlers.
      *
@@ -156,6 +250,8 @@ public class NetworkLink {
     }
 
     private void scheduleReceiveInterrupt() {
+	// not a poll: a peer's packet must not wait out an idle jump, or its
+	// round trip would be measured in skipped time
 	privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
 				     receiveInterrupt);
     }
@@ -163,10 +259,16 @@ public class NetworkLink {
     private synchronized void receiveInterrupt() {
 	Lib.assertTrue(incomingPacket == null);
 
-	if (incomingBytes != null) {
+	if (receiveOverflows > 0) {
+	    privilege.stats.numReceiveOverflows += receiveOverflows;
+	    receiveOverflows = 0;
+	}
+
+	byte[] packetBytes = nextDatagram();
+	if (packetBytes != null) {
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
-		    incomingPacket = new Packet(incomingBytes);
+		    incomingPacket = new Packet(packetBytes);
 
 		    privilege.stats.numPacketsReceived++;
 		}
@@ -174,9 +276,6 @@ public class NetworkLink {
 		}
 	    }
 
-	    incomingBytes = null;
-	    notify();
-
 	    if (incomingPacket == null)
 		scheduleReceiveInterrupt();
 	    else if (receiveInterruptHandler != null)
@@ -187,6 +286,30 @@ public class NetworkLink {
 	}
     }
 
+    /**
+     * Take the next datagram from the receive queue, or from the replay log
+     * when replaying. Returns <tt>null</tt> if none has arrived.
+     */
+    private byte[] nextDatagram() {
+	if (Replay.replaying())
+	    return Replay.replay(Replay.inputPacket);
+
+	if (receiveCount == 0)
+	    return null;
+
+	byte[] packetBytes = new byte[receiveLengths[receiveHead]];
+	System.arraycopy(receiveSlots[receiveHead], 0,
+			 packetBytes, 0, packetBytes.length);
+
+	receiveHead = (receiveHead+1) % receiveQueueSize;
+	receiveCount--;
+
+	if (Replay.recording())
+	    Replay.record(Replay.inputPacket, packetBytes, packetBytes.length);
+
+	return packetBytes;
+    }
+
     /**
      * Return the next packet received.
      *
@@ -206,38 +329,42 @@ public class NetworkLink {
 
     private void receiveLoop() {
 	while (true) {
-	    synchronized(this) {
-		while (incomingBytes != null) {
-		    try {
-			wait();
-		    }
-		    catch (InterruptedException e) {
-		    }
-		}
-	    }
-
-	    byte[] packetBytes;
-
 	    try {
-		byte[] buffer = new byte[Packet.maxPacketLength];
+		selector.select();
+		selector.selectedKeys().clear();
 
-		DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
-		
-		socket.receive(dp);
+		// drain every datagram that is already waiting on the channel
+		while (true) {
+		    receiveBuffer.clear();
+		    if (channel.receive(receiveBuffer) == null)
+			break;
+		    receiveBuffer.flip();
 
-		packetBytes = new byte[dp.getLength()];
-
-		System.arraycopy(buffer,0, packetBytes,0, packetBytes.length);
+		    enqueueReceived(receiveBuffer);
+		}
 	    }
 	    catch (IOException e) {
 		return;
 	    }
+	}
+    }
 
-	    synchronized(this) {
-		incomingBytes = packetBytes;
-	    }
+    private synchronized void enqueueReceived(ByteBuffer datagram) {
+	// a replayed run receives only what was recorded
+	if (Replay.replaying())
+	    return;
+
+	if (receiveCount == receiveQueueSize) {
+	    receiveOverflows++;
+	    return;
 	}
-    }		
+
+	int tail = (receiveHead+receiveCount) % receiveQueueSize;
+
+	receiveLengths[tail] = datagram.remaining();
+	datagram.get(receiveSlots[tail], 0, receiveLengths[tail]);
+	receiveCount++;
+    }
     
     private void scheduleSendInterrupt() {
 	privilege.interrupt.schedule(Stats.NetworkTime, "network send",
@@ -251,9 +378,13 @@ public class NetworkLink {
 	if (Machine.autoGrader().canSendPacket(privilege) &&
 	    Lib.random() <= reliability) {
 	    // ok, no drop
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { sendPacket(); }
-		});
+	    privilege.enter();
+	    try {
+		sendPacket();
+	    }
+	    finally {
+		privilege.leave();
+	    }
 	}
 	else {
 	    outgoingPacket = null;
@@ -268,10 +399,13 @@ public class NetworkLink {
 	outgoingPacket = null;
 	
 	try {
-	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
-					   localHost, portBase+p.dstLink));
+	    sendBuffer.clear();
+	    sendBuffer.put(p.packetBytes);
+	    sendBuffer.flip();
 
-	    privilege.stats.numPacketsSent++;
+	    // a full socket buffer drops the datagram, like any other loss
+	    if (channel.send(sendBuffer, getSocketAddress(p.dstLink)) > 0)
+		privilege.stats.numPacketsSent++;
 	}
 	catch (IOException e) {
 	}
@@ -316,12 +450,24 @@ public class NetworkLink {
     private Runnable sendInterruptHandler = null;
 
     private InetAddress localHost;
-    private DatagramSocket socket;
+    private InetSocketAddress[] linkAddresses;
+    private DatagramChannel channel;
+    private Selector selector;
 
     private byte linkAddress;
     private double reliability;
 
-    private byte[] incomingBytes = null;
+    private ByteBuffer receiveBuffer;
+    private ByteBuffer sendBuffer;
+
+    private int receiveQueueSize;
+    private byte[][] receiveSlots;
+    private int[] receiveLengths;
+    private int receiveHead = 0, receiveCount = 0;
+    private int receiveOverflows = 0;
+
+    private static final int defaultReceiveQueueSize = 64;
+
     private Packet incomingPacket = null;
     private Packet outgoingPacket = null;
 
@@ -80,6 +80,30 @@ public final class Processor {
     public Runnable getExceptionHandler() {
 	return exceptionHandler;
     }
+
+    /**
+     * Set the instruction listener, called after each user instruction that
+     * completes without an exception, or <tt>null</tt> for none.
+     *
+     * @param	instructionListener	the listener.
+     */
+    public void setInstructionListener(InstructionListener instructionListener) {
+	this.instructionListener = instructionListener;
+    }
+
+    /**
+     * Something told of every user instruction the processor executes, such
+     * as a profiler.
+     */
+    public interface InstructionListener {
+	/**
+	 * Called after an instruction has executed.
+	 *
+	 * @param	pc		the virtual address of the instruction.
+	 * @param	instruction	the instruction.
+	 */
+	void executed(int pc, int instruction);
+    }
     
     /**
      * Start executing instructions at the current PC. Never returns.
@@ -95,7 +119,11 @@ public final class Processor {
 	
 	while (true) {
 	    try {
+		int pc = registers[regPC];
 		inst.run();
+
+		if (instructionListener != null)
+		    instructionListener.executed(pc, inst.value);
 	    }
 	    catch (MipsException e) {
 		e.handle();
@@ -558,6 +586,7 @@ public final class Processor {
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
+    private InstructionListener instructionListener = null;
 
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
@@ -0,0 +1,265 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Records the inputs that make one run of Nachos differ from the next, and
+ * feeds them back to reproduce a run exactly. Everything else the machine
+ * does follows from these inputs: the random number seed, the bytes typed at
+ * the console, the packets received, and the link address the network card
+ * was given. Each input is logged with the tick at which the machine took it.
+ *
+ * <p>
+ * If <tt>Replay.record</tt> names a file in the test directory, inputs are
+ * logged to it. If <tt>Replay.replay</tt> names a log instead, its seed
+ * replaces the one given with <tt>-s</tt>, and each device takes its inputs
+ * from the log, at the same ticks, instead of from the host. Anything left
+ * in the log when Nachos terminates means the run did not follow the
+ * recorded one.
+ *
+ * <p>
+ * A log begins with the magic number and the format version, as
+ * little-endian ints, and the seed, as a little-endian long. Each record
+ * holds the tick as a little-endian long, then the input type and the length
+ * of the data, as little-endian ints, and then the data.
+ */
+public final class Replay {
+    /**
+     * Start recording or replaying, if <tt>Replay.record</tt> or
+     * <tt>Replay.replay</tt> is set. Called by <tt>Machine.main()</tt>.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory holding the log.
+     * @param	randomSeed	the seed given on the command line.
+     * @return	the seed to use: the recorded seed when replaying, and
+     *		otherwise <i>randomSeed</i>.
+     */
+    static long initialize(Privilege privilege, File directory,
+			   long randomSeed) {
+	String recordName = Config.getString("Replay.record", null);
+	String replayName = Config.getString("Replay.replay", null);
+	Lib.assertTrue(recordName == null || replayName == null,
+		       "cannot both record and replay");
+
+	Replay.privilege = privilege;
+
+	if (recordName != null) {
+	    file = new File(directory, recordName);
+
+	    byte[] header = new byte[headerSize];
+	    Lib.bytesFromInt(header, 0, magic);
+	    Lib.bytesFromInt(header, 4, version);
+	    Lib.bytesFromInt(header, 8, (int) randomSeed);
+	    Lib.bytesFromInt(header, 12, (int) (randomSeed >>> 32));
+	    output(header, false);
+
+	    recording = true;
+	}
+	else if (replayName != null) {
+	    file = new File(directory, replayName);
+	    randomSeed = load();
+
+	    replaying = true;
+	}
+
+	// a panic exits without going through Machine.terminate()
+	if (recording || replaying) {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() { close(); }
+		});
+	}
+
+	return randomSeed;
+    }
+
+    /**
+     * Test whether inputs are being logged.
+     *
+     * @return	<tt>true</tt> if recording.
+     */
+    public static boolean recording() {
+	return recording;
+    }
+
+    /**
+     * Test whether inputs are being taken from a log.
+     *
+     * @return	<tt>true</tt> if replaying.
+     */
+    public static boolean replaying() {
+	return replaying;
+    }
+
+    /**
+     * Log an input taken at the current tick.
+     *
+     * @param	type	the input type, one of the <tt>input</tt> constants.
+     * @param	data	the input.
+     * @param	length	the number of bytes of <i>data</i> to log.
+     */
+    public static void record(int type, byte[] data, int length) {
+	long time = privilege.stats.totalTicks;
+
+	byte[] header = new byte[recordHeaderSize];
+	Lib.bytesFromInt(header, 0, (int) time);
+	Lib.bytesFromInt(header, 4, (int) (time >>> 32));
+	Lib.bytesFromInt(header, 8, type);
+	Lib.bytesFromInt(header, 12, length);
+
+	buffer.write(header, 0, header.length);
+	buffer.write(data, 0, length);
+
+	if (buffer.size() >= bufferSize)
+	    flush();
+    }
+
+    /**
+     * Return the next logged input of a type, if the machine took it at or
+     * before the current tick.
+     *
+     * @param	type	the input type, one of the <tt>input</tt> constants.
+     * @return	the input, or <tt>null</tt> if none is due.
+     */
+    public static byte[] replay(int type) {
+	Lib.assertTrue(type > 0 && type < numTypes);
+
+	Input input = inputs.get(type).peek();
+	if (input == null || input.time > privilege.stats.totalTicks)
+	    return null;
+
+	inputs.get(type).removeFirst();
+	return input.data;
+    }
+
+    /**
+     * Write out the rest of the log, or report inputs that were never
+     * replayed. Called when Nachos exits, normally or not.
+     */
+    private static void close() {
+	if (recording) {
+	    flush();
+	    recording = false;
+	}
+
+	if (replaying) {
+	    int left = 0;
+	    for (int type=1; type<numTypes; type++)
+		left += inputs.get(type).size();
+
+	    if (left > 0)
+		System.out.println("replay: " + left + " inputs not replayed");
+
+	    replaying = false;
+	}
+    }
+
+    private static void flush() {
+	output(buffer.toByteArray(), true);
+	buffer.reset();
+    }
+
+    private static void output(final byte[] bytes, final boolean append) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			FileOutputStream out = new FileOutputStream(file, append);
+			out.write(bytes);
+			out.close();
+		    }
+		    catch (IOException e) {
+			System.out.println("replay: cannot write " + file);
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Read the whole log, sorting its records by type. Returns the seed.
+     */
+    private static long load() {
+	final byte[][] contents = new byte[1][];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			DataInputStream in =
+			    new DataInputStream(new FileInputStream(file));
+			contents[0] = new byte[(int) file.length()];
+			in.readFully(contents[0]);
+			in.close();
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+
+	byte[] log = contents[0];
+	Lib.assertTrue(log != null && log.length >= headerSize &&
+		       Lib.bytesToInt(log, 0) == magic &&
+		       Lib.bytesToInt(log, 4) == version,
+		       "cannot read replay log " + file);
+
+	// type 0 is unused
+	for (int type=0; type<numTypes; type++)
+	    inputs.add(new LinkedList<Input>());
+
+	int offset = headerSize;
+	while (offset + recordHeaderSize <= log.length) {
+	    Input input = new Input();
+	    input.time = (Lib.bytesToInt(log, offset) & 0xFFFFFFFFL) |
+		((long) Lib.bytesToInt(log, offset+4) << 32);
+	    int type = Lib.bytesToInt(log, offset+8);
+	    int length = Lib.bytesToInt(log, offset+12);
+	    offset += recordHeaderSize;
+
+	    Lib.assertTrue(type > 0 && type < numTypes && length >= 0 &&
+			   offset + length <= log.length,
+			   "corrupt replay log " + file);
+
+	    input.data = new byte[length];
+	    System.arraycopy(log, offset, input.data, 0, length);
+	    offset += length;
+
+	    inputs.get(type).add(input);
+	}
+
+	return (Lib.bytesToInt(log, 8) & 0xFFFFFFFFL) |
+	    ((long) Lib.bytesToInt(log, 12) << 32);
+    }
+
+    private static class Input {
+	long time;
+	byte[] data;
+    }
+
+    /** Bytes read from the host by the standard console. */
+    public static final int inputConsole = 1;
+    /** A packet taken from the network card's receive queue. */
+    public static final int inputPacket = 2;
+    /** The link address the network card was given, as one byte. */
+    public static final int inputLinkAddress = 3;
+    private static final int numTypes = 4;
+
+    private static final int magic = 0x4C50524E;
+    private static final int version = 1;
+    private static final int headerSize = 16;
+    private static final int recordHeaderSize = 16;
+    private static final int bufferSize = 65536;
+
+    private static boolean recording = false, replaying = false;
+    private static Privilege privilege;
+    private static File file;
+    private static ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private static ArrayList<LinkedList<Input>> inputs =
+	new ArrayList<LinkedList<Input>>(numTypes);
+}
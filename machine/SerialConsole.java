@@ -15,8 +15,10 @@ public interface SerialConsole {
      * Set this console's receive and send interrupt handlers.
      *
      * <p>
-     * The receive interrupt handler is called every time another byte arrives
-     * and can be read using <tt>readByte()</tt>.
+     * The receive interrupt handler is called when one or more bytes have
+     * arrived and can be read using <tt>readByte()</tt>. The handler may call
+     * <tt>readByte()</tt> repeatedly until it returns -1; bytes it leaves
+     * behind cause another receive interrupt.
      *
      * <p>
      * The send interrupt handler is called every time a byte sent with
@@ -39,6 +41,17 @@ public interface SerialConsole {
      */
     public int	readByte();
 
+    /**
+     * Read as many of the bytes that have already arrived as will fit, in a
+     * single transfer.
+     *
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	length	the maximum number of bytes to read.
+     * @return	the number of bytes read, or 0 if no byte is available.
+     */
+    public int readBytes(byte[] buf, int offset, int length);
+
     /**
      * Send another byte. If a byte is already being sent, the result is not
      * defined.
@@ -46,4 +59,17 @@ public interface SerialConsole {
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value);
+
+    /**
+     * Send a block of bytes as a single transfer. The console may accept
+     * fewer bytes than offered, but always accepts at least one. The send
+     * interrupt handler is called once, when the whole block has been sent.
+     * If a byte or block is already being sent, the result is not defined.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the offset of the first byte to send.
+     * @param	length	the number of bytes to send; must be at least 1.
+     * @return	the number of bytes accepted.
+     */
+    public int writeBytes(byte[] buf, int offset, int length);
 }
@@ -8,6 +8,11 @@ import java.io.IOException;
 
 /**
  * A text-based console that uses System.in and System.out.
+ *
+ * <p>
+ * Each receive interrupt takes everything System.in has available, up to the
+ * free space in a small input queue, so that pasted or piped input is
+ * delivered in batches instead of one byte per interrupt.
  */
 public class StandardConsole implements SerialConsole {
     /**
@@ -29,6 +34,7 @@ public class StandardConsole implements SerialConsole {
 		public void run() { sendInterrupt(); }
 	    };		
 	
+	receivePending = true;
 	scheduleReceiveInterrupt();
     }
     
@@ -39,27 +45,54 @@ public class StandardConsole implements SerialConsole {
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
-				     receiveInterrupt);
+	privilege.interrupt.schedulePoll(Stats.ConsoleTime, "console read",
+					 receiveInterrupt);
     }
 
     /**
-     * Attempt to read a byte from the object backing this console.
+     * Attempt to read bytes from the object backing this console, without
+     * waiting.
      *
-     * @return	the byte read, or -1 of no data is available.
+     * @param	buf	the buffer to store the bytes in.
+     * @param	length	the maximum number of bytes to read.
+     * @return	the number of bytes read, or 0 if no data is available.
      */
-    protected int in() {
+    protected int in(byte[] buf, int length) {
 	try {
-	    if (System.in.available() <= 0)
-		return -1;
+	    int available = System.in.available();
+	    if (available <= 0)
+		return 0;
 
-	    return System.in.read();
+	    return Math.max(System.in.read(buf, 0,
+					   Math.min(available, length)), 0);
 	}
 	catch (IOException e) {
-	    return -1;
+	    return 0;
 	}
     }
 
+    /**
+     * Take input for a receive interrupt from the replay log when replaying,
+     * and otherwise from <tt>in()</tt>, logging it when recording.
+     */
+    private int input(byte[] buf, int length) {
+	if (Replay.replaying()) {
+	    byte[] data = Replay.replay(Replay.inputConsole);
+	    if (data == null)
+		return 0;
+
+	    Lib.assertTrue(data.length <= length, "console replay diverged");
+	    System.arraycopy(data, 0, buf, 0, data.length);
+	    return data.length;
+	}
+
+	int amount = in(buf, length);
+	if (amount > 0 && Replay.recording())
+	    Replay.record(Replay.inputConsole, buf, amount);
+
+	return amount;
+    }
+
     private int translateCharacter(int c) {
 	// translate win32 0x0D 0x0A sequence to single newline
 	if (c == 0x0A && prevCarriageReturn) {
@@ -87,63 +120,104 @@ public class StandardConsole implements SerialConsole {
 
 
     private void receiveInterrupt() {
-	Lib.assertTrue(incomingKey == -1);
-
-	incomingKey = translateCharacter(in());
-	if (incomingKey == -1) {
-	    scheduleReceiveInterrupt();
+	receivePending = false;
+
+	while (incomingCount < incomingKeys.length) {
+	    int amount = input(hostBuffer, Math.min(hostBuffer.length,
+						    incomingKeys.length -
+						    incomingCount));
+	    if (amount == 0)
+		break;
+
+	    for (int i=0; i<amount; i++) {
+		int key = translateCharacter(hostBuffer[i]&0xFF);
+		if (key != -1) {
+		    incomingKeys[(incomingHead+incomingCount) %
+				 incomingKeys.length] = (byte) key;
+		    incomingCount++;
+		}
+	    }
 	}
-	else {
-	    privilege.stats.numConsoleReads++;
 
-	    if (receiveInterruptHandler != null)
-		receiveInterruptHandler.run();
-	}
+	if (incomingCount == 0)
+	    scheduleReceiveInterrupt();
+	else if (receiveInterruptHandler != null)
+	    receiveInterruptHandler.run();
     }
 
     public final int readByte() {
-	int key = incomingKey;
+	byte[] key = new byte[1];
+
+	if (readBytes(key, 0, 1) == 0)
+	    return -1;
 
-	if (incomingKey != -1) {
-	    incomingKey = -1;
+	return key[0]&0xFF;
+    }
+
+    public final int readBytes(byte[] buf, int offset, int length) {
+	// keep exactly one receive interrupt pending while we're being read
+	if (!receivePending) {
+	    receivePending = true;
 	    scheduleReceiveInterrupt();
 	}
 
-	return key;
+	int amount = Math.min(length, incomingCount);
+	int first = Math.min(amount, incomingKeys.length - incomingHead);
+
+	System.arraycopy(incomingKeys, incomingHead, buf, offset, first);
+	System.arraycopy(incomingKeys, 0, buf, offset+first, amount-first);
+
+	incomingHead = (incomingHead+amount) % incomingKeys.length;
+	incomingCount -= amount;
+
+	privilege.stats.numConsoleReads += amount;
+
+	return amount;
     }
 
-    private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
-				     sendInterrupt);
+    private void scheduleSendInterrupt(int length) {
+	privilege.interrupt.schedule(Stats.ConsoleTime * length,
+				     "console write", sendInterrupt);
     }
 
     /**
-     * Write a byte to the object backing this console.
+     * Write bytes to the object backing this console.
      *
-     * @param	value	the byte to write.
+     * @param	buf	the buffer holding the bytes to write.
+     * @param	length	the number of bytes to write.
      */
-    protected void out(int value) {
-	System.out.write(value);
+    protected void out(byte[] buf, int length) {
+	System.out.write(buf, 0, length);
 	System.out.flush();
     }	
 
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingKey != -1);
+	Lib.assertTrue(outgoingCount > 0);
 
-	out(outgoingKey);
-	outgoingKey = -1;
+	out(outgoingKeys, outgoingCount);
 
-	privilege.stats.numConsoleWrites++;
+	privilege.stats.numConsoleWrites += outgoingCount;
+	outgoingCount = 0;
 
 	if (sendInterruptHandler != null)
 	    sendInterruptHandler.run();
     }
 
     public final void writeByte(int value) {
-	if (outgoingKey == -1)
-	    scheduleSendInterrupt();
-	
-	outgoingKey = value&0xFF;
+	writeBytes(new byte[] { (byte) value }, 0, 1);
+    }
+
+    public final int writeBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(length > 0);
+
+	// each byte still takes ConsoleTime, but a block costs one interrupt
+	if (outgoingCount == 0)
+	    scheduleSendInterrupt(Math.min(length, outgoingKeys.length));
+
+	outgoingCount = Math.min(length, outgoingKeys.length);
+	System.arraycopy(buf, offset, outgoingKeys, 0, outgoingCount);
+
+	return outgoingCount;
     }
 
     private Privilege privilege = null;
@@ -154,8 +228,14 @@ public class StandardConsole implements SerialConsole {
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
 
-    private int incomingKey = -1;
-    private int outgoingKey = -1;
+    private byte[] incomingKeys = new byte[incomingQueueSize];
+    private int incomingHead = 0, incomingCount = 0;
+    private byte[] hostBuffer = new byte[256];
+    private boolean receivePending = false;
+    private byte[] outgoingKeys = new byte[256];
+    private int outgoingCount = 0;
 
     private boolean prevCarriageReturn = false;
+
+    private static final int incomingQueueSize = 1024;
 }
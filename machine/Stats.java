@@ -28,7 +28,8 @@ public final class Stats {
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
-			   + ", sent " + numPacketsSent);
+			   + ", sent " + numPacketsSent
+			   + ", receive overflows " + numReceiveOverflows);
     }
 
     /**
@@ -61,6 +62,11 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The total number of packets the network link dropped because its
+     * receive queue was full.
+     */
+    public int numReceiveOverflows = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -46,22 +46,14 @@ public class StubFileSystem implements FileSystem {
 
 	delay();
 
-	FileRemover fr = new FileRemover(new File(directory, name));
-	privilege.doPrivileged(fr);
-	return fr.successful;
-    }
-
-    private class FileRemover implements Runnable {
-	public FileRemover(File f) {
-	    this.f = f;
+	File f = new File(directory, name);
+	privilege.enter();
+	try {
+	    return f.delete();
 	}
-	
-	public void run() {
-	    successful = f.delete();
+	finally {
+	    privilege.leave();
 	}
-	
-	public boolean successful = false;
-	private File f;
     }
 
     private void delay() {
@@ -76,14 +68,18 @@ public class StubFileSystem implements FileSystem {
 	    throws IOException {
 	    super(StubFileSystem.this, name);
 
-	    final File f = new File(directory, name);
+	    File f = new File(directory, name);
 
 	    if (openCount == maxOpenFiles)
 		throw new IOException();
 
-	    privilege.doPrivileged(new Runnable() {
-		public void run() { getRandomAccessFile(f, truncate); }
-	    });
+	    privilege.enter();
+	    try {
+		getRandomAccessFile(f, truncate);
+	    }
+	    finally {
+		privilege.leave();
+	    }
 
 	    if (file == null)
 		throw new IOException();
@@ -73,11 +73,11 @@ public final class Timer {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
-	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	privilege.interrupt.schedulePoll(delay, "timer", timerInterrupt);
     }
 
     private void scheduleAutoGraderInterrupt() {
-	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+	privilege.interrupt.schedulePoll(1, "timerAG", autoGraderInterrupt);
     }
 
     private long lastTimerInterrupt;
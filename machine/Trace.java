@@ -0,0 +1,210 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A binary event trace. Each event is a fixed-size record, stored in a
+ * preallocated ring buffer and written to a file in the test directory when
+ * the buffer fills and when Nachos terminates. Recording an event formats no
+ * strings and does no I/O, so tracing can be left on for whole runs.
+ *
+ * <p>
+ * Tracing is off unless <tt>Trace.file</tt> names the file to write.
+ * <tt>Trace.bufferSize</tt> is the number of records the ring holds. If
+ * <tt>Trace.flightRecorder</tt> is <tt>true</tt>, a full ring is not
+ * written out; instead the oldest records are overwritten, and only the last
+ * <tt>Trace.bufferSize</tt> events are written when Nachos terminates.
+ *
+ * <p>
+ * The file begins with a header of three little-endian ints: the magic
+ * number, the format version and the record size. Each record holds the
+ * simulated time as a little-endian long, followed by the event type, the ID
+ * of the thread that was running, and two arguments whose meaning depends on
+ * the type, each a little-endian int. <tt>TraceDecoder</tt> turns a trace
+ * into a readable timeline or a Chrome trace.
+ */
+public final class Trace {
+    /**
+     * Start tracing if <tt>Trace.file</tt> is set. Called by
+     * <tt>Machine.main()</tt>.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory to put the trace file in.
+     */
+    static void initialize(Privilege privilege, File directory) {
+	String fileName = Config.getString("Trace.file", null);
+	if (fileName == null)
+	    return;
+
+	Trace.privilege = privilege;
+	file = new File(directory, fileName);
+	int bufferSize = Config.getInteger("Trace.bufferSize", 65536);
+	Lib.assertTrue(bufferSize > 0);
+	ring = new byte[bufferSize * recordSize];
+	flightRecorder = Config.getBoolean("Trace.flightRecorder", false);
+
+	byte[] header = new byte[headerSize];
+	Lib.bytesFromInt(header, 0, magic);
+	Lib.bytesFromInt(header, 4, version);
+	Lib.bytesFromInt(header, 8, recordSize);
+	output(header, 0, header.length, false);
+
+	// a panic exits without going through Machine.terminate()
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { close(); }
+	    });
+
+	enabled = true;
+    }
+
+    /**
+     * Test whether events are being recorded.
+     *
+     * @return	<tt>true</tt> if tracing is on.
+     */
+    public static boolean enabled() {
+	return enabled;
+    }
+
+    /**
+     * Record a switch from one thread to another. Later events are charged
+     * to the new thread.
+     *
+     * @param	from	the ID of the thread giving up the CPU.
+     * @param	to	the ID of the thread receiving it.
+     */
+    public static void contextSwitch(int from, int to) {
+	record(eventContextSwitch, from, to);
+	currentThread = to;
+    }
+
+    /**
+     * Record an interrupt handler being invoked.
+     *
+     * @param	type	the interrupt's type, as passed to
+     *			<tt>schedule()</tt>.
+     */
+    static void interrupt(String type) {
+	int index = -1;
+	for (int i=0; i<interruptTypes.length && index == -1; i++) {
+	    if (interruptTypes[i].equals(type))
+		index = i;
+	}
+
+	record(eventInterrupt, index, 0);
+    }
+
+    /**
+     * Record an event of the current thread.
+     *
+     * @param	type	the event type, one of the <tt>event</tt> constants.
+     * @param	a	the event's first argument.
+     * @param	b	the event's second argument.
+     */
+    public static void record(int type, int a, int b) {
+	if (next == ring.length) {
+	    if (!flightRecorder)
+		flush();
+
+	    next = 0;
+	    wrapped = flightRecorder;
+	}
+
+	long time = privilege.stats.totalTicks;
+	Lib.bytesFromInt(ring, next, (int) time);
+	Lib.bytesFromInt(ring, next+4, (int) (time >>> 32));
+	Lib.bytesFromInt(ring, next+8, type);
+	Lib.bytesFromInt(ring, next+12, currentThread);
+	Lib.bytesFromInt(ring, next+16, a);
+	Lib.bytesFromInt(ring, next+20, b);
+
+	next += recordSize;
+    }
+
+    /**
+     * Write out every buffered record and stop tracing. Called when Nachos
+     * exits, normally or not.
+     */
+    private static void close() {
+	if (!enabled)
+	    return;
+
+	if (wrapped)
+	    output(ring, next, ring.length - next, true);
+	flush();
+
+	enabled = false;
+    }
+
+    private static void flush() {
+	output(ring, 0, next, true);
+	next = 0;
+    }
+
+    private static void output(final byte[] bytes, final int offset,
+			       final int length, final boolean append) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			FileOutputStream out = new FileOutputStream(file, append);
+			out.write(bytes, offset, length);
+			out.close();
+		    }
+		    catch (IOException e) {
+			System.out.println("trace: cannot write " + file);
+		    }
+		}
+	    });
+    }
+
+    /** A context switch: from thread ID, to thread ID. */
+    public static final int eventContextSwitch = 1;
+    /** An interrupt handler: index in <tt>interruptTypes</tt>, or -1. */
+    public static final int eventInterrupt = 2;
+    /** A system call begins: syscall number, PID. */
+    public static final int eventSyscallEnter = 3;
+    /** A system call returns: syscall number, result. */
+    public static final int eventSyscallExit = 4;
+    /** A page fault: virtual page number, PID. */
+    public static final int eventPageFault = 5;
+    /** A TLB miss: virtual address, PID. */
+    public static final int eventTLBMiss = 6;
+    /** A packet sent: destination link address, destination port. */
+    public static final int eventPacketSend = 7;
+    /** A packet delivered: source link address, destination port. */
+    public static final int eventPacketReceive = 8;
+
+    /** The name of each event type, indexed by type. */
+    public static final String[] eventNames = {
+	null, "switch", "interrupt", "syscall enter", "syscall exit",
+	"page fault", "TLB miss", "packet send", "packet receive"
+    };
+
+    /** The interrupt types recorded by index. */
+    public static final String[] interruptTypes = {
+	"timer", "timerAG", "console read", "console write", "disk read",
+	"disk write", "network recv", "network send", "elevator", "rider"
+    };
+
+    /** The first int of every trace file. */
+    public static final int magic = 0x4352544E;
+    /** The version of the trace format. */
+    public static final int version = 1;
+    /** The size of the file header, in bytes. */
+    public static final int headerSize = 12;
+    /** The size of each record, in bytes. */
+    public static final int recordSize = 24;
+
+    private static boolean enabled = false;
+    private static Privilege privilege;
+    private static File file;
+    private static byte[] ring;
+    private static int next = 0;
+    private static boolean flightRecorder, wrapped = false;
+    private static int currentThread = 0;
+}
@@ -0,0 +1,186 @@
+package nachos.machine;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Turns a trace written by <tt>Trace</tt> into a readable timeline, or into
+ * the JSON trace-event format read by Chrome's trace viewer. Run it outside
+ * Nachos:
+ *
+ * <p><blockquote><pre>
+ * java nachos.machine.TraceDecoder [-chrome] <i>tracefile</i>
+ * </pre></blockquote>
+ *
+ * <p>
+ * In a Chrome trace each Nachos thread is a track, showing when it ran,
+ * its system calls as slices, and its other events as instants. One tick of
+ * simulated time is shown as one microsecond.
+ */
+public class TraceDecoder {
+    /**
+     * Decode a trace file to standard output.
+     *
+     * @param	args	<tt>-chrome</tt> for a Chrome trace, then the name of
+     *			the trace file.
+     */
+    public static void main(String[] args) throws IOException {
+	boolean chrome = (args.length == 2 && args[0].equals("-chrome"));
+	if (args.length != (chrome ? 2 : 1)) {
+	    System.err.println("usage: java nachos.machine.TraceDecoder " +
+			       "[-chrome] tracefile");
+	    System.exit(1);
+	}
+
+	DataInputStream in =
+	    new DataInputStream(new FileInputStream(args[args.length-1]));
+
+	byte[] header = new byte[Trace.headerSize];
+	in.readFully(header);
+	if (Lib.bytesToInt(header, 0) != Trace.magic ||
+	    Lib.bytesToInt(header, 4) != Trace.version) {
+	    System.err.println("not a version " + Trace.version + " trace");
+	    System.exit(1);
+	}
+
+	TraceDecoder decoder = new TraceDecoder(chrome);
+	byte[] record = new byte[Lib.bytesToInt(header, 8)];
+
+	while (true) {
+	    try {
+		in.readFully(record);
+	    }
+	    catch (EOFException e) {
+		break;
+	    }
+
+	    long time = (Lib.bytesToInt(record, 0) & 0xFFFFFFFFL) |
+		((long) Lib.bytesToInt(record, 4) << 32);
+	    decoder.decode(time, Lib.bytesToInt(record, 8),
+			   Lib.bytesToInt(record, 12), Lib.bytesToInt(record, 16),
+			   Lib.bytesToInt(record, 20));
+	}
+
+	in.close();
+	decoder.finish();
+    }
+
+    private TraceDecoder(boolean chrome) {
+	this.chrome = chrome;
+
+	if (chrome)
+	    System.out.print("{\"traceEvents\":[");
+    }
+
+    private void decode(long time, int type, int thread, int a, int b) {
+	if (chrome)
+	    chromeEvent(time, type, thread, a, b);
+	else
+	    System.out.println(timelineEvent(time, type, thread, a, b));
+
+	lastTime = time;
+    }
+
+    private static String timelineEvent(long time, int type, int thread,
+					int a, int b) {
+	String line = pad("" + time, 12) + pad("#" + thread, 6) + "  ";
+
+	switch (type) {
+	case Trace.eventContextSwitch:
+	    return line + "switch to #" + b;
+	case Trace.eventInterrupt:
+	    return line + "interrupt " + interruptName(a);
+	case Trace.eventSyscallEnter:
+	    return line + "syscall " + a + " (pid " + b + ")";
+	case Trace.eventSyscallExit:
+	    return line + "syscall " + a + " returns " + b;
+	case Trace.eventPageFault:
+	    return line + "page fault, vpn " + a + " (pid " + b + ")";
+	case Trace.eventTLBMiss:
+	    return line + "TLB miss, address " + Lib.toHexString(a) +
+		" (pid " + b + ")";
+	case Trace.eventPacketSend:
+	    return line + "packet send to " + a + ":" + b;
+	case Trace.eventPacketReceive:
+	    return line + "packet receive from " + a + " to port " + b;
+	default:
+	    return line + "event " + type + " " + a + " " + b;
+	}
+    }
+
+    private void chromeEvent(long time, int type, int thread, int a, int b) {
+	switch (type) {
+	case Trace.eventContextSwitch:
+	    endRun(a, time);
+	    runningSince.put(b, time);
+	    break;
+	case Trace.eventSyscallEnter:
+	    emit("\"name\":\"syscall " + a + "\",\"ph\":\"B\",\"ts\":" + time +
+		 ",\"tid\":" + thread + ",\"args\":{\"pid\":" + b + "}");
+	    break;
+	case Trace.eventSyscallExit:
+	    emit("\"ph\":\"E\",\"ts\":" + time + ",\"tid\":" + thread +
+		 ",\"args\":{\"result\":" + b + "}");
+	    break;
+	default:
+	    String name = (type == Trace.eventInterrupt ?
+			   "interrupt " + interruptName(a) :
+			   type > 0 && type < Trace.eventNames.length ?
+			   Trace.eventNames[type] : "event " + type);
+	    emit("\"name\":\"" + name + "\",\"ph\":\"i\",\"s\":\"t\",\"ts\":" +
+		 time + ",\"tid\":" + thread + ",\"args\":{\"a\":" + a +
+		 ",\"b\":" + b + "}");
+	    break;
+	}
+    }
+
+    /**
+     * Emit a slice for the time a thread has been running, if it has.
+     */
+    private void endRun(int thread, long time) {
+	Long since = runningSince.remove(thread);
+	if (since == null)
+	    return;
+
+	emit("\"name\":\"running\",\"ph\":\"X\",\"ts\":" + since + ",\"dur\":" +
+	     (time - since) + ",\"tid\":" + thread);
+    }
+
+    private void emit(String fields) {
+	System.out.print((numEvents++ == 0 ? "" : ",\n") + "{\"pid\":0," +
+			 fields + "}");
+    }
+
+    private void finish() {
+	if (!chrome)
+	    return;
+
+	Integer[] threads = runningSince.keySet().toArray(new Integer[0]);
+	for (int i=0; i<threads.length; i++)
+	    endRun(threads[i], lastTime);
+
+	System.out.println("]}");
+    }
+
+    private static String interruptName(int index) {
+	if (index >= 0 && index < Trace.interruptTypes.length)
+	    return Trace.interruptTypes[index];
+	else
+	    return "(other)";
+    }
+
+    private static String pad(String s, int width) {
+	while (s.length() < width)
+	    s = " " + s;
+	return s;
+    }
+
+    private boolean chrome;
+    private int numEvents = 0;
+    private long lastTime = 0;
+    /** When each thread that is running in the trace began to run. */
+    private HashMap<Integer, Long> runningSince = new HashMap<Integer, Long>();
+}
@@ -0,0 +1,513 @@
+package nachos.network;
+
+import java.util.Arrays;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A network benchmark that runs between several Nachos nodes. Every node
+ * runs the benchmark with the same configuration; the node's link address
+ * decides its role. The following traffic patterns are supported, selected
+ * by <tt>NetBenchmark.pattern</tt>:
+ *
+ * <ul>
+ * <li><tt>pingpong</tt>: every node other than 0 sends closed-loop pings to
+ * node 0, which echoes them. Produces an RTT distribution.
+ * <li><tt>stream</tt>: node 0 sends a unidirectional bulk stream to node 1.
+ * <li><tt>fanin</tt>: every node other than 0 streams to node 0.
+ * <li><tt>alltoall</tt>: every node streams to every other node.
+ * </ul>
+ *
+ * <p>
+ * The nodes first meet at a start barrier coordinated by node 0. Each node
+ * then prints the messages and bytes it sent and received per second of
+ * wall time and in ticks per message, the RTT percentiles (for
+ * <tt>pingpong</tt>), the number of messages lost per source, the number of
+ * pings retransmitted and duplicates received, and the link-level counters
+ * from the <tt>NetworkLink</tt>.
+ *
+ * <p>
+ * Because the network is unreliable, a watchdog thread wakes up every
+ * <tt>NetBenchmark.timeout</tt> ticks. It resends a lost <tt>READY</tt> or
+ * ping, and it unblocks a receiver whose senders have gone quiet, so the
+ * benchmark finishes even when messages are dropped.
+ */
+public class NetBenchmark {
+    /**
+     * Allocate a new benchmark that sends and receives mail through the
+     * specified post office, and read its parameters from the configuration
+     * file.
+     *
+     * @param	postOffice	the post office to use.
+     */
+    public NetBenchmark(PostOffice postOffice) {
+	this.postOffice = postOffice;
+
+	pattern = Config.getString("NetBenchmark.pattern");
+	numNodes = Config.getInteger("NetBenchmark.nodes", 2);
+	numMessages = Config.getInteger("NetBenchmark.messages", 100);
+	messageSize = Config.getInteger("NetBenchmark.messageSize",
+					MailMessage.maxContentsLength);
+	timeout = Config.getInteger("NetBenchmark.timeout", 5000);
+	idleLimit = Config.getInteger("NetBenchmark.idleLimit", 4);
+
+	Lib.assertTrue(numNodes >= 2 && numNodes <= Packet.linkAddressLimit,
+		       "NetBenchmark.nodes out of range");
+	Lib.assertTrue(numMessages > 0 && timeout > 0 && idleLimit > 0);
+	Lib.assertTrue(messageSize >= headerLength &&
+		       messageSize <= MailMessage.maxContentsLength,
+		       "NetBenchmark.messageSize out of range");
+
+	local = Machine.networkLink().getLinkAddress();
+
+	sendTo = new boolean[numNodes];
+	receiveFrom = new boolean[numNodes];
+
+	if (pattern.equals("pingpong")) {
+	    pinging = (local != 0 && local < numNodes);
+	    if (local == 0)
+		Arrays.fill(receiveFrom, 1, numNodes, true);
+	}
+	else if (pattern.equals("stream")) {
+	    if (local == 0)
+		sendTo[1] = true;
+	    else if (local == 1)
+		receiveFrom[0] = true;
+	}
+	else if (pattern.equals("fanin")) {
+	    if (local == 0)
+		Arrays.fill(receiveFrom, 1, numNodes, true);
+	    else if (local < numNodes)
+		sendTo[0] = true;
+	}
+	else if (pattern.equals("alltoall")) {
+	    if (local < numNodes) {
+		Arrays.fill(sendTo, true);
+		Arrays.fill(receiveFrom, true);
+		sendTo[local] = receiveFrom[local] = false;
+	    }
+	}
+	else {
+	    Lib.assertNotReached("unknown NetBenchmark.pattern: " + pattern);
+	}
+
+	for (int i=0; i<numNodes; i++) {
+	    if (receiveFrom[i])
+		numSources++;
+	}
+
+	receivedFrom = new int[numNodes];
+	sentBy = new int[numNodes];
+	Arrays.fill(sentBy, -1);
+	lastSeqFrom = new int[numNodes];
+	Arrays.fill(lastSeqFrom, -1);
+    }
+
+    /**
+     * Run the benchmark on this node and print the results. Returns once
+     * this node has finished sending and receiving.
+     */
+    public void run() {
+	System.out.println("NetBenchmark: " + pattern + ", node " + local +
+			   " of " + numNodes + ", " + numMessages +
+			   " messages of " + messageSize + " bytes");
+
+	KThread watchdog = new KThread(new Runnable() {
+		public void run() { watchdog(); }
+	    }).setName("net benchmark watchdog");
+	watchdog.fork();
+
+	barrier();
+
+	startTicks = Machine.timer().getTime();
+	startNanos = System.nanoTime();
+
+	KThread receiver = null;
+	if (numSources > 0) {
+	    receiving = true;
+	    receiver = new KThread(new Runnable() {
+		    public void run() { receive(); }
+		}).setName("net benchmark receiver");
+	    receiver.fork();
+	}
+
+	if (pinging)
+	    ping();
+	else
+	    stream();
+
+	endSendTicks = Machine.timer().getTime();
+	endSendNanos = System.nanoTime();
+
+	if (receiver != null)
+	    receiver.join();
+
+	finished = true;
+
+	report();
+    }
+
+    /**
+     * Wait until every node has reached the barrier. Node 0 collects a
+     * <tt>READY</tt> from every other node and then answers each of them with
+     * <tt>GO</tt>.
+     */
+    private void barrier() {
+	if (local == 0) {
+	    KThread coordinator = new KThread(new Runnable() {
+		    public void run() { coordinate(); }
+		}).setName("net benchmark coordinator");
+	    coordinator.fork();
+
+	    allReady.P();
+	}
+	else {
+	    send(0, controlPort, controlPort, READY, 0);
+
+	    while (true) {
+		MailMessage mail = postOffice.receive(controlPort);
+		if (kindOf(mail) == GO)
+		    break;
+	    }
+	}
+
+	started = true;
+    }
+
+    /**
+     * Answer <tt>READY</tt> messages on node 0. Keeps running after the
+     * barrier so that a node whose <tt>GO</tt> was lost still gets one when it
+     * resends its <tt>READY</tt>.
+     */
+    private void coordinate() {
+	boolean[] ready = new boolean[numNodes];
+	int numReady = 1;
+
+	while (true) {
+	    MailMessage mail = postOffice.receive(controlPort);
+	    int src = mail.packet.srcLink;
+
+	    if (kindOf(mail) != READY || src <= 0 || src >= numNodes)
+		continue;
+
+	    if (numReady < numNodes) {
+		if (!ready[src]) {
+		    ready[src] = true;
+		    numReady++;
+		}
+
+		if (numReady < numNodes)
+		    continue;
+
+		for (int i=1; i<numNodes; i++)
+		    send(i, controlPort, controlPort, GO, 0);
+
+		allReady.V();
+	    }
+	    else {
+		send(src, controlPort, controlPort, GO, 0);
+	    }
+	}
+    }
+
+    /**
+     * Send <tt>numMessages</tt> pings to node 0, one at a time, and record
+     * the round-trip time of each.
+     */
+    private void ping() {
+	rttTicks = new long[numMessages];
+	rttNanos = new long[numMessages];
+
+	for (int seq=0; seq<numMessages; seq++) {
+	    long sendTicks = Machine.timer().getTime();
+	    long sendNanos = System.nanoTime();
+
+	    outstandingPing = message(0, dataPort, replyPort, PING, seq);
+	    outstandingSeq = seq;
+	    postOffice.send(outstandingPing);
+
+	    while (true) {
+		MailMessage mail = postOffice.receive(replyPort);
+
+		// ignore the echoes of retransmitted pings
+		if (kindOf(mail) == PONG && seqOf(mail) == seq)
+		    break;
+	    }
+
+	    outstandingSeq = -1;
+
+	    rttTicks[seq] = Machine.timer().getTime() - sendTicks;
+	    rttNanos[seq] = System.nanoTime() - sendNanos;
+
+	    numSent++;
+	    bytesSent += messageSize;
+	}
+
+	send(0, dataPort, replyPort, END, numMessages);
+    }
+
+    /**
+     * Send <tt>numMessages</tt> data messages to every destination of this
+     * node, alternating between destinations, followed by an <tt>END</tt>
+     * carrying the number sent.
+     */
+    private void stream() {
+	for (int seq=0; seq<numMessages; seq++) {
+	    for (int dst=0; dst<numNodes; dst++) {
+		if (sendTo[dst]) {
+		    send(dst, dataPort, dataPort, DATA, seq);
+		    numSent++;
+		    bytesSent += messageSize;
+		}
+	    }
+	}
+
+	for (int dst=0; dst<numNodes; dst++) {
+	    if (sendTo[dst])
+		send(dst, dataPort, dataPort, END, numMessages);
+	}
+    }
+
+    /**
+     * Receive data and pings until every source has sent an <tt>END</tt>, or
+     * until the watchdog finds the data port idle <tt>idleLimit</tt> times in
+     * a row.
+     */
+    private void receive() {
+	int numEnded = 0;
+	int numIdle = 0;
+
+	while (numEnded < numSources && numIdle < idleLimit) {
+	    MailMessage mail = postOffice.receive(dataPort);
+	    int src = mail.packet.srcLink;
+	    int kind = kindOf(mail);
+
+	    if (kind == IDLE) {
+		numIdle++;
+		continue;
+	    }
+
+	    if (src < 0 || src >= numNodes || !receiveFrom[src])
+		continue;
+
+	    numIdle = 0;
+
+	    if (kind == END) {
+		if (sentBy[src] < 0)
+		    numEnded++;
+		sentBy[src] = Lib.bytesToInt(mail.contents, 1);
+		continue;
+	    }
+
+	    if (kind == PING)
+		send(src, mail.srcPort, dataPort, PONG, seqOf(mail));
+	    else if (kind != DATA)
+		continue;
+
+	    // sequence numbers from each source only increase, so anything
+	    // else is a retransmission
+	    if (seqOf(mail) <= lastSeqFrom[src]) {
+		numDuplicates++;
+		continue;
+	    }
+	    lastSeqFrom[src] = seqOf(mail);
+
+	    receivedFrom[src]++;
+	    numReceived++;
+	    bytesReceived += mail.contents.length;
+	    endReceiveTicks = Machine.timer().getTime();
+	    endReceiveNanos = System.nanoTime();
+	}
+
+	receiving = false;
+    }
+
+    /**
+     * Periodically retransmit whatever this node is waiting on, and unblock
+     * the receiver if nothing has arrived for a whole period.
+     */
+    private void watchdog() {
+	int lastSeq = -1;
+	int lastReceived = -1;
+
+	while (!finished) {
+	    ThreadedKernel.alarm.waitUntil(timeout);
+
+	    if (finished)
+		break;
+
+	    if (!started) {
+		if (local != 0)
+		    send(0, controlPort, controlPort, READY, 0);
+		continue;
+	    }
+
+	    int seq = outstandingSeq;
+	    if (seq >= 0 && seq == lastSeq) {
+		postOffice.send(outstandingPing);
+		numRetransmits++;
+	    }
+	    lastSeq = seq;
+
+	    if (receiving && numReceived == lastReceived)
+		postOffice.post(message(local, dataPort, dataPort, IDLE, 0));
+	    lastReceived = numReceived;
+	}
+    }
+
+    private void report() {
+	System.out.println("NetBenchmark results for node " + local + ":");
+
+	if (numSent > 0) {
+	    System.out.println("  sent " + numSent + " messages, " +
+			       bytesSent + " bytes" +
+			       rates(numSent, bytesSent,
+				     endSendTicks - startTicks,
+				     endSendNanos - startNanos));
+	}
+
+	if (numSources > 0) {
+	    System.out.println("  received " + numReceived + " messages, " +
+			       bytesReceived + " bytes" +
+			       rates(numReceived, bytesReceived,
+				     endReceiveTicks - startTicks,
+				     endReceiveNanos - startNanos));
+
+	    for (int src=0; src<numNodes; src++) {
+		if (!receiveFrom[src])
+		    continue;
+
+		if (sentBy[src] < 0) {
+		    System.out.println("  from node " + src + ": received " +
+				       receivedFrom[src] +
+				       ", sent unknown (END lost)");
+		}
+		else {
+		    System.out.println("  from node " + src + ": received " +
+				       receivedFrom[src] + " of " +
+				       sentBy[src] + ", lost " +
+				       (sentBy[src] - receivedFrom[src]));
+		}
+	    }
+
+	    System.out.println("  duplicates " + numDuplicates);
+	}
+
+	if (pinging) {
+	    Arrays.sort(rttTicks);
+	    Arrays.sort(rttNanos);
+
+	    System.out.println("  rtt ticks: " + percentiles(rttTicks, 1));
+	    System.out.println("  rtt usec:  " + percentiles(rttNanos, 1000));
+	    System.out.println("  retransmits " + numRetransmits);
+	}
+
+	NetworkLink link = Machine.networkLink();
+	System.out.println("  link: packets sent " + link.getNumPacketsSent() +
+			   ", received " + link.getNumPacketsReceived() +
+			   ", receive overflows " +
+			   link.getNumReceiveOverflows());
+    }
+
+    private static String rates(int messages, long bytes, long ticks,
+				long nanos) {
+	if (ticks <= 0 || nanos <= 0)
+	    return "";
+
+	double seconds = nanos / 1e9;
+
+	return " in " + ticks + " ticks (" + (nanos / 1000000) + " ms): " +
+	    (long) (messages / seconds) + " msgs/s, " +
+	    (long) (bytes / seconds) + " bytes/s, " +
+	    (ticks / Math.max(messages, 1)) + " ticks/msg";
+    }
+
+    private static String percentiles(long[] sorted, long divisor) {
+	return "p50 " + percentile(sorted, 50) / divisor +
+	    ", p90 " + percentile(sorted, 90) / divisor +
+	    ", p99 " + percentile(sorted, 99) / divisor +
+	    ", max " + sorted[sorted.length-1] / divisor;
+    }
+
+    private static long percentile(long[] sorted, int p) {
+	int index = (sorted.length * p + 99) / 100 - 1;
+
+	return sorted[Math.max(index, 0)];
+    }
+
+    private void send(int dstLink, int dstPort, int srcPort, int kind,
+		      int seq) {
+	postOffice.send(message(dstLink, dstPort, srcPort, kind, seq));
+    }
+
+    private MailMessage message(int dstLink, int dstPort, int srcPort,
+				int kind, int seq) {
+	byte[] contents = new byte[messageSize];
+
+	contents[0] = (byte) kind;
+	Lib.bytesFromInt(contents, 1, seq);
+
+	try {
+	    return new MailMessage(dstLink, dstPort, local, srcPort, contents);
+	}
+	catch (MalformedPacketException e) {
+	    Lib.assertNotReached();
+	    return null;
+	}
+    }
+
+    private static int kindOf(MailMessage mail) {
+	return mail.contents.length > 0 ? mail.contents[0] : -1;
+    }
+
+    private static int seqOf(MailMessage mail) {
+	if (mail.contents.length < headerLength)
+	    return -1;
+
+	return Lib.bytesToInt(mail.contents, 1);
+    }
+
+    private PostOffice postOffice;
+
+    private String pattern;
+    private int numNodes, numMessages, messageSize, timeout, idleLimit;
+    private int local;
+
+    private boolean pinging = false;
+    private boolean[] sendTo, receiveFrom;
+    private int numSources = 0;
+
+    private Semaphore allReady = new Semaphore(0);
+    private boolean started = false, receiving = false, finished = false;
+
+    private MailMessage outstandingPing = null;
+    private int outstandingSeq = -1;
+    private int numRetransmits = 0;
+    private long[] rttTicks, rttNanos;
+
+    private int numSent = 0, numReceived = 0;
+    private long bytesSent = 0, bytesReceived = 0;
+    private int numDuplicates = 0;
+    private int[] receivedFrom, sentBy, lastSeqFrom;
+
+    private long startTicks, endSendTicks, endReceiveTicks;
+    private long startNanos, endSendNanos, endReceiveNanos;
+
+    /** The port used for the start barrier. */
+    public static final int controlPort = 2;
+    /** The port on which data, pings and <tt>END</tt> messages arrive. */
+    public static final int dataPort = 3;
+    /** The port on which ping replies arrive. */
+    public static final int replyPort = 4;
+
+    /**
+     * The number of bytes at the start of each benchmark message: a one byte
+     * message kind followed by a four byte sequence number (or, for
+     * <tt>END</tt>, the number of messages sent).
+     */
+    private static final int headerLength = 5;
+
+    private static final int READY = 1, GO = 2, DATA = 3, PING = 4,
+	PONG = 5, END = 6, IDLE = 7;
+}
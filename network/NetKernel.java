@@ -31,10 +31,19 @@ public class NetKernel extends VMKernel {
      * 1 and sends replies. Then ping one or two hosts. Note that this test
      * assumes that the network is reliable (i.e. that the network's
      * reliability is 1.0).
+     *
+     * <p>
+     * If <tt>NetBenchmark.pattern</tt> is set, run a <tt>NetBenchmark</tt>
+     * instead.
      */
     public void selfTest() {
 	super.selfTest();
 
+	if (Config.getString("NetBenchmark.pattern", null) != null) {
+	    new NetBenchmark(postOffice).run();
+	    return;
+	}
+
 	KThread serverThread = new KThread(new Runnable() {
 		public void run() { pingServer(); }
 	    });
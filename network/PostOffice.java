@@ -66,6 +66,19 @@ public class PostOffice {
 	return mail;
     }
 
+    /**
+     * Place a message directly in a local mailbox, without sending it through
+     * the network link. Wakes up a thread waiting on the message's
+     * destination port.
+     *
+     * @param	mail	the message to deliver.
+     */
+    public void post(MailMessage mail) {
+	Lib.assertTrue(mail.dstPort >= 0 && mail.dstPort < queues.length);
+
+	queues[mail.dstPort].add(mail);
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
@@ -87,6 +100,10 @@ public class PostOffice {
 	    if (Lib.test(dbgNet))
 		System.out.println("delivering mail to port " + mail.dstPort
 				   + ": " + mail);
+	    if (Trace.enabled()) {
+		Trace.record(Trace.eventPacketReceive, mail.packet.srcLink,
+			     mail.dstPort);
+	    }
 
 	    // atomically add message to the mailbox and wake a waiting thread
 	    queues[mail.dstPort].add(mail);
@@ -110,6 +127,10 @@ public class PostOffice {
 
 	sendLock.acquire();
 
+	if (Trace.enabled()) {
+	    Trace.record(Trace.eventPacketSend, mail.packet.dstLink,
+			 mail.dstPort);
+	}
 	Machine.networkLink().send(mail.packet);
 	messageSent.P();
 
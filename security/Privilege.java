@@ -74,6 +74,19 @@ public abstract class Privilege {
     public abstract Object doPrivileged(PrivilegedExceptionAction action)
 	throws PrivilegedActionException;
 
+    /**
+     * Begin a privileged section. This is <tt>doPrivileged()</tt> without the
+     * action object, for device code that runs on every packet or file
+     * operation. Each call must be matched by a call to <tt>leave()</tt> in a
+     * <tt>finally</tt> clause, and the section must not block.
+     */
+    public abstract void enter();
+
+    /**
+     * End a privileged section begun by <tt>enter()</tt>.
+     */
+    public abstract void leave();
+
     /**
      * Exit Nachos with the specified status.
      *
@@ -149,6 +162,19 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Schedule an interrupt that only polls the host for input. When no
+	 * thread can run, simulated time may skip past it, so it must not
+	 * stand for an event the device has committed to deliver at that time.
+	 *
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 * @param	type	a name for the type of interrupt being
+	 *			scheduled.
+	 * @param	handler	the interrupt handler to call.
+	 */
+	public void schedulePoll(long when, String type, Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
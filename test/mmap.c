@@ -0,0 +1,47 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* well above any program's pages */
+#define MAPADDR ((char *) 0x100000)
+
+int main(int argc, char** argv)
+{
+  int fd, length, i, sum;
+  char *data = MAPADDR;
+
+  if (argc!=2) {
+    printf("Usage: mmap <file>\n");
+    return 1;
+  }
+
+  fd = open(argv[1]);
+  if (fd==-1) {
+    printf("Unable to open %s\n", argv[1]);
+    return 1;
+  }
+
+  length = mmap(fd, MAPADDR);
+  close(fd);
+  if (length==-1) {
+    printf("Unable to map %s\n", argv[1]);
+    return 1;
+  }
+
+  /* read every byte, and upper-case the file in place */
+  sum = 0;
+  for (i=0; i<length; i++) {
+    sum += data[i];
+    if (data[i] >= 'a' && data[i] <= 'z')
+      data[i] += 'A' - 'a';
+  }
+
+  if (munmap(MAPADDR)==-1) {
+    printf("Unable to unmap %s\n", argv[1]);
+    return 1;
+  }
+
+  printf("%s: %d bytes, sum %d\n", argv[1], length, sum);
+
+  return 0;
+}
@@ -6,6 +6,12 @@
 #define MAXARGSIZE	16
 #define MAXARGS		16
 
+#define MAXSTAGES	8
+
+/* where the shell keeps its own standard input and output during a pipeline */
+#define SAVEDSTDIN	14
+#define SAVEDSTDOUT	15
+
 /**
  * tokenizeCommand
  *
@@ -108,8 +114,101 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
     return numTokens;
 }
 
+/**
+ * runpipeline
+ *
+ * Runs the commands of a pipeline, separated by "|" tokens in argv, with
+ * the standard output of each connected by a pipe to the standard input of
+ * the next. Unless background is set, waits for every command to finish.
+ */
+static void runpipeline(int argc, char *argv[], int background) {
+    char prog[BUFFERSIZE];
+    int pids[MAXSTAGES];
+    int numStages = 0, start = 0, readFd = -1, failed = -1;
+    int i, status, fds[2];
+
+    dup2(fdStandardInput, SAVEDSTDIN);
+    dup2(fdStandardOutput, SAVEDSTDOUT);
+
+    for (i=0; i<=argc && failed == -1; i++) {
+	if (i < argc && strcmp(argv[i], "|") != 0)
+	    continue;
+
+	if (i == start || numStages == MAXSTAGES) {
+	    failed = start;
+	    break;
+	}
+
+	/* connect our output to the next command, or to the shell's */
+	fds[0] = -1;
+	if (i < argc) {
+	    if (pipe(fds) == -1) {
+		failed = start;
+		break;
+	    }
+	    dup2(fds[1], fdStandardOutput);
+	    close(fds[1]);
+	}
+	else {
+	    dup2(SAVEDSTDOUT, fdStandardOutput);
+	}
+
+	/* and our input to the previous command */
+	if (readFd != -1) {
+	    dup2(readFd, fdStandardInput);
+	    close(readFd);
+	}
+	readFd = fds[0];
+
+	strcpy(prog, argv[start]);
+	strcat(prog, ".coff");
+
+	pids[numStages] = exec(prog, i-start, &argv[start]);
+	if (pids[numStages] == -1)
+	    failed = start;
+	else
+	    numStages++;
+
+	start = i+1;
+    }
+
+    /* the commands hold the only references to the pipes now */
+    if (readFd != -1)
+	close(readFd);
+    dup2(SAVEDSTDIN, fdStandardInput);
+    dup2(SAVEDSTDOUT, fdStandardOutput);
+    close(SAVEDSTDIN);
+    close(SAVEDSTDOUT);
+
+    if (failed != -1) {
+	if (failed < argc && strcmp(argv[failed], "|") != 0)
+	    printf("%s: exec failed.\n", argv[failed]);
+	else
+	    printf("Invalid pipeline.\n");
+    }
+
+    for (i=0; i<numStages; i++) {
+	if (background) {
+	    printf("\n[%d]\n", pids[i]);
+	    continue;
+	}
+
+	switch (join(pids[i], &status)) {
+	case -1:
+	    printf("join: Invalid process ID.\n");
+	    break;
+	case 0:
+	    printf("\n[%d] Unhandled exception\n", pids[i]);
+	    break;
+	case 1:
+	    printf("\n[%d] Done (%d)\n", pids[i], status);
+	    break;
+	}
+    }
+}
+
 void runline(char* line) {
-    int pid, background, status;
+    int pid, background, status, i;
    
     char args[BUFFERSIZE], prog[BUFFERSIZE];
     char *argv[MAXARGS];
@@ -126,6 +225,13 @@ void runline(char* line) {
 	background = 0;
     }
 
+    for (i=0; i<argc; i++) {
+	if (strcmp(argv[i], "|") == 0) {
+	    runpipeline(argc, argv, background);
+	    return;
+	}
+    }
+
     if (argc > 0) {
 	if (strcmp(argv[0], "exit")==0) {
 	    if (argc == 1) {
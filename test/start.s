@@ -67,3 +67,18 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(pread, syscallPread)
+	SYSCALLSTUB(pwrite, syscallPwrite)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(ring_setup, syscallRingSetup)
+	SYSCALLSTUB(ring_enter, syscallRingEnter)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(dup2, syscallDup2)
+	SYSCALLSTUB(thread_create, syscallThreadCreate)
+	SYSCALLSTUB(thread_exit, syscallThreadExit)
+	SYSCALLSTUB(thread_join, syscallThreadJoin)
+	SYSCALLSTUB(futex_wait, syscallFutexWait)
+	SYSCALLSTUB(futex_wake, syscallFutexWake)
+	SYSCALLSTUB(checkpoint, syscallCheckpoint)
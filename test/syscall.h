@@ -25,6 +25,21 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallMunmap		13
+#define syscallPread		14
+#define syscallPwrite		15
+#define syscallReadv		16
+#define syscallWritev		17
+#define syscallRingSetup	18
+#define syscallRingEnter	19
+#define syscallPipe		20
+#define syscallDup2		21
+#define syscallThreadCreate	22
+#define syscallThreadExit	23
+#define syscallThreadJoin	24
+#define syscallFutexWait	25
+#define syscallFutexWake	26
+#define syscallCheckpoint	27
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -85,6 +100,9 @@ void exit(int status);
  * arguments to pass to the child process. argv[0] points to the first
  * argument, and argv[argc-1] points to the last argument.
  *
+ * The child starts with file descriptors 0 and 1 referring to the same files
+ * or pipes as the parent's; use dup2() before exec() to redirect them.
+ *
  * exec() returns the child process's process ID, which can be passed to
  * join(). On error, returns -1.
  */
@@ -181,6 +199,212 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * Like read(), but read from position pos of the file instead of the file
+ * position, which is neither used nor changed. Streams cannot be read this
+ * way.
+ *
+ * Returns the number of bytes read, or -1 if an error occurred.
+ */
+int pread(int fileDescriptor, void *buffer, int count, int pos);
+
+/**
+ * Like write(), but write at position pos of the file instead of the file
+ * position, which is neither used nor changed. Streams cannot be written
+ * this way.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred.
+ */
+int pwrite(int fileDescriptor, void *buffer, int count, int pos);
+
+/**
+ * One segment of a buffer for readv() and writev().
+ */
+struct iovec {
+    void *iov_base;	/* start of the segment */
+    int iov_len;	/* length of the segment in bytes */
+};
+
+/**
+ * Like read(), but scatter the data over the iovcnt segments described by
+ * iov, filling each before moving on to the next. At most 16 segments may be
+ * given. The whole transfer is a single read from the file, so a record
+ * split across several buffers costs one system call.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but gather the data from the iovcnt segments described by
+ * iov, in order, and write it with a single write to the file. At most 16
+ * segments may be given.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/* Operations for struct io_sqe. */
+#define IORING_OP_NOP		0
+#define IORING_OP_READ		1
+#define IORING_OP_WRITE		2
+
+/**
+ * An I/O request in the submission ring. A READ or WRITE with pos -1 uses
+ * (and advances) the file position, like read() and write(); otherwise it
+ * works like pread() or pwrite().
+ */
+struct io_sqe {
+    int opcode;
+    int fd;
+    void *buffer;
+    int length;
+    int pos;
+    int user_data;	/* copied to the completion */
+};
+
+/**
+ * The result of a request in the completion ring: what read() or write()
+ * would have returned.
+ */
+struct io_cqe {
+    int user_data;
+    int result;
+};
+
+/**
+ * The start of an I/O ring. It is followed in memory by entries submission
+ * entries and then entries completion entries; IORING_SQE() and IORING_CQE()
+ * find them. Request i goes in submission slot i mod entries, and likewise
+ * for completions.
+ */
+struct io_ring {
+    int sq_head;	/* advanced by the kernel as it takes requests */
+    int sq_tail;	/* advanced by the program as it adds requests */
+    int cq_head;	/* advanced by the program as it reaps completions */
+    int cq_tail;	/* advanced by the kernel as it posts completions */
+};
+
+#define IORING_SIZE(entries) \
+    (sizeof(struct io_ring) + \
+     (entries)*(sizeof(struct io_sqe) + sizeof(struct io_cqe)))
+#define IORING_SQE(ring, entries, i) \
+    ((struct io_sqe *) ((ring)+1) + (i)%(entries))
+#define IORING_CQE(ring, entries, i) \
+    ((struct io_cqe *) ((struct io_sqe *) ((ring)+1) + (entries)) + \
+     (i)%(entries))
+
+/**
+ * Set up an I/O ring of IORING_SIZE(entries) bytes at ring, with up to 256
+ * entries, and zero its heads and tails. A process can have only one ring.
+ *
+ * Requests added to the ring are carried out by kernel threads while the
+ * program keeps running, and may complete in any order. The kernel never
+ * has more requests outstanding than there is room for in the completion
+ * ring, so it stops taking requests while the completion ring is full.
+ * Reads and writes of pipes block, so they cannot go through a ring; they
+ * complete at once with -1. Requests with a position of -1 use the file
+ * position; they run one at a time on each file, though not necessarily in
+ * the order they were submitted.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int ring_setup(struct io_ring *ring, int entries);
+
+/**
+ * Submit up to toSubmit requests between sq_head and sq_tail, then wait
+ * until at least minComplete completions are waiting between cq_head and
+ * cq_tail, or until no requests are outstanding.
+ *
+ * Returns the number of requests submitted, or -1 if an error occurred.
+ */
+int ring_enter(int toSubmit, int minComplete);
+
+/**
+ * Create a pipe, and store a file descriptor for reading from it in fds[0]
+ * and one for writing to it in fds[1].
+ *
+ * Unlike the console, a pipe blocks: read() waits until there is data, and
+ * write() waits until all of its data fits in the pipe. Once every write
+ * descriptor is closed, read() returns the data left and then 0. Once every
+ * read descriptor is closed, write() returns -1.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/**
+ * Make newfd refer to the same file, stream or pipe as oldfd, closing
+ * whatever newfd referred to first. Both descriptors share the file
+ * position, and the file stays open until both are closed.
+ *
+ * Returns newfd on success, or -1 if an error occurred.
+ */
+int dup2(int oldfd, int newfd);
+
+/* THREAD SYSCALLS: thread_create(), thread_exit(), thread_join(),
+ * futex_wait(), futex_wake() */
+
+/**
+ * Start a new thread in the current process, running func(arg) on a stack of
+ * its own. The thread shares the process's memory and file descriptors.
+ * Returning from func ends the thread, with the return value as its exit
+ * status.
+ *
+ * Returns the new thread's ID, which can be passed to thread_join(). The
+ * thread running main() is thread 0. On error, returns -1.
+ */
+int thread_create(void (*func)(void *), void *arg);
+
+/**
+ * End the current thread. The process exits once its last thread has ended,
+ * with this status if exit() was never called.
+ *
+ * Calling exit() from any thread ends every thread of the process. A thread
+ * blocked in the kernel, for example reading an empty pipe, ends once it
+ * wakes up.
+ */
+void thread_exit(int status);
+
+/**
+ * Wait for another thread of this process to end, and store its exit status
+ * in *status unless status is 0. A thread can be joined only once.
+ *
+ * Returns 0 on success, or -1 if tid is not a thread that can be joined.
+ */
+int thread_join(int tid, int *status);
+
+/**
+ * If *addr still holds value, sleep until another thread calls futex_wake()
+ * on addr. The kernel compares the value while holding the lock that
+ * futex_wake() takes, so a wake made after changing *addr cannot be missed.
+ *
+ * Returns 0 once woken, or -1 if *addr did not hold value.
+ */
+int futex_wait(int *addr, int value);
+
+/**
+ * Wake up to count threads sleeping in futex_wait() on addr.
+ *
+ * Returns the number of threads woken.
+ */
+int futex_wake(int *addr, int count);
+
+/* CHECKPOINT SYSCALL: checkpoint() */
+
+/**
+ * Save this process to the file named name: its registers, its memory and
+ * its file descriptors. Running Nachos with UserKernel.restore set to that
+ * file resumes the process from this call instead of starting the shell.
+ * Files are reopened at the same positions; pipes are not saved, and are
+ * closed in the restored process. Only a process with one thread, no I/O
+ * ring and no mapped files can be saved.
+ *
+ * Returns 0 once the image is written, 1 in the restored process, or -1 if
+ * an error occurred.
+ */
+int checkpoint(char *name);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -215,19 +439,34 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
- *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * Map the file referenced by fileDescriptor into memory at address, which
+ * must be page-aligned and must not overlap the program or another mapping.
+ * The whole file is mapped; the rest of its last page reads as zeros. The
+ * file may be as large as 0x7FFFFFFF bytes.
+ *
+ * Only files can be mapped, not the console or pipes. Pages are read from
+ * the file the first time they are touched. Processes that map the same
+ * open file, one inherited through fork() or duplicated with dup2(), share
+ * its pages, so each sees the others' stores. The map stays in place, and
+ * keeps the file open, after the file descriptor is closed. Data written
+ * to the map reaches the file when munmap() is called or the process exits,
+ * or earlier if the page is evicted; read() and write() on the file do not
+ * see the map until then.
+ *
+ * The length of the file does not change, so stores past its end are lost.
  *
  * Returns the length of the file on success, or -1 if an error occurred.
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map that starts at address, writing its dirty pages back to the
+ * file.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
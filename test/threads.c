@@ -0,0 +1,59 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define NUMTHREADS	4
+#define SIZE		1024
+
+int data[SIZE];
+int sums[NUMTHREADS];
+
+/* workers wait here until main opens the gate */
+volatile int go = 0;
+
+int worker(void *arg)
+{
+  int id = (int) arg, i, sum = 0;
+
+  while (go == 0)
+    futex_wait((int *) &go, 0);
+
+  for (i=id; i<SIZE; i+=NUMTHREADS)
+    sum += data[i];
+  sums[id] = sum;
+
+  /* returning ends the thread, with the return value as its status */
+  return id;
+}
+
+int main(int argc, char** argv)
+{
+  int tids[NUMTHREADS];
+  int i, status, total = 0;
+
+  for (i=0; i<SIZE; i++)
+    data[i] = i;
+
+  for (i=0; i<NUMTHREADS; i++) {
+    tids[i] = thread_create((void (*)(void *)) worker, (void *) i);
+    if (tids[i]==-1) {
+      printf("Unable to create thread %d\n", i);
+      return 1;
+    }
+  }
+
+  go = 1;
+  futex_wake((int *) &go, NUMTHREADS);
+
+  for (i=0; i<NUMTHREADS; i++) {
+    if (thread_join(tids[i], &status)==-1 || status!=i) {
+      printf("Unable to join thread %d\n", i);
+      return 1;
+    }
+    total += sums[i];
+  }
+
+  printf("sum %d (expected %d)\n", total, SIZE*(SIZE-1)/2);
+
+  return 0;
+}
@@ -1,14 +1,19 @@
 package nachos.threads;
 
-import java.util.PriorityQueue;
-import java.util.Comparator;
-import javafx.util.Pair;
-
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hierarchical timing wheel: <tt>numLevels</tt>
+ * wheels of <tt>wheelSize</tt> slots each, where a slot of level <i>k</i>
+ * covers <tt>wheelSize</tt><sup><i>k</i></sup> ticks. A sleeper goes into the
+ * lowest level whose wheel reaches its wake time, so putting it to sleep or
+ * waking it early takes constant time. As time passes, each slot of a higher
+ * level is emptied into the levels below it just before its time comes, and
+ * every thread in a slot of level 0 is woken together.
  */
 public class Alarm {
     /**
@@ -19,7 +24,13 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
-	alarmQueue = new PriorityQueue<WaitingPair>(11, pairComp);
+	for (int level=0; level<numLevels; level++) {
+	    for (int i=0; i<wheelSize; i++)
+		wheels[level][i] = new Waiter();
+	}
+
+	current = Machine.timer().getTime();
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -27,22 +38,57 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes every thread
+     * whose time has come, then causes the current thread to yield, forcing
+     * a context switch if there is another thread that should be run.
      */
     public void timerInterrupt() {
-    	
-		KThread.currentThread().yield();
-	
-		boolean intStatus = Machine.interrupt().disable();
-	
-		while (!alarmQueue.isEmpty() && alarmQueue.peek().getKey() < Machine.timer().getTime()) {
-			KThread thread = alarmQueue.poll().getValue();
-			thread.ready();
+	boolean intStatus = Machine.interrupt().disable();
+
+	// wake sleepers first, so they can be chosen by this yield
+	advance(Machine.timer().getTime());
+
+	Machine.interrupt().restore(intStatus);
+
+	KThread.currentThread().yield();
+    }
+
+    /**
+     * Return the earliest time at which the timer interrupt handler will wake
+     * a sleeping thread.
+     *
+     * @return	the time the next sleeping thread is due, or
+     *		<tt>Long.MAX_VALUE</tt> if no thread is sleeping.
+     */
+    public long nextWakeTime() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	long wakeTime = Long.MAX_VALUE;
+
+	for (int level=0; level<numLevels; level++) {
+	    if (numWaiting[level] == 0)
+		continue;
+
+	    // level 0 starts at the current tick; a higher level's current
+	    // slot holds only sleepers a whole turn of the wheel away
+	    int start = slotIndex(level, current) + (level == 0 ? 0 : 1);
+	    for (int i=0; i<wheelSize; i++) {
+		Waiter slot = wheels[level][(start+i) & mask];
+		if (slot.next != slot) {
+		    for (Waiter w=slot.next; w != slot; w=w.next)
+			wakeTime = Math.min(wakeTime, w.time);
+		    break;
 		}
-	
-		Machine.interrupt().restore(intStatus);
+	    }
+	}
+
+	for (Waiter w=overflow.next; w != overflow; w=w.next)
+	    wakeTime = Math.min(wakeTime, w.time);
+
+	Machine.interrupt().restore(intStatus);
+
+	// threads wake once the time has passed their wake time
+	return (wakeTime == Long.MAX_VALUE ? wakeTime : wakeTime + 1);
     }
 
     /**
@@ -60,44 +106,208 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		long wakeTime = Machine.timer().getTime() + x;
-	
-		while(wakeTime > Machine.timer().getTime()) {
-			boolean intStatus = Machine.interrupt().disable();
-			
-			KThread tempTh = KThread.currentThread();
-			
-			WaitingPair temp_pair = new WaitingPair(wakeTime, tempTh);
-			
-			alarmQueue.add(temp_pair);
-			KThread.sleep();
-
-			Machine.interrupt().restore(intStatus);
-		}
+	waitUntil(x, new Waiter());
     }
-    
-    private class WaitingPair {
-    	public WaitingPair(long key, KThread value) {
-			this.key = key;
-			this.value = value;
-		}
-		public long getKey() {
-			return key;
+
+    /**
+     * Like <tt>waitUntil(x)</tt>, but another thread can wake the current
+     * thread early by calling <tt>waiter.cancel()</tt>. A waiter can be used
+     * for only one sleep; if it is cancelled before the sleep begins, this
+     * returns immediately.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	waiter	the handle another thread can cancel the sleep with.
+     * @return	<tt>true</tt> if the thread slept the whole time, or
+     *		<tt>false</tt> if the sleep was cancelled.
+     */
+    public boolean waitUntil(long x, Waiter waiter) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(waiter.alarm == null);
+
+	if (x > 0 && !waiter.cancelled) {
+	    waiter.alarm = this;
+	    waiter.thread = KThread.currentThread();
+	    waiter.time = Machine.timer().getTime() + x;
+
+	    insert(waiter);
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return !waiter.cancelled;
+    }
+
+    /**
+     * A sleeping thread's place in the wheel. Also serves as the head of each
+     * slot's circular list.
+     */
+    public static class Waiter {
+	/**
+	 * Allocate a new waiter, to pass to <tt>waitUntil()</tt>.
+	 */
+	public Waiter() {
+	    prev = next = this;
+	}
+
+	/**
+	 * Wake the thread sleeping with this waiter now, or if it has not
+	 * started to sleep yet, keep it from sleeping at all.
+	 *
+	 * @return	<tt>true</tt> if a thread was sleeping with this waiter.
+	 */
+	public boolean cancel() {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    boolean wasSleeping = (next != this);
+	    if (wasSleeping || alarm == null)
+		cancelled = true;
+
+	    if (wasSleeping) {
+		alarm.remove(this);
+		thread.ready();
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+
+	    return wasSleeping;
+	}
+
+	private Alarm alarm = null;
+	private KThread thread = null;
+	private long time;
+	private int level;
+	private boolean cancelled = false;
+	private Waiter prev, next;
+    }
+
+    /**
+     * Wake every thread due before <i>now</i>, moving sleepers down the
+     * levels as their slots come up.
+     */
+    private void advance(long now) {
+	while (current < now) {
+	    if (numWaiting[0] == 0) {
+		// nothing can expire before the next boundary of the lowest
+		// level that has sleepers, so skip straight to it
+		int level = 1;
+		while (level < numLevels && numWaiting[level] == 0)
+		    level++;
+
+		if (level == numLevels && overflow.next == overflow) {
+		    current = now;
+		    break;
 		}
-		public KThread getValue() {
-			return value;
+
+		long width = slotWidth(level);
+		long boundary = (current / width + 1) * width;
+		if (boundary > now) {
+		    current = now;
+		    break;
 		}
-		private long key;
-		private KThread value;
+
+		current = boundary;
+		cascade(current);
+		continue;
+	    }
+
+	    // every sleeper in this slot is due now
+	    Waiter slot = wheels[0][slotIndex(0, current)];
+	    while (slot.next != slot) {
+		Waiter waiter = slot.next;
+		remove(waiter);
+		waiter.thread.ready();
+	    }
+
+	    current++;
+	    if ((current & mask) == 0)
+		cascade(current);
 	}
-	
-	private Comparator<WaitingPair> pairComp = new Comparator<WaitingPair>() {
-		@Override
-		public int compare(WaitingPair x, WaitingPair y) {
-			return new Long(x.getKey()).compareTo(new Long(y.getKey()));
-		}
-	};
-    
-	private PriorityQueue<WaitingPair> alarmQueue;
+    }
+
+    /**
+     * Empty every slot that starts at <i>time</i> into the levels below,
+     * from the top down so that each is refilled before it is emptied.
+     */
+    private void cascade(long time) {
+	if (time % slotWidth(numLevels) == 0)
+	    reinsert(overflow);
+
+	for (int level=numLevels-1; level>0; level--) {
+	    if (time % slotWidth(level) == 0)
+		reinsert(wheels[level][slotIndex(level, time)]);
+	}
+    }
+
+    private void reinsert(Waiter slot) {
+	Waiter first = slot.next;
+	if (first == slot)
+	    return;
+
+	// detach the whole list, then put each back where it now belongs
+	Waiter last = slot.prev;
+	slot.prev = slot.next = slot;
+	last.next = null;
+
+	for (Waiter waiter=first; waiter != null; ) {
+	    Waiter next = waiter.next;
+	    if (waiter.level < numLevels)
+		numWaiting[waiter.level]--;
+	    insert(waiter);
+	    waiter = next;
+	}
+    }
+
+    private void insert(Waiter waiter) {
+	long delta = waiter.time - current;
+
+	int level = 0;
+	while (level < numLevels && delta >= slotWidth(level+1))
+	    level++;
+
+	Waiter slot;
+	if (level < numLevels) {
+	    slot = wheels[level][slotIndex(level, waiter.time)];
+	    numWaiting[level]++;
+	}
+	else {
+	    slot = overflow;
+	}
+
+	waiter.level = level;
+	waiter.prev = slot.prev;
+	waiter.next = slot;
+	slot.prev.next = waiter;
+	slot.prev = waiter;
+    }
+
+    private void remove(Waiter waiter) {
+	if (waiter.level < numLevels)
+	    numWaiting[waiter.level]--;
+
+	waiter.prev.next = waiter.next;
+	waiter.next.prev = waiter.prev;
+	waiter.prev = waiter.next = waiter;
+    }
+
+    private static long slotWidth(int level) {
+	return 1L << (level*wheelBits);
+    }
+
+    private static int slotIndex(int level, long time) {
+	return (int) ((time >> (level*wheelBits)) & mask);
+    }
+
+    private static final int wheelBits = 6;
+    private static final int wheelSize = 1 << wheelBits;
+    private static final int mask = wheelSize - 1;
+    private static final int numLevels = 4;
+
+    private Waiter[][] wheels = new Waiter[numLevels][wheelSize];
+    /** Sleepers due beyond the reach of the top level. */
+    private Waiter overflow = new Waiter();
+    private int[] numWaiting = new int[numLevels];
+    /** Every sleeper due before this time has been woken. */
+    private long current;
 }
@@ -0,0 +1,298 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries 32-bit words from speaking threads to listening
+ * threads, in the order they were spoken.
+ *
+ * <p>
+ * A channel with a capacity of 0 is a rendezvous: a speaker does not return
+ * until a listener has taken every word it spoke. A channel with a capacity
+ * of <i>N</i> holds up to <i>N</i> words that no listener has asked for yet
+ * in a ring of <tt>int</tt>s, so a speaker only waits when the ring is full.
+ *
+ * <p>
+ * A speaker that finds a listener waiting copies its words straight into the
+ * listener's buffer, and a listener that finds a speaker waiting copies them
+ * straight out of the speaker's. Each waiting thread is woken exactly once,
+ * when its whole request has been carried out.
+ */
+public class Channel {
+    /**
+     * Allocate a new rendezvous channel.
+     */
+    public Channel() {
+	this(0);
+    }
+
+    /**
+     * Allocate a new channel that buffers up to <i>capacity</i> words.
+     *
+     * @param	capacity	the number of words the channel can hold.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	ring = new int[capacity];
+    }
+
+    /**
+     * Send <i>word</i> through this channel.
+     *
+     * @param	word	the word to send.
+     */
+    public void speak(int word) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (listeners.next != listeners) {
+	    Waiter listener = listeners.next;
+	    listener.put(word);
+	    if (listener.remaining == 0)
+		finish(listener);
+	}
+	else if (count < ring.length) {
+	    ring[(head+count) % ring.length] = word;
+	    count++;
+	}
+	else {
+	    Waiter speaker = new Waiter(null, 0, 1);
+	    speaker.word = word;
+	    wait(speakers, speaker);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Send every word of <i>words</i> through this channel, in order.
+     *
+     * @param	words	the words to send.
+     */
+    public void speak(int[] words) {
+	speak(words, 0, words.length);
+    }
+
+    /**
+     * Send <i>length</i> words from <i>words</i>, starting at
+     * <i>offset</i>, through this channel in order. No other speaker's words
+     * are interleaved with them.
+     *
+     * @param	words	the array holding the words.
+     * @param	offset	the index of the first word to send.
+     * @param	length	the number of words to send.
+     */
+    public void speak(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= words.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Waiter speaker = new Waiter(words, offset, length);
+
+	// waiting listeners mean the ring is empty and nobody is ahead of us
+	while (speaker.remaining > 0 && listeners.next != listeners) {
+	    Waiter listener = listeners.next;
+	    transfer(speaker, listener);
+	    if (listener.remaining == 0)
+		finish(listener);
+	}
+
+	if (speakers.next == speakers) {
+	    while (speaker.remaining > 0 && count < ring.length) {
+		ring[(head+count) % ring.length] = speaker.take();
+		count++;
+	    }
+	}
+
+	if (speaker.remaining > 0)
+	    wait(speakers, speaker);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait for a word to arrive through this channel, and return it.
+     *
+     * @return	the word received.
+     */
+    public int listen() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int word;
+	if (count > 0) {
+	    word = ring[head];
+	    head = (head+1) % ring.length;
+	    count--;
+
+	    refill();
+	}
+	else if (speakers.next != speakers) {
+	    Waiter speaker = speakers.next;
+	    word = speaker.take();
+	    if (speaker.remaining == 0)
+		finish(speaker);
+	}
+	else {
+	    Waiter listener = new Waiter(null, 0, 1);
+	    wait(listeners, listener);
+	    word = listener.word;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return word;
+    }
+
+    /**
+     * Fill <i>words</i> with words received through this channel, waiting
+     * until enough have arrived.
+     *
+     * @param	words	the array to fill.
+     */
+    public void listen(int[] words) {
+	listen(words, 0, words.length);
+    }
+
+    /**
+     * Receive <i>length</i> words through this channel into <i>words</i>,
+     * starting at <i>offset</i>, waiting until enough have arrived. No other
+     * listener receives words in between them.
+     *
+     * @param	words	the array to store the words in.
+     * @param	offset	the index to store the first word at.
+     * @param	length	the number of words to receive.
+     */
+    public void listen(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= words.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Waiter listener = new Waiter(words, offset, length);
+
+	// listeners ahead of us get the words first
+	if (listeners.next == listeners) {
+	    while (listener.remaining > 0 && count > 0) {
+		int first = Math.min(Math.min(listener.remaining, count),
+				     ring.length - head);
+		System.arraycopy(ring, head, words, listener.offset, first);
+		listener.offset += first;
+		listener.remaining -= first;
+		head = (head+first) % ring.length;
+		count -= first;
+	    }
+
+	    while (listener.remaining > 0 && speakers.next != speakers) {
+		Waiter speaker = speakers.next;
+		transfer(speaker, listener);
+		if (speaker.remaining == 0)
+		    finish(speaker);
+	    }
+
+	    refill();
+	}
+
+	if (listener.remaining > 0)
+	    wait(listeners, listener);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of words held in the ring, waiting for a listener.
+     *
+     * @return	the number of buffered words.
+     */
+    public int size() {
+	return count;
+    }
+
+    /**
+     * Move the words of waiting speakers into the ring while it has room.
+     */
+    private void refill() {
+	while (count < ring.length && speakers.next != speakers) {
+	    Waiter speaker = speakers.next;
+	    while (speaker.remaining > 0 && count < ring.length) {
+		ring[(head+count) % ring.length] = speaker.take();
+		count++;
+	    }
+
+	    if (speaker.remaining == 0)
+		finish(speaker);
+	}
+    }
+
+    private static void transfer(Waiter from, Waiter to) {
+	int n = Math.min(from.remaining, to.remaining);
+
+	if (from.words != null && to.words != null) {
+	    System.arraycopy(from.words, from.offset, to.words, to.offset, n);
+	    from.offset += n;
+	    from.remaining -= n;
+	    to.offset += n;
+	    to.remaining -= n;
+	}
+	else {
+	    for (int i=0; i<n; i++)
+		to.put(from.take());
+	}
+    }
+
+    private static void wait(Waiter queue, Waiter waiter) {
+	waiter.thread = KThread.currentThread();
+	waiter.prev = queue.prev;
+	waiter.next = queue;
+	queue.prev.next = waiter;
+	queue.prev = waiter;
+
+	KThread.sleep();
+    }
+
+    private static void finish(Waiter waiter) {
+	waiter.prev.next = waiter.next;
+	waiter.next.prev = waiter.prev;
+
+	waiter.thread.ready();
+    }
+
+    /**
+     * A thread waiting to speak or listen, or the head of a queue of them.
+     * A request for a single word keeps it in <tt>word</tt> rather than an
+     * array.
+     */
+    private static class Waiter {
+	Waiter(int[] words, int offset, int remaining) {
+	    this.words = words;
+	    this.offset = offset;
+	    this.remaining = remaining;
+	}
+
+	int take() {
+	    remaining--;
+	    return (words == null ? word : words[offset++]);
+	}
+
+	void put(int value) {
+	    remaining--;
+	    if (words == null)
+		word = value;
+	    else
+		words[offset++] = value;
+	}
+
+	int[] words;
+	int offset, remaining;
+	int word;
+	KThread thread;
+	Waiter prev = this, next = this;
+    }
+
+    private int[] ring;
+    private int head = 0, count = 0;
+
+    /** Threads waiting to speak; never nonempty while listeners wait. */
+    private Waiter speakers = new Waiter(null, 0, 0);
+    private Waiter listeners = new Waiter(null, 0, 0);
+}
@@ -14,11 +14,6 @@ public class Communicator {
      * Allocate a new communicator.
      */
     public Communicator() {
-    	communicatorLock = new Lock();
-    	waitingListener = new Condition(communicatorLock);
-    	waitingSpeaker = new Condition(communicatorLock);
-    	dialog = null;
-    	listeners = 0;
     }
 
     /**
@@ -32,16 +27,7 @@ public class Communicator {
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
-    	communicatorLock.acquire();
-    	
-    	while(listeners == 0 || dialog != null) {
-    		waitingSpeaker.sleep();
-    	}
-    	dialog = new Integer(word);
-    	waitingListener.wake();
-    	listeners--;
-    	
-    	communicatorLock.release();
+	channel.speak(word);
     }
 
     /**
@@ -51,25 +37,9 @@ public class Communicator {
      * @return	the integer transferred.
      */    
     public int listen() {
-    	communicatorLock.acquire();
-    	
-	    listeners++;
-    	while(dialog == null) {
-    		waitingSpeaker.wake();
-	    	waitingListener.sleep();
-    	}
-    	
-    	int ret = dialog;
-    	dialog = null;
-    	waitingSpeaker.wake();
-    	
-    	communicatorLock.release();
-    	
-		return ret;
+	return channel.listen();
     }
-    private Lock communicatorLock;
-    private Condition waitingListener;
-    private Condition waitingSpeaker;
-    private Integer dialog;
-    private int listeners;
+
+    /** A communicator is a rendezvous channel. */
+    private Channel channel = new Channel(0);
 }
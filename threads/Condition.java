@@ -60,6 +60,7 @@ public class Condition {
      */
     public Condition(Lock conditionLock) {
 	this.conditionLock = conditionLock;
+	stats = LockStats.create("Condition", null);
 
 	waitQueue = new LinkedList<Semaphore>();
     }
@@ -82,8 +83,18 @@ public class Condition {
 	Semaphore waiter = new Semaphore(0);
 	waitQueue.add(waiter);
 
+	long startTicks = 0, startNanos = 0;
+	if (stats != null) {
+	    startTicks = Machine.timer().getTime();
+	    startNanos = System.nanoTime();
+	}
+
 	conditionLock.release();
 	waiter.P();
+
+	if (stats != null)
+	    stats.waited(startTicks, startNanos);
+
 	conditionLock.acquire();	
     }
 
@@ -110,5 +121,6 @@ public class Condition {
     }
 
     private Lock conditionLock;
+    private LockStats stats;
     private LinkedList<Semaphore> waitQueue;
 }
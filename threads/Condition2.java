@@ -22,6 +22,7 @@ public class Condition2 {
      */
     public Condition2(Lock conditionLock) {
 	this.conditionLock = conditionLock;
+	stats = LockStats.create("Condition2", null);
     }
 
     /**
@@ -33,12 +34,22 @@ public class Condition2 {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	conditionLock.release();
-	
+	// queue up before letting go of the lock, so no wake() is missed
 	boolean intStatus = Machine.interrupt().disable();
+
+	long startTicks = 0, startNanos = 0;
+	if (stats != null) {
+	    startTicks = Machine.timer().getTime();
+	    startNanos = System.nanoTime();
+	}
+	
+	conditionLock.release();
 	
 	waitThreads.waitForAccess(KThread.currentThread());
 	KThread.sleep();
+
+	if (stats != null)
+	    stats.waited(startTicks, startNanos);
 	
 	Machine.interrupt().restore(intStatus);
 
@@ -70,21 +81,18 @@ public class Condition2 {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	
 	
-	while(true) {
-		boolean intStatus = Machine.interrupt().disable();
-		
-		KThread temp = waitThreads.nextThread();
-		if(temp == null)
-			break;
-		
+	boolean intStatus = Machine.interrupt().disable();
+	
+	KThread temp;
+	while((temp = waitThreads.nextThread()) != null)
 		temp.ready();
-		
-		Machine.interrupt().restore(intStatus);
-	}
+	
+	Machine.interrupt().restore(intStatus);
 	
     }
 
     private Lock conditionLock;
+    private LockStats stats;
 	private ThreadQueue waitThreads = 
 			ThreadedKernel.scheduler.newThreadQueue(false);
 }
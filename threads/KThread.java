@@ -60,6 +60,12 @@ public class KThread {
 
 	    createIdleThread();
 	}
+
+	if (Metrics.enabled) {
+	    counters = new Metrics.Counters();
+	    Metrics.threadCreated(this);
+	}
+
     boolean intStatus = Machine.interrupt().disable();
     threadsToJoin.acquire(this);
     Machine.interrupt().restore(intStatus);
@@ -120,6 +126,16 @@ public class KThread {
 	return (name + " (#" + id + ")");
     }
 
+    /**
+     * Get this thread's counters.
+     *
+     * @return	the thread's counters, or <tt>null</tt> if metrics are not
+     *		being kept.
+     */
+    public Metrics.Counters getCounters() {
+	return counters;
+    }
+
     /**
      * Deterministically and consistently compare this thread to another
      * thread.
@@ -198,6 +214,9 @@ public class KThread {
 	toBeDestroyed = currentThread;
 
 	currentThread.status = statusFinished;
+
+	if (Metrics.enabled)
+	    Metrics.threadFinished(currentThread);
 	
 	//currentThread.finishedSemaphore.V();
     KThread toJoin;
@@ -317,7 +336,17 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    // skip ahead to whatever will next make a thread ready
+		    long wakeTime = Long.MAX_VALUE;
+		    if (ThreadedKernel.alarm != null)
+			wakeTime = ThreadedKernel.alarm.nextWakeTime();
+
+		    Machine.interrupt().idle(wakeTime);
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -363,16 +392,24 @@ public class KThread {
 
 	Machine.yield();
 
+	if (Metrics.enabled)
+	    Metrics.switchOut(currentThread);
+
 	currentThread.saveState();
 
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
+	if (Trace.enabled())
+	    Trace.contextSwitch(currentThread.id, id);
 
 	currentThread = this;
 
 	tcb.contextSwitch();
 
 	currentThread.restoreState();
+
+	if (Metrics.enabled)
+	    Metrics.switchIn(currentThread);
     }
 
     /**
@@ -646,6 +683,8 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    /** This thread's counters, if metrics are being kept. */
+    private Metrics.Counters counters = null;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
@@ -24,6 +24,17 @@ public class Lock {
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new lock with a name, under which its statistics are kept
+     * if <tt>LockStats.enabled</tt> is set.
+     *
+     * @param	name	the lock's name.
+     */
+    public Lock(String name) {
+	stats = LockStats.create("Lock", name);
     }
 
     /**
@@ -37,12 +48,27 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
+	    long startTicks = 0, startNanos = 0;
+	    if (stats != null) {
+		startTicks = Machine.timer().getTime();
+		startNanos = System.nanoTime();
+	    }
+
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
+
+	    if (stats != null)
+		stats.waited(startTicks, startNanos);
 	}
 	else {
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
+
+	    if (stats != null) {
+		stats.acquired();
+		heldTicks = Machine.timer().getTime();
+		heldNanos = System.nanoTime();
+	    }
 	}
 
 	Lib.assertTrue(lockHolder == thread);
@@ -58,6 +84,14 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (stats != null) {
+	    stats.released(heldTicks, heldNanos);
+
+	    // the next holder's hold starts when it is handed the lock
+	    heldTicks = Machine.timer().getTime();
+	    heldNanos = System.nanoTime();
+	}
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
@@ -74,6 +108,9 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
+    private LockStats stats;
+    /** When the current holder was given the lock, if stats are kept. */
+    private long heldTicks, heldNanos;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
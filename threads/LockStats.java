@@ -0,0 +1,201 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Counters and histograms for a group of locks, semaphores or condition
+ * variables. Every primitive with the same name, or allocated at the same
+ * place in the kernel when it has no name, shares one <tt>LockStats</tt>.
+ *
+ * <p>
+ * Instrumentation is off unless <tt>LockStats.enabled</tt> is set. When it is
+ * off, <tt>create()</tt> returns <tt>null</tt> and a primitive only tests
+ * that its <tt>stats</tt> field is <tt>null</tt>. When it is on, every
+ * acquisition is counted, along with those that had to wait, and the time
+ * spent waiting and holding is recorded both in simulated ticks and in host
+ * nanoseconds. <tt>print()</tt> reports every group, hottest first, when the
+ * kernel terminates.
+ */
+public class LockStats {
+    private LockStats(String kind, String key) {
+	this.kind = kind;
+	this.key = key;
+    }
+
+    /**
+     * Return the statistics shared by primitives of the specified kind and
+     * name.
+     *
+     * @param	kind	the kind of primitive, such as <tt>"Lock"</tt>.
+     * @param	name	the primitive's name, or <tt>null</tt> to use the place
+     *			in the kernel that allocated it.
+     * @return	the statistics, or <tt>null</tt> if instrumentation is off.
+     */
+    public static LockStats create(String kind, String name) {
+	if (!enabled)
+	    return null;
+
+	String key = (name != null ? name : allocationSite());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	LockStats stats = groups.get(kind + " " + key);
+	if (stats == null) {
+	    stats = new LockStats(kind, key);
+	    groups.put(kind + " " + key, stats);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return stats;
+    }
+
+    /**
+     * Return the first caller outside the synchronization primitives, as
+     * <tt>Class.method:line</tt>.
+     */
+    private static String allocationSite() {
+	StackTraceElement[] trace = new Throwable().getStackTrace();
+
+	for (int i=0; i<trace.length; i++) {
+	    String className = trace[i].getClassName();
+	    if (className.equals(LockStats.class.getName()) ||
+		className.equals(Lock.class.getName()) ||
+		className.equals(Semaphore.class.getName()) ||
+		className.equals(Condition.class.getName()) ||
+		className.equals(Condition2.class.getName()))
+		continue;
+
+	    String simpleName =
+		className.substring(className.lastIndexOf('.') + 1);
+	    return simpleName + "." + trace[i].getMethodName() + ":" +
+		trace[i].getLineNumber();
+	}
+
+	return "unknown";
+    }
+
+    /**
+     * Count one acquisition that did not have to wait.
+     */
+    public void acquired() {
+	numAcquires++;
+    }
+
+    /**
+     * Count one acquisition that had to wait, and record how long it waited.
+     *
+     * @param	startTicks	the simulated time at which the wait began.
+     * @param	startNanos	the host time at which the wait began.
+     */
+    public void waited(long startTicks, long startNanos) {
+	numAcquires++;
+	numContended++;
+
+	waitTicks.record(Machine.timer().getTime() - startTicks);
+	waitNanos.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record how long the current thread held a lock, and remember it if it
+     * is one of the longest holds so far.
+     *
+     * @param	startTicks	the simulated time at which the hold began.
+     * @param	startNanos	the host time at which the hold began.
+     */
+    public void released(long startTicks, long startNanos) {
+	long ticks = Machine.timer().getTime() - startTicks;
+
+	holdTicks.record(ticks);
+	holdNanos.record(System.nanoTime() - startNanos);
+
+	// replace the shortest of the longest holds
+	int shortest = 0;
+	for (int i=1; i<numHolders; i++) {
+	    if (longestTicks[i] < longestTicks[shortest])
+		shortest = i;
+	}
+
+	if (numHolders < longestHolders.length)
+	    shortest = numHolders++;
+	else if (ticks <= longestTicks[shortest])
+	    return;
+
+	longestTicks[shortest] = ticks;
+	longestHolders[shortest] = KThread.currentThread().toString();
+    }
+
+    /**
+     * Print the statistics of every group that was used, those that spent
+     * the longest waiting first. Does nothing if instrumentation is off.
+     */
+    public static void print() {
+	if (!enabled)
+	    return;
+
+	ArrayList<LockStats> used = new ArrayList<LockStats>();
+	for (LockStats stats : groups.values()) {
+	    if (stats.numAcquires > 0)
+		used.add(stats);
+	}
+
+	Collections.sort(used, new Comparator<LockStats>() {
+		public int compare(LockStats a, LockStats b) {
+		    int byWait = Long.compare(b.waitTicks.sum, a.waitTicks.sum);
+		    return (byWait != 0 ? byWait :
+			    Long.compare(b.numAcquires, a.numAcquires));
+		}
+	    });
+
+	for (LockStats stats : used)
+	    stats.printGroup();
+    }
+
+    private void printGroup() {
+	if (kind.startsWith("Condition")) {
+	    System.out.println(kind + " " + key + ": sleeps " + numAcquires);
+	}
+	else {
+	    System.out.println(kind + " " + key + ": acquires " + numAcquires +
+			       ", contended " + numContended);
+	}
+
+	if (waitTicks.count > 0) {
+	    System.out.println("    wait ticks " + waitTicks);
+	    System.out.println("    wait ns    " + waitNanos);
+	}
+
+	if (holdTicks.count > 0) {
+	    System.out.println("    hold ticks " + holdTicks);
+	    System.out.println("    hold ns    " + holdNanos);
+
+	    String holders = "";
+	    for (int i=0; i<numHolders; i++) {
+		holders += (i == 0 ? "" : ", ") + longestHolders[i] + " " +
+		    longestTicks[i];
+	    }
+	    System.out.println("    longest holders " + holders);
+	}
+    }
+
+    private static final boolean enabled =
+	Config.getBoolean("LockStats.enabled", false);
+    private static HashMap<String, LockStats> groups =
+	new HashMap<String, LockStats>();
+
+    private String kind, key;
+    private long numAcquires = 0, numContended = 0;
+    private Metrics.Histogram waitTicks = new Metrics.Histogram();
+    private Metrics.Histogram waitNanos = new Metrics.Histogram();
+    private Metrics.Histogram holdTicks = new Metrics.Histogram();
+    private Metrics.Histogram holdNanos = new Metrics.Histogram();
+
+    private String[] longestHolders = new String[4];
+    private long[] longestTicks = new long[longestHolders.length];
+    private int numHolders = 0;
+}
@@ -0,0 +1,521 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * A registry of named counters, gauges and histograms, with counters kept
+ * separately for every thread.
+ *
+ * <p>
+ * A counter is registered once by name, and from then on is updated by its
+ * index in the current thread's <tt>Counters</tt>, which no other thread
+ * touches. Simulated ticks are charged to the running thread at each context
+ * switch, and split into user and kernel time for threads that run user code.
+ * Other subsystems add <tt>Source</tt>s to report their own rows, such as the
+ * totals of each user process.
+ *
+ * <p>
+ * Metrics are off unless <tt>Metrics.enabled</tt> is set; threads then have
+ * no counters, and every update returns at once. When they are on, a snapshot
+ * is written every <tt>Metrics.interval</tt> ticks, if that is set, and once
+ * more when the kernel terminates. Snapshots are written as one JSON object
+ * per line, or as CSV rows if <tt>Metrics.format</tt> is <tt>csv</tt>, to the
+ * file named by <tt>Metrics.file</tt> in the stub file system, or to standard
+ * output.
+ */
+public class Metrics {
+    /**
+     * Register a counter, or find one that is already registered.
+     *
+     * @param	name	the counter's name.
+     * @return	the counter's index.
+     */
+    public static int counter(String name) {
+	for (int i=0; i<numCounters; i++) {
+	    if (counterNames[i].equals(name))
+		return i;
+	}
+
+	if (numCounters == counterNames.length) {
+	    String[] larger = new String[counterNames.length*2];
+	    System.arraycopy(counterNames, 0, larger, 0, numCounters);
+	    counterNames = larger;
+	}
+
+	counterNames[numCounters] = name;
+	return numCounters++;
+    }
+
+    /**
+     * Register a gauge, whose value is read each time a snapshot is taken.
+     *
+     * @param	name	the gauge's name.
+     * @param	gauge	the gauge.
+     */
+    public static void gauge(String name, Gauge gauge) {
+	if (enabled)
+	    gauges.put(name, gauge);
+    }
+
+    /**
+     * Register a histogram, or find one that is already registered.
+     *
+     * @param	name	the histogram's name.
+     * @return	the histogram.
+     */
+    public static Histogram histogram(String name) {
+	Histogram histogram = histograms.get(name);
+	if (histogram == null) {
+	    histogram = new Histogram();
+	    histograms.put(name, histogram);
+	}
+
+	return histogram;
+    }
+
+    /**
+     * Add a source of rows to every snapshot.
+     *
+     * @param	source	the source.
+     */
+    public static void addSource(Source source) {
+	if (enabled)
+	    sources.add(source);
+    }
+
+    /**
+     * Add <i>amount</i> to a counter of the current thread.
+     *
+     * @param	counter	the counter's index.
+     * @param	amount	the amount to add.
+     */
+    public static void add(int counter, long amount) {
+	if (enabled)
+	    KThread.currentThread().getCounters().add(counter, amount);
+    }
+
+    /**
+     * Note that the current thread has entered the kernel from user code.
+     */
+    public static void enterKernel() {
+	if (enabled) {
+	    Counters counters = KThread.currentThread().getCounters();
+	    counters.charge();
+	    counters.user = false;
+	}
+    }
+
+    /**
+     * Note that the current thread is about to return to user code.
+     */
+    public static void leaveKernel() {
+	if (enabled) {
+	    Counters counters = KThread.currentThread().getCounters();
+	    counters.charge();
+	    counters.user = true;
+	}
+    }
+
+    /**
+     * Start keeping counters for a new thread.
+     */
+    static void threadCreated(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	liveThreads.add(thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stop reporting a finished thread.
+     */
+    static void threadFinished(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	thread.getCounters().charge();
+	liveThreads.remove(thread);
+    }
+
+    /**
+     * Charge the time since the last switch to the thread giving up the CPU.
+     */
+    static void switchOut(KThread thread) {
+	thread.getCounters().charge();
+    }
+
+    /**
+     * Start charging time to the thread receiving the CPU.
+     */
+    static void switchIn(KThread thread) {
+	thread.getCounters().since = Machine.timer().getTime();
+    }
+
+    /**
+     * Begin writing snapshots. If <tt>Metrics.interval</tt> is set, fork a
+     * thread that writes one every <tt>Metrics.interval</tt> ticks.
+     */
+    public static void start() {
+	if (!enabled)
+	    return;
+
+	csv = Config.getString("Metrics.format", "json").equals("csv");
+	outputLock = new Lock();
+
+	String fileName = Config.getString("Metrics.file", null);
+	if (fileName != null && Machine.stubFileSystem() != null)
+	    file = Machine.stubFileSystem().open(fileName, true);
+
+	if (csv)
+	    write("time,scope,id,metric,value\n");
+
+	final int interval = Config.getInteger("Metrics.interval", 0);
+	if (interval > 0) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			while (true) {
+			    ThreadedKernel.alarm.waitUntil(interval);
+			    snapshot();
+			}
+		    }
+		}).setName("metrics").fork();
+	}
+    }
+
+    /**
+     * Write a last snapshot, and close the output file. Does nothing if
+     * metrics are off.
+     */
+    public static void finish() {
+	if (!enabled)
+	    return;
+
+	snapshot();
+
+	if (file != null)
+	    file.close();
+	file = null;
+    }
+
+    /**
+     * Write a snapshot of every gauge, histogram, live thread and source.
+     */
+    public static void snapshot() {
+	// writing to a file sleeps, so keep snapshots whole and in order
+	outputLock.acquire();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread.currentThread().getCounters().charge();
+
+	Snapshot snapshot = new Snapshot(Machine.timer().getTime());
+
+	for (Map.Entry<String, Gauge> e : gauges.entrySet())
+	    snapshot.value("gauge", "", e.getKey(), e.getValue().value());
+
+	for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+	    Histogram histogram = e.getValue();
+	    if (histogram.count == 0)
+		continue;
+
+	    snapshot.row("histogram", e.getKey(), histogramFields, new long[] {
+		    histogram.count, histogram.sum / histogram.count,
+		    histogram.percentile(0.5), histogram.percentile(0.99),
+		    histogram.max });
+	}
+
+	for (KThread thread : liveThreads)
+	    snapshot.counters("thread", thread.toString(), thread.getCounters());
+
+	for (Source source : sources)
+	    source.collect(snapshot);
+
+	Machine.interrupt().restore(intStatus);
+
+	write(snapshot.finish());
+
+	outputLock.release();
+    }
+
+    private static void write(String text) {
+	if (file == null) {
+	    System.out.print(text);
+	    return;
+	}
+
+	byte[] bytes = text.getBytes();
+	file.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * The counters of one thread, or the totals of several.
+     */
+    public static class Counters {
+	/**
+	 * Allocate a new set of counters, all zero.
+	 */
+	public Counters() {
+	}
+
+	/**
+	 * Add <i>amount</i> to a counter.
+	 *
+	 * @param	counter	the counter's index.
+	 * @param	amount	the amount to add.
+	 */
+	public void add(int counter, long amount) {
+	    if (counter >= values.length) {
+		long[] larger = new long[counterNames.length];
+		System.arraycopy(values, 0, larger, 0, values.length);
+		values = larger;
+	    }
+
+	    values[counter] += amount;
+	}
+
+	/**
+	 * Add every counter of <i>other</i> to these.
+	 *
+	 * @param	other	the counters to add.
+	 */
+	public void addAll(Counters other) {
+	    for (int i=other.values.length-1; i>=0; i--) {
+		if (other.values[i] != 0)
+		    add(i, other.values[i]);
+	    }
+	}
+
+	/**
+	 * Return the value of a counter.
+	 *
+	 * @param	counter	the counter's index.
+	 * @return	the counter's value.
+	 */
+	public long get(int counter) {
+	    return (counter < values.length ? values[counter] : 0);
+	}
+
+	private void charge() {
+	    long now = Machine.timer().getTime();
+	    add(user ? userTicks : kernelTicks, now - since);
+	    since = now;
+	}
+
+	private long[] values = new long[numCounters];
+	/** When time was last charged, and whether it was spent in user code. */
+	private long since = Machine.timer().getTime();
+	private boolean user = false;
+    }
+
+    /**
+     * A value read when each snapshot is taken.
+     */
+    public interface Gauge {
+	/**
+	 * Return the gauge's current value.
+	 *
+	 * @return	the value.
+	 */
+	long value();
+    }
+
+    /**
+     * Something that adds its own rows to each snapshot.
+     */
+    public interface Source {
+	/**
+	 * Add rows to a snapshot. Called with interrupts disabled.
+	 *
+	 * @param	snapshot	the snapshot being taken.
+	 */
+	void collect(Snapshot snapshot);
+    }
+
+    /**
+     * A histogram with a bucket for each power of two.
+     */
+    public static class Histogram {
+	/**
+	 * Record one value.
+	 *
+	 * @param	value	the value to record.
+	 */
+	public void record(long value) {
+	    if (value < 0)
+		value = 0;
+
+	    buckets[64 - Long.numberOfLeadingZeros(value)]++;
+	    count++;
+	    sum += value;
+	    max = Math.max(max, value);
+	}
+
+	/**
+	 * Return an upper bound on the value below which <i>fraction</i> of
+	 * the recorded values lie.
+	 *
+	 * @param	fraction	the fraction, between 0 and 1.
+	 * @return	the bound.
+	 */
+	public long percentile(double fraction) {
+	    long rank = (long) Math.ceil(count * fraction);
+	    long seen = 0;
+
+	    for (int i=0; i<buckets.length; i++) {
+		seen += buckets[i];
+		if (seen >= rank)
+		    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+	    }
+
+	    return max;
+	}
+
+	public String toString() {
+	    return "count " + count + ", mean " + (sum / count) +
+		", p50 " + percentile(0.5) + ", p99 " + percentile(0.99) +
+		", max " + max;
+	}
+
+	long[] buckets = new long[65];
+	long count = 0, sum = 0, max = 0;
+    }
+
+    /**
+     * The rows of one snapshot, as they are formatted.
+     */
+    public static class Snapshot {
+	private Snapshot(long time) {
+	    this.time = time;
+
+	    if (!csv)
+		text.append("{\"time\":" + time + ",\"rows\":[");
+	}
+
+	/**
+	 * Add a row holding every nonzero counter in <i>counters</i>.
+	 *
+	 * @param	scope		what kind of thing the row describes, such
+	 *				as <tt>"process"</tt>.
+	 * @param	id		which one it describes.
+	 * @param	counters	its counters.
+	 */
+	public void counters(String scope, String id, Counters counters) {
+	    int n = 0;
+	    for (int i=0; i<counters.values.length; i++) {
+		if (counters.values[i] != 0)
+		    n++;
+	    }
+
+	    String[] names = new String[n];
+	    long[] values = new long[n];
+	    n = 0;
+	    for (int i=0; i<counters.values.length; i++) {
+		if (counters.values[i] != 0) {
+		    names[n] = counterNames[i];
+		    values[n++] = counters.values[i];
+		}
+	    }
+
+	    row(scope, id, names, values);
+	}
+
+	/**
+	 * Add a row holding a single value.
+	 *
+	 * @param	scope	what kind of thing the row describes.
+	 * @param	id	which one it describes.
+	 * @param	name	the value's name.
+	 * @param	value	the value.
+	 */
+	public void value(String scope, String id, String name, long value) {
+	    row(scope, id, new String[] { name }, new long[] { value });
+	}
+
+	/**
+	 * Add a row holding several named values.
+	 *
+	 * @param	scope	what kind of thing the row describes.
+	 * @param	id	which one it describes.
+	 * @param	names	the values' names.
+	 * @param	values	the values.
+	 */
+	public void row(String scope, String id, String[] names,
+			long[] values) {
+	    if (csv) {
+		for (int i=0; i<names.length; i++) {
+		    text.append(time + "," + scope + "," + quote(id) + "," +
+				names[i] + "," + values[i] + "\n");
+		}
+		return;
+	    }
+
+	    text.append((numRows++ == 0 ? "" : ",") +
+			"{\"scope\":\"" + scope + "\",\"id\":" + quote(id));
+	    for (int i=0; i<names.length; i++)
+		text.append(",\"" + names[i] + "\":" + values[i]);
+	    text.append("}");
+	}
+
+	private String finish() {
+	    if (!csv)
+		text.append("]}\n");
+
+	    return text.toString();
+	}
+
+	/** Quote a string for JSON, or for CSV, which doubles quotes. */
+	private static String quote(String s) {
+	    if (csv)
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	    else
+		return "\"" + s.replace("\\", "\\\\")
+		    .replace("\"", "\\\"") + "\"";
+	}
+
+	private long time;
+	private StringBuilder text = new StringBuilder();
+	private int numRows = 0;
+    }
+
+    /** Whether metrics are being kept. */
+    public static final boolean enabled =
+	Config.getBoolean("Metrics.enabled", false);
+
+    private static String[] counterNames = new String[16];
+    private static int numCounters = 0;
+
+    /** Simulated ticks spent running user code. */
+    public static final int userTicks = counter("userTicks");
+    /** Simulated ticks spent running kernel code. */
+    public static final int kernelTicks = counter("kernelTicks");
+    /** Page faults taken. */
+    public static final int pageFaults = counter("pageFaults");
+    /** TLB misses taken. */
+    public static final int tlbMisses = counter("tlbMisses");
+    /** System calls made. */
+    public static final int syscalls = counter("syscalls");
+    /** Bytes read by system calls. */
+    public static final int bytesRead = counter("bytesRead");
+    /** Bytes written by system calls. */
+    public static final int bytesWritten = counter("bytesWritten");
+
+    private static LinkedHashMap<String, Gauge> gauges =
+	new LinkedHashMap<String, Gauge>();
+    private static LinkedHashMap<String, Histogram> histograms =
+	new LinkedHashMap<String, Histogram>();
+    private static ArrayList<Source> sources = new ArrayList<Source>();
+    private static LinkedHashSet<KThread> liveThreads =
+	new LinkedHashSet<KThread>();
+
+    private static final String[] histogramFields =
+	{ "count", "mean", "p50", "p99", "max" };
+
+    private static boolean csv = false;
+    private static OpenFile file = null;
+    private static Lock outputLock;
+}
@@ -28,7 +28,19 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, null);
+    }
+
+    /**
+     * Allocate a new semaphore with a name, under which its statistics are
+     * kept if <tt>LockStats.enabled</tt> is set.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the semaphore's name.
+     */
+    public Semaphore(int initialValue, String name) {
 	value = initialValue;
+	stats = LockStats.create("Semaphore", name);
     }
 
     /**
@@ -38,11 +50,23 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
+	    long startTicks = 0, startNanos = 0;
+	    if (stats != null) {
+		startTicks = Machine.timer().getTime();
+		startNanos = System.nanoTime();
+	    }
+
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
+
+	    if (stats != null)
+		stats.waited(startTicks, startNanos);
 	}
 	else {
 	    value--;
+
+	    if (stats != null)
+		stats.acquired();
 	}
 
 	Machine.interrupt().restore(intStatus);
@@ -99,6 +123,7 @@ public class Semaphore {
     }
 
     private int value;
+    private LockStats stats;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
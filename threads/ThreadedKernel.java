@@ -37,6 +37,8 @@ public class ThreadedKernel extends Kernel {
 	alarm  = new Alarm();
 
 	Machine.interrupt().enable();
+
+	Metrics.start();
     }
 
     /**
@@ -71,6 +73,9 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	LockStats.print();
+	Metrics.finish();
+
 	Machine.halt();
     }
 
@@ -0,0 +1,360 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+
+/**
+ * A pair of rings in a process's memory through which it submits I/O
+ * requests to the kernel and collects their results without waiting for
+ * each one. The rings are laid out in user memory as follows (all fields are
+ * 4-byte ints):
+ *
+ * <table>
+ * <tr><td>offset</td><td>field</td></tr>
+ * <tr><td>0</td><td>submission head, advanced by the kernel</td></tr>
+ * <tr><td>4</td><td>submission tail, advanced by the process</td></tr>
+ * <tr><td>8</td><td>completion head, advanced by the process</td></tr>
+ * <tr><td>12</td><td>completion tail, advanced by the kernel</td></tr>
+ * <tr><td>16</td><td><i>entries</i> submission entries of 24 bytes:
+ *	opcode, fd, buffer, length, position, user data</td></tr>
+ * <tr><td>16+24*<i>entries</i></td><td><i>entries</i> completion entries of
+ *	8 bytes: user data, result</td></tr>
+ * </table>
+ *
+ * <p>
+ * Entry <i>i</i> of either ring lives in slot <i>i</i> mod <i>entries</i>.
+ * Submitted requests are carried out by a pool of
+ * <tt>IORing.numWorkers</tt> kernel threads shared by every process, so
+ * they may complete in any order. The kernel never has more requests in
+ * flight than there is room for in the completion ring, so no completion is
+ * ever dropped. A request on a pipe completes at once with -1, since a pipe
+ * can block and would tie up a worker shared with other processes. Requests
+ * with a position of -1 use the file position, and only one of them at a
+ * time runs on any one file.
+ */
+public class IORing {
+    /**
+     * Set up a ring in a process's memory, and reset its heads and tails.
+     *
+     * @param	process	the process that owns the ring.
+     * @param	vaddr	the address of the ring.
+     * @param	entries	the number of entries in each ring.
+     */
+    public IORing(UserProcess process, int vaddr, int entries) {
+	Lib.assertTrue(entries > 0 && entries <= maxEntries);
+
+	this.process = process;
+	this.vaddr = vaddr;
+	this.entries = entries;
+
+	for (int offset=0; offset<headerSize; offset+=4)
+	    writeInt(offset, 0);
+
+	startWorkers();
+    }
+
+    /**
+     * Return the number of bytes a ring with <i>entries</i> entries
+     * occupies.
+     *
+     * @param	entries	the number of entries in each ring.
+     * @return	the size of the ring in bytes.
+     */
+    public static int size(int entries) {
+	return headerSize + entries*(sqeSize + cqeSize);
+    }
+
+    /**
+     * Submit up to <i>toSubmit</i> requests from the submission ring, then
+     * wait until at least <i>minComplete</i> completions are waiting to be
+     * collected.
+     *
+     * @param	toSubmit	the most requests to submit.
+     * @param	minComplete	the number of completions to wait for.
+     * @return	the number of requests submitted, or -1 if the ring cannot
+     *		be read.
+     */
+    public int enter(int toSubmit, int minComplete) {
+	lock.acquire();
+
+	int head = readInt(sqHeadOffset), tail = readInt(sqTailOffset);
+	int cqHead = readInt(cqHeadOffset);
+	if (head == -1 || tail == -1 || cqHead == -1) {
+	    lock.release();
+	    return -1;
+	}
+
+	int submitted = 0;
+	while (submitted < toSubmit && head != tail &&
+	       inFlight + (cqTail - cqHead) < entries) {
+	    byte[] sqe = new byte[sqeSize];
+	    if (process.readVirtualMemory(sqeAddress(head), sqe) != sqeSize)
+		break;
+
+	    OpenFile file = process.getOpenFile(Lib.bytesToInt(sqe, 4));
+	    Request request = new Request(Lib.bytesToInt(sqe, 0), file,
+					  Lib.bytesToInt(sqe, 8),
+					  Lib.bytesToInt(sqe, 12),
+					  Lib.bytesToInt(sqe, 16),
+					  Lib.bytesToInt(sqe, 20));
+
+	    head++;
+	    submitted++;
+	    inFlight++;
+
+	    // a pipe can block, and would hold a shared worker for as long
+	    if (file instanceof Pipe.End) {
+		post(request, -1);
+		continue;
+	    }
+
+	    queueLock.acquire();
+	    queue.add(request);
+	    requestQueued.wake();
+	    queueLock.release();
+	}
+
+	writeInt(sqHeadOffset, head);
+	numSubmitted += submitted;
+	numEnters++;
+
+	// don't wait for completions that can never come
+	while (inFlight > 0 && cqTail - readInt(cqHeadOffset) < minComplete &&
+	       !process.isExiting())
+	    completed.sleep();
+
+	lock.release();
+
+	return submitted;
+    }
+
+    /**
+     * Wake the threads waiting in <tt>enter()</tt>, so that threads of an
+     * exiting process stop waiting.
+     */
+    public void interrupt() {
+	lock.acquire();
+	completed.wakeAll();
+	lock.release();
+    }
+
+    /**
+     * Wait for every request in flight to finish. Called before the process's
+     * memory is freed.
+     */
+    public void close() {
+	lock.acquire();
+
+	while (inFlight > 0)
+	    completed.sleep();
+
+	lock.release();
+    }
+
+    /**
+     * Print the number of requests and <tt>enter()</tt> calls made through
+     * every ring.
+     */
+    public static void print() {
+	if (numEnters > 0) {
+	    System.out.println("I/O rings: enters " + numEnters +
+			       ", requests " + numSubmitted);
+	}
+    }
+
+    private void complete(Request request, int result) {
+	lock.acquire();
+	post(request, result);
+	lock.release();
+    }
+
+    /**
+     * Post a request's completion to the completion ring. Called with the
+     * lock held.
+     */
+    private void post(Request request, int result) {
+	byte[] cqe = new byte[cqeSize];
+	Lib.bytesFromInt(cqe, 0, request.userData);
+	Lib.bytesFromInt(cqe, 4, result);
+	process.writeVirtualMemory(cqeAddress(cqTail), cqe);
+
+	cqTail++;
+	writeInt(cqTailOffset, cqTail);
+	inFlight--;
+
+	completed.wakeAll();
+    }
+
+    private void perform(Request request) {
+	OpenFile file = request.file;
+	int result = -1;
+
+	if (request.opcode == opNop) {
+	    result = 0;
+	}
+	else if (file != null && request.buffer >= 0 && request.length >= 0) {
+	    byte[] buf = new byte[request.length];
+
+	    // the file position is read and advanced around a blocking call
+	    if (request.pos < 0)
+		lockPosition(file);
+
+	    if (request.opcode == opRead) {
+		int len = (request.pos < 0 ? file.read(buf, 0, buf.length)
+			   : file.read(request.pos, buf, 0, buf.length));
+		if (len != -1)
+		    result = process.writeVirtualMemory(request.buffer, buf, 0,
+							 len);
+	    }
+	    else if (request.opcode == opWrite) {
+		int len = process.readVirtualMemory(request.buffer, buf);
+		result = (request.pos < 0 ? file.write(buf, 0, len)
+			  : file.write(request.pos, buf, 0, len));
+	    }
+
+	    if (request.pos < 0)
+		unlockPosition(file);
+	}
+
+	complete(request, result);
+    }
+
+    /**
+     * Wait until no other worker is using the position of <i>file</i>, and
+     * claim it.
+     */
+    private static void lockPosition(OpenFile file) {
+	queueLock.acquire();
+	PositionLock position = positionLocks.get(file);
+	if (position == null) {
+	    position = new PositionLock();
+	    positionLocks.put(file, position);
+	}
+	position.users++;
+	queueLock.release();
+
+	position.lock.acquire();
+    }
+
+    private static void unlockPosition(OpenFile file) {
+	queueLock.acquire();
+	PositionLock position = positionLocks.get(file);
+	position.lock.release();
+	if (--position.users == 0)
+	    positionLocks.remove(file);
+	queueLock.release();
+    }
+
+    private int readInt(int offset) {
+	byte[] buf = new byte[4];
+	if (process.readVirtualMemory(vaddr + offset, buf) != 4)
+	    return -1;
+
+	return Lib.bytesToInt(buf, 0);
+    }
+
+    private void writeInt(int offset, int value) {
+	process.writeVirtualMemory(vaddr + offset, Lib.bytesFromInt(value));
+    }
+
+    private int sqeAddress(int index) {
+	return vaddr + headerSize + (index % entries)*sqeSize;
+    }
+
+    private int cqeAddress(int index) {
+	return vaddr + headerSize + entries*sqeSize + (index % entries)*cqeSize;
+    }
+
+    private static void startWorkers() {
+	if (workersStarted)
+	    return;
+
+	workersStarted = true;
+
+	int numWorkers = Config.getInteger("IORing.numWorkers", 4);
+	Lib.assertTrue(numWorkers > 0);
+
+	for (int i=0; i<numWorkers; i++) {
+	    new KThread(new Runnable() {
+		    public void run() { worker(); }
+		}).setName("io worker " + i).fork();
+	}
+    }
+
+    private static void worker() {
+	while (true) {
+	    queueLock.acquire();
+	    while (queue.isEmpty())
+		requestQueued.sleep();
+	    Request request = queue.removeFirst();
+	    queueLock.release();
+
+	    request.ring().perform(request);
+	}
+    }
+
+    private class Request {
+	Request(int opcode, OpenFile file, int buffer, int length, int pos,
+		int userData) {
+	    this.opcode = opcode;
+	    this.file = file;
+	    this.buffer = buffer;
+	    this.length = length;
+	    this.pos = pos;
+	    this.userData = userData;
+	}
+
+	IORing ring() {
+	    return IORing.this;
+	}
+
+	int opcode;
+	OpenFile file;
+	int buffer, length, pos, userData;
+    }
+
+    private static class PositionLock {
+	Lock lock = new Lock();
+	/** The number of workers holding or waiting for the lock. */
+	int users = 0;
+    }
+
+    private static final int
+	opNop = 0,
+	opRead = 1,
+	opWrite = 2;
+
+    private static final int
+	sqHeadOffset = 0,
+	sqTailOffset = 4,
+	cqHeadOffset = 8,
+	cqTailOffset = 12,
+	headerSize = 16,
+	sqeSize = 24,
+	cqeSize = 8;
+
+    /** The most entries a ring may have. */
+    public static final int maxEntries = 256;
+
+    private UserProcess process;
+    private int vaddr, entries;
+    private int cqTail = 0;
+    private int inFlight = 0;
+
+    private Lock lock = new Lock();
+    private Condition completed = new Condition(lock);
+
+    private static boolean workersStarted = false;
+    private static LinkedList<Request> queue = new LinkedList<Request>();
+    private static Lock queueLock = new Lock();
+    private static Condition requestQueued = new Condition(queueLock);
+    /** Serializes requests that use a file's position. */
+    private static IdentityHashMap<OpenFile, PositionLock> positionLocks =
+	new IdentityHashMap<OpenFile, PositionLock>();
+
+    private static int numEnters = 0, numSubmitted = 0;
+}
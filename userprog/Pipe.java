@@ -0,0 +1,263 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A one-way stream of bytes between processes, held in a ring buffer of
+ * <tt>Pipe.bufferSize</tt> bytes. Data written to the write end can be read
+ * from the read end.
+ *
+ * <p>
+ * Unlike the console, a pipe blocks: a read waits until there is something
+ * to read, and a write waits until everything has been written. Once every
+ * write end is closed, reads return what is left and then 0; once every read
+ * end is closed, writes fail.
+ */
+public class Pipe {
+    /**
+     * Allocate a new pipe. Nothing can use it until an end is opened.
+     */
+    public Pipe() {
+	buffer = new byte[Config.getInteger("Pipe.bufferSize", 4096)];
+	Lib.assertTrue(buffer.length > 0);
+    }
+
+    /**
+     * Return a new read end of this pipe.
+     *
+     * @return	an <tt>OpenFile</tt> that reads from this pipe.
+     */
+    public End openForReading() {
+	lock.acquire();
+	numReaders++;
+	lock.release();
+
+	return new End(false);
+    }
+
+    /**
+     * Return a new write end of this pipe.
+     *
+     * @return	an <tt>OpenFile</tt> that writes to this pipe.
+     */
+    public End openForWriting() {
+	lock.acquire();
+	numWriters++;
+	lock.release();
+
+	return new End(true);
+    }
+
+    /**
+     * Move up to <i>length</i> bytes out of the ring, into either a kernel
+     * buffer or, if <i>process</i> is not <tt>null</tt>, straight into the
+     * process's memory at <i>offset</i>.
+     */
+    private int read(UserProcess process, byte[] buf, int offset, int length) {
+	if (length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	while (count == 0 && numWriters > 0 && !exiting())
+	    dataAvailable.sleep();
+
+	if (count == 0 && numWriters > 0) {
+	    lock.release();
+	    return -1;
+	}
+
+	int done = 0;
+	while (done < length && count > 0) {
+	    // the run of data up to the end of the array
+	    int n = Math.min(Math.min(length-done, count),
+			     buffer.length - head);
+
+	    int copied = n;
+	    if (process != null)
+		copied = process.writeVirtualMemory(offset+done, buffer, head, n);
+	    else
+		System.arraycopy(buffer, head, buf, offset+done, n);
+
+	    head = (head + copied) % buffer.length;
+	    count -= copied;
+	    done += copied;
+
+	    if (copied < n)
+		break;
+	}
+
+	if (done > 0)
+	    spaceAvailable.wakeAll();
+
+	lock.release();
+
+	return done;
+    }
+
+    /**
+     * Move <i>length</i> bytes into the ring, from either a kernel buffer or,
+     * if <i>process</i> is not <tt>null</tt>, straight from the process's
+     * memory at <i>offset</i>. Returns -1 if the pipe has no readers.
+     */
+    private int write(UserProcess process, byte[] buf, int offset,
+		      int length) {
+	lock.acquire();
+
+	int done = 0;
+	while (done < length) {
+	    while (count == buffer.length && numReaders > 0 && !exiting())
+		spaceAvailable.sleep();
+
+	    if (numReaders == 0) {
+		done = -1;
+		break;
+	    }
+
+	    if (count == buffer.length) {
+		if (done == 0)
+		    done = -1;
+		break;
+	    }
+
+	    int tail = (head + count) % buffer.length;
+	    int n = Math.min(Math.min(length-done, buffer.length-count),
+			     buffer.length - tail);
+
+	    int copied = n;
+	    if (process != null)
+		copied = process.readVirtualMemory(offset+done, buffer, tail, n);
+	    else
+		System.arraycopy(buf, offset+done, buffer, tail, n);
+
+	    count += copied;
+	    done += copied;
+	    dataAvailable.wakeAll();
+
+	    if (copied < n)
+		break;
+	}
+
+	lock.release();
+
+	return done;
+    }
+
+    /**
+     * Test whether the current thread belongs to a process that is exiting,
+     * and so must not wait.
+     */
+    private static boolean exiting() {
+	UserProcess process = UserKernel.currentProcess();
+	return (process != null && process.isExiting());
+    }
+
+    private void interrupt() {
+	lock.acquire();
+	dataAvailable.wakeAll();
+	spaceAvailable.wakeAll();
+	lock.release();
+    }
+
+    private void close(boolean writer) {
+	lock.acquire();
+
+	if (writer)
+	    numWriters--;
+	else
+	    numReaders--;
+
+	// let blocked readers see the end of the stream, and writers the error
+	dataAvailable.wakeAll();
+	spaceAvailable.wakeAll();
+
+	lock.release();
+    }
+
+    /**
+     * One end of a pipe.
+     */
+    public class End extends OpenFile {
+	End(boolean writer) {
+	    super(null, "pipe");
+
+	    this.writer = writer;
+	}
+
+	/**
+	 * Read from the pipe directly into a process's memory, without an
+	 * intermediate buffer.
+	 *
+	 * @param	process	the process to read into.
+	 * @param	vaddr	the address to store the data at.
+	 * @param	length	the most bytes to read.
+	 * @return	the number of bytes read, or -1 if this is not a read
+	 *		end.
+	 */
+	public int read(UserProcess process, int vaddr, int length) {
+	    if (writer || closed || length < 0)
+		return -1;
+
+	    return Pipe.this.read(process, null, vaddr, length);
+	}
+
+	/**
+	 * Write to the pipe directly from a process's memory, without an
+	 * intermediate buffer.
+	 *
+	 * @param	process	the process to write from.
+	 * @param	vaddr	the address of the data.
+	 * @param	length	the number of bytes to write.
+	 * @return	the number of bytes written, or -1 if this is not a
+	 *		write end or the pipe has no readers.
+	 */
+	public int write(UserProcess process, int vaddr, int length) {
+	    if (!writer || closed || length < 0)
+		return -1;
+
+	    return Pipe.this.write(process, null, vaddr, length);
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    if (writer || closed)
+		return -1;
+
+	    return Pipe.this.read(null, buf, offset, length);
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    if (!writer || closed)
+		return -1;
+
+	    return Pipe.this.write(null, buf, offset, length);
+	}
+
+	/**
+	 * Wake every thread waiting on this pipe, so that threads of an
+	 * exiting process stop waiting.
+	 */
+	public void interrupt() {
+	    Pipe.this.interrupt();
+	}
+
+	public void close() {
+	    if (!closed) {
+		closed = true;
+		Pipe.this.close(writer);
+	    }
+	}
+
+	private boolean writer;
+	private boolean closed = false;
+    }
+
+    private byte[] buffer;
+    private int head = 0, count = 0;
+    private int numReaders = 0, numWriters = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 dataAvailable = new Condition2(lock);
+    private Condition2 spaceAvailable = new Condition2(lock);
+}
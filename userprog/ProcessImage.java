@@ -0,0 +1,300 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A saved copy of a single-threaded process: its user registers, its address
+ * space and its file descriptors. <tt>checkpoint()</tt> writes one to a file,
+ * and setting <tt>UserKernel.restore</tt> to that file makes a later run
+ * resume the process instead of starting the shell.
+ *
+ * <p>
+ * An image starts with a magic number and a version, as ints. The rest is
+ * compressed. Pages that are all zeros take one byte, for their flags. A
+ * descriptor is saved as the console, or as the name and position of a file
+ * in the kernel's file system. Pipes and other streams cannot be saved, so
+ * they are closed in the restored process.
+ */
+public class ProcessImage {
+    /**
+     * Allocate an empty image.
+     */
+    public ProcessImage() {
+    }
+
+    /**
+     * Write this image to a file.
+     *
+     * @param	file	the file to write.
+     * @return	<tt>true</tt> if the whole image was written.
+     */
+    public boolean write(OpenFile file) {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	try {
+	    DataOutputStream header = new DataOutputStream(bytes);
+	    header.writeInt(magic);
+	    header.writeInt(version);
+
+	    DataOutputStream out =
+		new DataOutputStream(new DeflaterOutputStream(bytes));
+
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		out.writeInt(registers[i]);
+
+	    out.writeInt(pages.length);
+	    for (int vpn=0; vpn<pages.length; vpn++) {
+		out.writeByte((readOnly[vpn] ? flagReadOnly : 0) |
+			      (pages[vpn] != null ? flagContents : 0));
+		if (pages[vpn] != null)
+		    out.write(pages[vpn]);
+	    }
+
+	    out.writeInt(fileNames.length);
+	    for (int fd=0; fd<fileNames.length; fd++) {
+		out.writeByte(fileKinds[fd]);
+		if (fileKinds[fd] == kindFile) {
+		    out.writeUTF(fileNames[fd]);
+		    out.writeInt(filePositions[fd]);
+		}
+	    }
+
+	    out.close();
+	}
+	catch (IOException e) {
+	    return false;
+	}
+
+	byte[] image = bytes.toByteArray();
+	return (file.write(image, 0, image.length) == image.length);
+    }
+
+    /**
+     * Read an image from a file.
+     *
+     * @param	file	the file to read.
+     * @return	the image, or <tt>null</tt> if the file is not a valid image.
+     */
+    public static ProcessImage read(OpenFile file) {
+	byte[] image = new byte[file.length()];
+	if (image.length <= 0 ||
+	    file.read(0, image, 0, image.length) != image.length)
+	    return null;
+
+	ProcessImage result = new ProcessImage();
+
+	try {
+	    ByteArrayInputStream bytes = new ByteArrayInputStream(image);
+
+	    DataInputStream header = new DataInputStream(bytes);
+	    if (header.readInt() != magic || header.readInt() != version)
+		return null;
+
+	    DataInputStream in =
+		new DataInputStream(new InflaterInputStream(bytes));
+
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		result.registers[i] = in.readInt();
+
+	    int numPages = in.readInt();
+	    if (numPages <= 0)
+		return null;
+
+	    result.setNumPages(numPages);
+	    for (int vpn=0; vpn<numPages; vpn++) {
+		int flags = in.readByte();
+		result.readOnly[vpn] = ((flags & flagReadOnly) != 0);
+		if ((flags & flagContents) != 0) {
+		    result.pages[vpn] = new byte[pageSize];
+		    in.readFully(result.pages[vpn]);
+		}
+	    }
+
+	    int numFiles = in.readInt();
+	    if (numFiles < 0)
+		return null;
+
+	    result.setNumFiles(numFiles);
+	    for (int fd=0; fd<numFiles; fd++) {
+		result.fileKinds[fd] = in.readByte();
+		if (result.fileKinds[fd] == kindFile) {
+		    result.fileNames[fd] = in.readUTF();
+		    result.filePositions[fd] = in.readInt();
+		}
+	    }
+	}
+	catch (IOException e) {
+	    return null;
+	}
+
+	return result;
+    }
+
+    /**
+     * Make room for an address space of <i>numPages</i> pages, all zeros.
+     *
+     * @param	numPages	the number of pages.
+     */
+    public void setNumPages(int numPages) {
+	pages = new byte[numPages][];
+	readOnly = new boolean[numPages];
+    }
+
+    /**
+     * Save the contents of a physical page as a virtual page of this image.
+     * A page of zeros is not stored.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page holding its contents.
+     * @param	readOnly	<tt>true</tt> if the page is read-only.
+     */
+    public void savePage(int vpn, int ppn, boolean readOnly) {
+	byte[] memory = Machine.processor().getMemory();
+
+	this.readOnly[vpn] = readOnly;
+	pages[vpn] = null;
+
+	for (int i=0; i<pageSize; i++) {
+	    if (memory[ppn*pageSize + i] != 0) {
+		pages[vpn] = new byte[pageSize];
+		System.arraycopy(memory, ppn*pageSize, pages[vpn], 0, pageSize);
+		break;
+	    }
+	}
+    }
+
+    /**
+     * Copy a virtual page of this image into a physical page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page to fill.
+     */
+    public void loadPage(int vpn, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	if (pages[vpn] != null)
+	    System.arraycopy(pages[vpn], 0, memory, ppn*pageSize, pageSize);
+	else
+	    java.util.Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize,
+				  (byte) 0);
+    }
+
+    /**
+     * Make room for <i>numFiles</i> file descriptors, all closed.
+     *
+     * @param	numFiles	the number of file descriptors.
+     */
+    public void setNumFiles(int numFiles) {
+	fileKinds = new int[numFiles];
+	fileNames = new String[numFiles];
+	filePositions = new int[numFiles];
+    }
+
+    /**
+     * Save what a file descriptor refers to.
+     *
+     * @param	fd	the file descriptor.
+     * @param	file	the file it refers to, or <tt>null</tt>.
+     */
+    public void saveFile(int fd, OpenFile file) {
+	fileKinds[fd] = kindClosed;
+
+	if (file == null)
+	    return;
+
+	if (UserKernel.console.isReader(file)) {
+	    fileKinds[fd] = kindConsoleReader;
+	}
+	else if (UserKernel.console.isWriter(file)) {
+	    fileKinds[fd] = kindConsoleWriter;
+	}
+	else if (file.getFileSystem() != null) {
+	    fileKinds[fd] = kindFile;
+	    fileNames[fd] = file.getName();
+	    filePositions[fd] = file.tell();
+	}
+    }
+
+    /**
+     * Reopen what a file descriptor referred to.
+     *
+     * @param	fd	the file descriptor.
+     * @return	the file, or <tt>null</tt> if it was closed or cannot be
+     *		reopened.
+     */
+    public OpenFile loadFile(int fd) {
+	switch (fileKinds[fd]) {
+	case kindConsoleReader:
+	    return UserKernel.console.openForReading();
+	case kindConsoleWriter:
+	    return UserKernel.console.openForWriting();
+	case kindFile:
+	    OpenFile file = UserKernel.fileSystem().open(fileNames[fd], false);
+	    if (file != null)
+		file.seek(filePositions[fd]);
+	    return file;
+	default:
+	    return null;
+	}
+    }
+
+    /**
+     * Return the number of pages in the saved address space.
+     *
+     * @return	the number of pages.
+     */
+    public int getNumPages() {
+	return pages.length;
+    }
+
+    /**
+     * Test whether a saved page is read-only.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is read-only.
+     */
+    public boolean isReadOnly(int vpn) {
+	return readOnly[vpn];
+    }
+
+    /**
+     * Return the number of saved file descriptors.
+     *
+     * @return	the number of file descriptors.
+     */
+    public int getNumFiles() {
+	return fileKinds.length;
+    }
+
+    /** The user registers to resume with. */
+    public int[] registers = new int[Processor.numUserRegisters];
+
+    private byte[][] pages = new byte[0][];
+    private boolean[] readOnly = new boolean[0];
+
+    private int[] fileKinds = new int[0];
+    private String[] fileNames = new String[0];
+    private int[] filePositions = new int[0];
+
+    private static final int magic = 0x474D4950;
+    private static final int version = 1;
+
+    private static final int flagReadOnly = 1, flagContents = 2;
+    private static final int
+	kindClosed = 0,
+	kindConsoleReader = 1,
+	kindConsoleWriter = 2,
+	kindFile = 3;
+
+    private static final int pageSize = Processor.pageSize;
+}
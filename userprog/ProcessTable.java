@@ -0,0 +1,390 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.userprog.*;
+
+/**
+ * A table of every user process, keyed by process ID.
+ *
+ * <p>
+ * Processes are kept in an open-addressing hash table of primitive
+ * <tt>int</tt>s, so looking one up neither boxes its PID nor takes a lock:
+ * every operation runs with interrupts disabled, which on the single
+ * simulated processor is enough to make it atomic. The table also links each
+ * process to its parent and its siblings, so a process's children can be
+ * found without a list of their own.
+ *
+ * <p>
+ * A process stays in the table after it exits, until its parent joins it or
+ * exits too. Its PID is then freed, and handed out again only after every
+ * PID freed before it.
+ */
+public class ProcessTable {
+    /**
+     * Allocate a new, empty process table.
+     */
+    public ProcessTable() {
+	allocate(16);
+    }
+
+    /**
+     * Add a process with no parent to the table.
+     *
+     * @param	process	the new process.
+     * @return	the process's PID.
+     */
+    public int add(UserProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int pid;
+	if (numFreePids > 0) {
+	    pid = freePids[freeHead];
+	    freeHead = (freeHead+1) % freePids.length;
+	    numFreePids--;
+	}
+	else {
+	    pid = ++lastPid;
+	}
+
+	insert(pid, process);
+
+	Machine.interrupt().restore(intStatus);
+
+	return pid;
+    }
+
+    /**
+     * Return the process with the specified PID.
+     *
+     * @param	pid	the process ID.
+     * @return	the process, or <tt>null</tt> if there is no such process.
+     */
+    public UserProcess get(int pid) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int slot = find(pid);
+	UserProcess process = (slot == -1 ? null : processes[slot]);
+
+	Machine.interrupt().restore(intStatus);
+
+	return process;
+    }
+
+    /**
+     * Return the PID of a process's parent.
+     *
+     * @param	pid	the process ID.
+     * @return	the parent's PID, or 0 if the process has no parent or does not
+     *		exist.
+     */
+    public int getParent(int pid) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int slot = find(pid);
+	int parent = (slot == -1 ? 0 : parents[slot]);
+
+	Machine.interrupt().restore(intStatus);
+
+	return parent;
+    }
+
+    /**
+     * Make one process the child of another. The child must not have a
+     * parent already.
+     *
+     * @param	pid		the child's PID.
+     * @param	parentPid	the parent's PID.
+     */
+    public void setParent(int pid, int parentPid) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int slot = find(pid), parentSlot = find(parentPid);
+	Lib.assertTrue(slot != -1 && parentSlot != -1 && parents[slot] == 0);
+
+	int next = firstChild[parentSlot];
+	if (next != 0)
+	    prevSibling[find(next)] = pid;
+
+	parents[slot] = parentPid;
+	prevSibling[slot] = 0;
+	nextSibling[slot] = next;
+	firstChild[parentSlot] = pid;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Detach a child from its parent, so that no other caller can join it.
+     * If the child has already exited, it is removed from the table; either
+     * way, the returned process remains valid for the caller to collect its
+     * exit status.
+     *
+     * @param	parentPid	the parent's PID.
+     * @param	pid		the child's PID.
+     * @return	the child, or <tt>null</tt> if it is not a child of
+     *		<i>parentPid</i>.
+     */
+    public UserProcess disown(int parentPid, int pid) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	UserProcess process = null;
+
+	int slot = find(pid);
+	if (slot != -1 && parentPid != 0 && parents[slot] == parentPid) {
+	    process = processes[slot];
+	    unlink(slot);
+
+	    if (exited[slot])
+		delete(slot);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return process;
+    }
+
+    /**
+     * Note that a process has exited. Its children lose their parent, and
+     * those that have already exited are removed. The process itself is
+     * removed unless its parent may still join it.
+     *
+     * @param	pid	the process ID.
+     */
+    public void exit(int pid) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int slot = find(pid);
+	Lib.assertTrue(slot != -1 && !exited[slot]);
+
+	exited[slot] = true;
+
+	// deleting leaves a tombstone, so no other slot moves
+	for (int child=firstChild[slot]; child != 0; ) {
+	    int childSlot = find(child);
+	    child = nextSibling[childSlot];
+
+	    parents[childSlot] = 0;
+	    prevSibling[childSlot] = nextSibling[childSlot] = 0;
+
+	    if (exited[childSlot])
+		delete(childSlot);
+	}
+	firstChild[slot] = 0;
+
+	if (parents[slot] == 0)
+	    delete(slot);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Remove a process that never ran, detaching it from its parent.
+     *
+     * @param	pid	the process ID.
+     */
+    public void remove(int pid) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int slot = find(pid);
+	Lib.assertTrue(slot != -1 && firstChild[slot] == 0);
+
+	unlink(slot);
+	delete(slot);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of processes in the table, including those that have
+     * exited but not been joined.
+     *
+     * @return	the number of processes.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Return the PIDs of every process in the table, in no particular order.
+     *
+     * @return	a new array holding every PID.
+     */
+    public int[] pids() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int[] pids = new int[size];
+	int n = 0;
+	for (int slot=0; slot<keys.length; slot++) {
+	    if (keys[slot] > 0)
+		pids[n++] = keys[slot];
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return pids;
+    }
+
+    /**
+     * Print a line for each process in the table, ordered by PID: its PID,
+     * its parent's PID, and whether it is running or has exited.
+     */
+    public void print() {
+	int[] pids = pids();
+	java.util.Arrays.sort(pids);
+
+	System.out.println("  PID  PPID  STATE");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<pids.length; i++) {
+	    int slot = find(pids[i]);
+	    if (slot == -1)
+		continue;
+
+	    System.out.println(pad(pids[i], 5) + pad(parents[slot], 6) + "  " +
+			       (exited[slot] ? "exited" : "running"));
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static String pad(int value, int width) {
+	String s = "" + value;
+	while (s.length() < width)
+	    s = " " + s;
+	return s;
+    }
+
+    /**
+     * Return the slot holding <i>pid</i>, or -1 if it is not in the table.
+     */
+    private int find(int pid) {
+	if (pid <= 0)
+	    return -1;
+
+	int mask = keys.length - 1;
+	for (int slot=hash(pid)&mask; keys[slot] != empty; slot=(slot+1)&mask) {
+	    if (keys[slot] == pid)
+		return slot;
+	}
+
+	return -1;
+    }
+
+    private void insert(int pid, UserProcess process) {
+	// keep at least a quarter of the slots empty, so probes stay short
+	if ((size + numDeleted + 1)*4 > keys.length*3)
+	    rehash((size+1)*2 > keys.length ? keys.length*2 : keys.length);
+
+	int mask = keys.length - 1;
+	int slot = hash(pid) & mask;
+	while (keys[slot] > 0)
+	    slot = (slot+1) & mask;
+
+	if (keys[slot] == deleted)
+	    numDeleted--;
+
+	keys[slot] = pid;
+	processes[slot] = process;
+	parents[slot] = firstChild[slot] = 0;
+	prevSibling[slot] = nextSibling[slot] = 0;
+	exited[slot] = false;
+	size++;
+    }
+
+    private void unlink(int slot) {
+	int parent = parents[slot];
+	if (parent == 0)
+	    return;
+
+	int prev = prevSibling[slot], next = nextSibling[slot];
+	if (prev != 0)
+	    nextSibling[find(prev)] = next;
+	else
+	    firstChild[find(parent)] = next;
+
+	if (next != 0)
+	    prevSibling[find(next)] = prev;
+
+	parents[slot] = 0;
+	prevSibling[slot] = nextSibling[slot] = 0;
+    }
+
+    private void delete(int slot) {
+	int pid = keys[slot];
+
+	keys[slot] = deleted;
+	processes[slot] = null;
+	size--;
+	numDeleted++;
+
+	if (numFreePids == freePids.length) {
+	    int[] larger = new int[freePids.length*2];
+	    for (int i=0; i<numFreePids; i++)
+		larger[i] = freePids[(freeHead+i) % freePids.length];
+	    freePids = larger;
+	    freeHead = 0;
+	}
+	freePids[(freeHead+numFreePids) % freePids.length] = pid;
+	numFreePids++;
+    }
+
+    private void rehash(int capacity) {
+	int[] oldKeys = keys, oldParents = parents, oldFirstChild = firstChild;
+	int[] oldPrevSibling = prevSibling, oldNextSibling = nextSibling;
+	UserProcess[] oldProcesses = processes;
+	boolean[] oldExited = exited;
+
+	allocate(capacity);
+
+	int mask = capacity - 1;
+	for (int i=0; i<oldKeys.length; i++) {
+	    if (oldKeys[i] <= 0)
+		continue;
+
+	    int slot = hash(oldKeys[i]) & mask;
+	    while (keys[slot] != empty)
+		slot = (slot+1) & mask;
+
+	    keys[slot] = oldKeys[i];
+	    processes[slot] = oldProcesses[i];
+	    parents[slot] = oldParents[i];
+	    firstChild[slot] = oldFirstChild[i];
+	    prevSibling[slot] = oldPrevSibling[i];
+	    nextSibling[slot] = oldNextSibling[i];
+	    exited[slot] = oldExited[i];
+	}
+
+	numDeleted = 0;
+    }
+
+    private void allocate(int capacity) {
+	keys = new int[capacity];
+	processes = new UserProcess[capacity];
+	parents = new int[capacity];
+	firstChild = new int[capacity];
+	prevSibling = new int[capacity];
+	nextSibling = new int[capacity];
+	exited = new boolean[capacity];
+    }
+
+    private static int hash(int pid) {
+	// consecutive PIDs land far apart
+	return (pid * 0x9E3779B9) >>> 8;
+    }
+
+    private static final int empty = 0, deleted = -1;
+
+    /** The PID in each slot, or <tt>empty</tt> or <tt>deleted</tt>. */
+    private int[] keys;
+    private UserProcess[] processes;
+    /** The PIDs of each process's parent, first child and siblings, or 0. */
+    private int[] parents, firstChild, prevSibling, nextSibling;
+    private boolean[] exited;
+    private int size = 0, numDeleted = 0;
+
+    /** Freed PIDs, oldest first, in a ring. */
+    private int[] freePids = new int[16];
+    private int freeHead = 0, numFreePids = 0;
+    private int lastPid = 0;
+}
@@ -0,0 +1,388 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A profiler for user programs, fed every instruction the processor executes.
+ *
+ * <p>
+ * Profiling is off unless <tt>Profiler.enabled</tt> is set. Each process then
+ * counts how often each of its instructions runs, in an <tt>int</tt> array
+ * for each virtual page that has run code. Every <tt>Profiler.interval</tt>
+ * instructions it also takes a sample of the current call stack. A shadow
+ * stack is kept for each thread: a <tt>jal</tt> or <tt>jalr</tt> pushes a
+ * frame, and a <tt>jr $ra</tt> pops back to the frame it returns to. If
+ * <tt>Profiler.exact</tt> is <tt>false</tt>, only the samples are counted.
+ *
+ * <p>
+ * Addresses are named after the external procedures in the executable's
+ * ECOFF symbol table, when it has one. Otherwise a function is named after its
+ * entry point. When the process exits, a flat profile and the sampled stacks
+ * in collapsed form, ready for a flame graph, are written to
+ * <tt><i>program</i>.<i>pid</i>.prof</tt> and
+ * <tt><i>program</i>.<i>pid</i>.folded</tt> in the stub file system, or to
+ * standard output if there is none.
+ */
+public class Profiler {
+    /**
+     * Allocate a profiler for a program.
+     *
+     * @param	name		the name of the executable.
+     * @param	executable	the executable, to read symbols from.
+     * @param	entryPoint	the program's entry point.
+     */
+    public Profiler(String name, OpenFile executable, int entryPoint) {
+	this.name = name;
+	this.entryPoint = entryPoint;
+
+	readSymbols(executable);
+    }
+
+    /**
+     * Start feeding the processor's instructions to the profiler of the
+     * process running them, if profiling is on.
+     */
+    public static void install() {
+	if (!enabled)
+	    return;
+
+	Machine.processor().setInstructionListener(
+	    new Processor.InstructionListener() {
+		public void executed(int pc, int instruction) {
+		    UThread thread = (UThread) KThread.currentThread();
+		    Profiler profiler = thread.process.profiler;
+		    if (profiler != null)
+			profiler.executed(thread, pc, instruction);
+		}
+	    });
+    }
+
+    /**
+     * Test whether profiling is on.
+     *
+     * @return	<tt>true</tt> if processes should be profiled.
+     */
+    public static boolean enabled() {
+	return enabled;
+    }
+
+    private void executed(UThread thread, int pc, int instruction) {
+	if (thread != lastThread) {
+	    lastThread = thread;
+	    lastStack = stacks.get(thread);
+	    if (lastStack == null) {
+		lastStack = new CallStack();
+		stacks.put(thread, lastStack);
+	    }
+	}
+
+	CallStack stack = lastStack;
+
+	if (exact)
+	    count(pc);
+
+	if (--untilSample == 0) {
+	    untilSample = interval;
+	    if (!exact)
+		count(pc);
+	    sample(stack, pc);
+	}
+
+	int op = instruction >>> 26;
+	int func = instruction & 0x3F;
+	int rs = (instruction >>> 21) & 0x1F;
+
+	if (op == opJal) {
+	    int target = ((pc+4) & 0xF0000000) | ((instruction & 0x3FFFFFF) << 2);
+	    stack.push(target, pc+8);
+	}
+	else if (op == 0 && func == funcJalr) {
+	    stack.push(Machine.processor().readRegister(rs), pc+8);
+	}
+	else if (op == 0 && func == funcJr && rs == Processor.regRA) {
+	    stack.popTo(Machine.processor().readRegister(Processor.regRA));
+	}
+    }
+
+    private void count(int pc) {
+	int vpn = pc >>> pageShift;
+	if (vpn >= pages.length) {
+	    int[][] larger = new int[Math.max(vpn+1, pages.length*2)][];
+	    System.arraycopy(pages, 0, larger, 0, pages.length);
+	    pages = larger;
+	}
+
+	if (pages[vpn] == null)
+	    pages[vpn] = new int[Processor.pageSize/4];
+
+	pages[vpn][(pc & (Processor.pageSize-1)) >>> 2]++;
+    }
+
+    private void sample(CallStack stack, int pc) {
+	StringBuilder key = new StringBuilder(functionName(entryPoint));
+	for (int i=0; i<stack.depth; i++)
+	    key.append(';').append(functionName(stack.entries[i]));
+
+	// the function the PC is in, if the shadow stack has lost track
+	String top = functionName(stack.depth == 0 ? entryPoint :
+				  stack.entries[stack.depth-1]);
+	String current = symbolName(pc);
+	if (current != null && !current.equals(top))
+	    key.append(';').append(current);
+
+	String stackName = key.toString();
+	int[] n = samples.get(stackName);
+	if (n == null)
+	    samples.put(stackName, n = new int[1]);
+	n[0]++;
+    }
+
+    /**
+     * Write out this process's profile. Called when the process exits.
+     *
+     * @param	pid	the process's ID.
+     */
+    public void report(int pid) {
+	// total the counts of each function, or of each address
+	final HashMap<String, long[]> totals = new HashMap<String, long[]>();
+	long total = 0;
+	for (int vpn=0; vpn<pages.length; vpn++) {
+	    if (pages[vpn] == null)
+		continue;
+
+	    for (int i=0; i<pages[vpn].length; i++) {
+		if (pages[vpn][i] == 0)
+		    continue;
+
+		int pc = (vpn << pageShift) + i*4;
+		String function = symbolName(pc);
+		if (function == null)
+		    function = "0x" + Lib.toHexString(pc);
+
+		long[] n = totals.get(function);
+		if (n == null)
+		    totals.put(function, n = new long[1]);
+		n[0] += pages[vpn][i];
+		total += pages[vpn][i];
+	    }
+	}
+
+	if (total == 0)
+	    return;
+
+	ArrayList<String> functions = new ArrayList<String>(totals.keySet());
+	Collections.sort(functions, new Comparator<String>() {
+		public int compare(String a, String b) {
+		    return Long.compare(totals.get(b)[0], totals.get(a)[0]);
+		}
+	    });
+
+	StringBuilder flat = new StringBuilder();
+	flat.append((exact ? "instructions" : "samples") + " of " + name +
+		    " (pid " + pid + "): " + total + "\n");
+	for (String function : functions) {
+	    long n = totals.get(function)[0];
+	    flat.append(pad("" + n, 12) + pad("" + (n*1000/total)/10.0, 7) +
+			"%  " + function + "\n");
+	}
+
+	StringBuilder folded = new StringBuilder();
+	for (Map.Entry<String, int[]> e : samples.entrySet())
+	    folded.append(e.getKey() + " " + e.getValue()[0] + "\n");
+
+	output(name + "." + pid + ".prof", flat.toString());
+	output(name + "." + pid + ".folded", folded.toString());
+    }
+
+    private static void output(String fileName, String text) {
+	FileSystem stubFileSystem = Machine.stubFileSystem();
+	OpenFile file = null;
+	if (stubFileSystem != null)
+	    file = stubFileSystem.open(fileName, true);
+
+	if (file == null) {
+	    System.out.print(text);
+	    return;
+	}
+
+	byte[] bytes = text.getBytes();
+	file.write(bytes, 0, bytes.length);
+	file.close();
+    }
+
+    private static String pad(String s, int width) {
+	while (s.length() < width)
+	    s = " " + s;
+	return s;
+    }
+
+    /**
+     * Return the name of the function starting at <i>entry</i>.
+     */
+    private String functionName(int entry) {
+	String name = symbolName(entry);
+	return (name != null ? name : "0x" + Lib.toHexString(entry));
+    }
+
+    /**
+     * Return the name of the procedure containing <i>address</i>, or
+     * <tt>null</tt> if the symbol table does not say.
+     */
+    private String symbolName(int address) {
+	int low = 0, high = symbolAddresses.length - 1, found = -1;
+	while (low <= high) {
+	    int mid = (low + high) >>> 1;
+	    if (symbolAddresses[mid] <= address) {
+		found = mid;
+		low = mid + 1;
+	    }
+	    else {
+		high = mid - 1;
+	    }
+	}
+
+	return (found == -1 ? null : symbolNames[found]);
+    }
+
+    /**
+     * Read the external procedure symbols of an ECOFF executable. Leaves the
+     * symbol table empty if there are none.
+     */
+    private void readSymbols(OpenFile executable) {
+	symbolAddresses = new int[0];
+	symbolNames = new String[0];
+
+	byte[] fileHeader = new byte[20];
+	if (executable.read(0, fileHeader, 0, 20) != 20)
+	    return;
+
+	int symbolicHeader = Lib.bytesToInt(fileHeader, 8);
+	byte[] hdrr = new byte[hdrrLength];
+	if (symbolicHeader <= 0 ||
+	    executable.read(symbolicHeader, hdrr, 0, hdrrLength) != hdrrLength ||
+	    Lib.bytesToUnsignedShort(hdrr, 0) != hdrrMagic)
+	    return;
+
+	int stringsLength = Lib.bytesToInt(hdrr, 64);
+	int stringsOffset = Lib.bytesToInt(hdrr, 68);
+	int numExternals = Lib.bytesToInt(hdrr, 88);
+	int externalsOffset = Lib.bytesToInt(hdrr, 92);
+	if (stringsLength <= 0 || numExternals <= 0)
+	    return;
+
+	byte[] strings = new byte[stringsLength];
+	byte[] externals = new byte[numExternals*extrLength];
+	if (executable.read(stringsOffset, strings, 0, strings.length) !=
+	    strings.length ||
+	    executable.read(externalsOffset, externals, 0, externals.length) !=
+	    externals.length)
+	    return;
+
+	final ArrayList<Integer> addresses = new ArrayList<Integer>();
+	ArrayList<String> names = new ArrayList<String>();
+	for (int i=0; i<numExternals; i++) {
+	    int offset = i*extrLength;
+	    int iss = Lib.bytesToInt(externals, offset+4);
+	    int value = Lib.bytesToInt(externals, offset+8);
+	    int st = externals[offset+12] & 0x3F;
+
+	    if ((st != stProc && st != stStaticProc) ||
+		iss < 0 || iss >= strings.length)
+		continue;
+
+	    int end = iss;
+	    while (end < strings.length && strings[end] != 0)
+		end++;
+
+	    addresses.add(value);
+	    names.add(new String(strings, iss, end-iss));
+	}
+
+	Integer[] order = new Integer[addresses.size()];
+	for (int i=0; i<order.length; i++)
+	    order[i] = i;
+	java.util.Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return Integer.compare(addresses.get(a), addresses.get(b));
+		}
+	    });
+
+	symbolAddresses = new int[order.length];
+	symbolNames = new String[order.length];
+	for (int i=0; i<order.length; i++) {
+	    symbolAddresses[i] = addresses.get(order[i]);
+	    symbolNames[i] = names.get(order[i]);
+	}
+    }
+
+    /**
+     * The calls a thread has made and not yet returned from.
+     */
+    private static class CallStack {
+	void push(int entry, int returnAddress) {
+	    if (depth == entries.length)
+		return;
+
+	    entries[depth] = entry;
+	    returns[depth] = returnAddress;
+	    depth++;
+	}
+
+	/**
+	 * Pop the frames down to the one that returns to <i>address</i>.
+	 * Leaves the stack alone if no frame does.
+	 */
+	void popTo(int address) {
+	    for (int i=depth-1; i>=0; i--) {
+		if (returns[i] == address) {
+		    depth = i;
+		    return;
+		}
+	    }
+	}
+
+	int[] entries = new int[maxDepth];
+	int[] returns = new int[maxDepth];
+	int depth = 0;
+    }
+
+    private static final boolean enabled =
+	Config.getBoolean("Profiler.enabled", false);
+    private static final boolean exact =
+	Config.getBoolean("Profiler.exact", true);
+    private static final int interval =
+	Math.max(1, Config.getInteger("Profiler.interval", 100));
+
+    private static final int opJal = 3, funcJr = 8, funcJalr = 9;
+    private static final int pageShift = 10;
+    private static final int maxDepth = 256;
+
+    private static final int hdrrMagic = 0x7009, hdrrLength = 96;
+    private static final int extrLength = 16;
+    private static final int stProc = 6, stStaticProc = 14;
+
+    private String name;
+    private int entryPoint;
+    private int[] symbolAddresses;
+    private String[] symbolNames;
+
+    /** The count of each instruction, by virtual page. */
+    private int[][] pages = new int[16][];
+    private int untilSample = interval;
+    /** The number of samples of each call stack, in collapsed form. */
+    private HashMap<String, int[]> samples = new HashMap<String, int[]>();
+
+    private IdentityHashMap<UThread, CallStack> stacks =
+	new IdentityHashMap<UThread, CallStack>();
+    private UThread lastThread = null;
+    private CallStack lastStack = null;
+}
@@ -7,6 +7,24 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output is buffered. Writers copy their bytes into a ring buffer of
+ * <tt>SynchConsole.outputBufferSize</tt> bytes and return; the send interrupt
+ * handler feeds the buffer to the console a block at a time, and wakes a
+ * blocked writer only once half of the buffer is free again.
+ *
+ * <p>
+ * Input is read ahead. The receive interrupt handler moves every byte the
+ * console has into an input buffer of <tt>SynchConsole.inputBufferSize</tt>
+ * bytes, as long as there is room. Once the buffer is full the rest stays in
+ * the console, which stops taking input from its host, until a read makes
+ * room again; so no input is ever lost. In raw mode the bytes can be read
+ * immediately. If <tt>SynchConsole.lineMode</tt> is <tt>true</tt>, the
+ * buffer applies a line discipline instead: backspaces erase the previous
+ * byte of the current line, and nothing in a line can be read until its
+ * newline arrives, so a blocked reader is woken once per line. Neither mode
+ * echoes; user programs such as <tt>readline()</tt> do their own echoing.
  */
 public class SynchConsole {
     /**
@@ -16,6 +34,16 @@ public class SynchConsole {
      */
     public SynchConsole(SerialConsole console) {
 	this.console = console;
+
+	outputBuffer = new byte[Config.getInteger("SynchConsole.outputBufferSize",
+						  defaultOutputBufferSize)];
+	Lib.assertTrue(outputBuffer.length > 0);
+	wakeThreshold = Math.max(outputBuffer.length / 2, 1);
+
+	inputBuffer = new byte[Config.getInteger("SynchConsole.inputBufferSize",
+						 defaultInputBufferSize)];
+	Lib.assertTrue(inputBuffer.length > 0);
+	lineMode = Config.getBoolean("SynchConsole.lineMode", false);
 	
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -37,24 +65,72 @@ public class SynchConsole {
      *		and no byte was available.
      */
     public int readByte(boolean block) {
-	int value;
-	boolean intStatus = Machine.interrupt().disable();	
 	readLock.acquire();
 
-	if (block || charAvailable) {
-	    charAvailable = false;
-	    readWait.P();
+	int value = -1;
+	if (readBuffered(readByteBuffer, 0, 1, block) > 0)
+	    value = readByteBuffer[0]&0xFF;
+
+	readLock.release();
+
+	return value;
+    }
+
+    /**
+     * Read up to <i>length</i> bytes that have already arrived, in one copy
+     * from the input buffer. If nothing has arrived, blocks until something
+     * does (in line mode, until a whole line has), or returns immediately,
+     * depending on the value of <i>block</i>.
+     *
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	length	the maximum number of bytes to read.
+     * @param	block	<tt>true</tt> if this should wait for input if none is
+     *			available.
+     * @return	the number of bytes read.
+     */
+    public int read(byte[] buf, int offset, int length, boolean block) {
+	readLock.acquire();
+
+	int amount = readBuffered(buf, offset, length, block);
 
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
+	readLock.release();
+
+	return amount;
+    }
+
+    /**
+     * Copy input out of the input buffer for <tt>read()</tt>. Called with
+     * the read lock held.
+     */
+    private int readBuffered(byte[] buf, int offset, int length,
+			     boolean block) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (block && length > 0 && inputReadable == 0) {
+	    readerWaiting = true;
+	    readWait.P();
 	}
-	else {
-	    value = -1;
+
+	int amount = Math.min(length, inputReadable);
+	int first = Math.min(amount, inputBuffer.length - inputHead);
+
+	System.arraycopy(inputBuffer, inputHead, buf, offset, first);
+	System.arraycopy(inputBuffer, 0, buf, offset+first, amount-first);
+
+	inputHead = (inputHead+amount) % inputBuffer.length;
+	inputCount -= amount;
+	inputReadable -= amount;
+
+	// take the input the console was left holding, now there's room
+	if (receiveStalled && amount > 0) {
+	    receiveStalled = false;
+	    receive();
 	}
 
-	readLock.release();
 	Machine.interrupt().restore(intStatus);
-	return value;
+
+	return amount;
     }
 
     /**
@@ -67,19 +143,131 @@ public class SynchConsole {
     }
 
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	receive();
+    }
+
+    /**
+     * Take everything the console has that fits in the input buffer, even if
+     * nobody is reading yet. Called with interrupts disabled.
+     */
+    private void receive() {
+	while (true) {
+	    int room = Math.min(receiveBlock.length,
+				inputBuffer.length - inputCount);
+	    if (room == 0) {
+		// leave the rest in the console until a read makes room
+		receiveStalled = true;
+		break;
+	    }
+
+	    int amount = console.readBytes(receiveBlock, 0, room);
+	    if (amount == 0)
+		break;
+
+	    for (int i=0; i<amount; i++)
+		receiveByte(receiveBlock[i]);
+	}
+
+	if (readerWaiting && inputReadable > 0) {
+	    readerWaiting = false;
+	    readWait.V();
+	}
+    }
+
+    private void receiveByte(byte value) {
+	if (lineMode && value == '\b') {
+	    if (inputCount > inputReadable)
+		inputCount--;
+	    return;
+	}
+
+	Lib.assertTrue(inputCount < inputBuffer.length);
+
+	inputBuffer[(inputHead+inputCount) % inputBuffer.length] = value;
+	inputCount++;
+
+	// a full buffer has to be readable, or a long line would wedge it
+	if (!lineMode || value == '\n' || inputCount == inputBuffer.length)
+	    inputReadable = inputCount;
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Send a byte. Blocks only if the output buffer is full.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+
+	writeByteBuffer[0] = (byte) value;
+	writeBuffered(writeByteBuffer, 0, 1);
+
+	writeLock.release();
+    }
+
+    /**
+     * Send bytes. Copies as much as fits into the output buffer at once, and
+     * blocks only while the buffer is full. Returns once every byte is in the
+     * buffer; the bytes reach the console later, in order.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the offset of the first byte to send.
+     * @param	length	the number of bytes to send.
+     */
+    public void write(byte[] buf, int offset, int length) {
+	writeLock.acquire();
+
+	writeBuffered(buf, offset, length);
+
+	writeLock.release();
+    }
+
+    /**
+     * Copy bytes into the output buffer for <tt>write()</tt>. Called with
+     * the write lock held.
+     */
+    private void writeBuffered(byte[] buf, int offset, int length) {
+	while (length > 0) {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    while (outputCount == outputBuffer.length) {
+		writerWaiting = true;
+		writeWait.P();
+	    }
+
+	    int amount = Math.min(length, outputBuffer.length - outputCount);
+	    int tail = (outputHead + outputCount) % outputBuffer.length;
+	    int first = Math.min(amount, outputBuffer.length - tail);
+
+	    System.arraycopy(buf, offset, outputBuffer, tail, first);
+	    System.arraycopy(buf, offset+first, outputBuffer, 0, amount-first);
+	    outputCount += amount;
+
+	    offset += amount;
+	    length -= amount;
+
+	    if (outputSending == 0)
+		startSend();
+
+	    Machine.interrupt().restore(intStatus);
+	}
+    }
+
+    /**
+     * Wait until every buffered byte has been sent to the console.
+     */
+    public void flush() {
+	writeLock.acquire();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (outputCount > 0) {
+	    flushWaiting = true;
+	    flushWait.P();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
 	writeLock.release();
     }
 
@@ -92,17 +280,86 @@ public class SynchConsole {
 	return new File(false, true);
     }
 
+    /**
+     * Test whether a file was returned by <tt>openForReading()</tt> and is
+     * still open.
+     *
+     * @param	file	the file to test.
+     * @return	<tt>true</tt> if <i>file</i> reads this console.
+     */
+    public boolean isReader(OpenFile file) {
+	return (file instanceof File && ((File) file).canRead);
+    }
+
+    /**
+     * Test whether a file was returned by <tt>openForWriting()</tt> and is
+     * still open.
+     *
+     * @param	file	the file to test.
+     * @return	<tt>true</tt> if <i>file</i> writes this console.
+     */
+    public boolean isWriter(OpenFile file) {
+	return (file instanceof File && ((File) file).canWrite);
+    }
+
+    /**
+     * Hand the console the longest run of buffered bytes that doesn't wrap
+     * around the end of the buffer.
+     */
+    private void startSend() {
+	outputSending =
+	    console.writeBytes(outputBuffer, outputHead,
+			       Math.min(outputCount,
+					outputBuffer.length - outputHead));
+    }
+
     private void sendInterrupt() {
-	writeWait.V();
+	outputHead = (outputHead+outputSending) % outputBuffer.length;
+	outputCount -= outputSending;
+	outputSending = 0;
+
+	if (outputCount > 0)
+	    startSend();
+
+	if (writerWaiting &&
+	    outputBuffer.length - outputCount >= wakeThreshold) {
+	    writerWaiting = false;
+	    writeWait.V();
+	}
+
+	if (flushWaiting && outputCount == 0) {
+	    flushWaiting = false;
+	    flushWait.V();
+	}
     }
 
-    private boolean charAvailable = false;
+    private byte[] inputBuffer;
+    private int inputHead = 0, inputCount = 0, inputReadable = 0;
+    private boolean lineMode;
+    private boolean readerWaiting = false;
+    /** Set while input is left in the console for want of room. */
+    private boolean receiveStalled = false;
+    private byte[] receiveBlock = new byte[64];
+    /** Holds the byte for <tt>readByte()</tt>, under the read lock. */
+    private byte[] readByteBuffer = new byte[1];
+
+    private byte[] outputBuffer;
+    private int outputHead = 0, outputCount = 0;
+    /** Holds the byte for <tt>writeByte()</tt>, under the write lock. */
+    private byte[] writeByteBuffer = new byte[1];
+    private int wakeThreshold;
+    private int outputSending = 0;
+    private boolean writerWaiting = false, flushWaiting = false;
 
     private SerialConsole console;
     private Lock readLock = new Lock();
     private Lock writeLock = new Lock();
     private Semaphore readWait = new Semaphore(0);
     private Semaphore writeWait = new Semaphore(0);
+    private Semaphore flushWait = new Semaphore(0);
+
+    private static final int defaultInputBufferSize = 1024;
+    private static final int defaultOutputBufferSize = 1024;
 
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
@@ -120,25 +377,15 @@ public class SynchConsole {
 	    if (!canRead)
 		return 0;
 
-	    int i;
-	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
-		if (value == -1)
-		    break;
-		
-		buf[offset+i] = (byte) value;
-	    }
-
-	    return i;
+	    return SynchConsole.this.read(buf, offset, length, false);
 	}
 
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
 	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
-	    
+	    SynchConsole.this.write(buf, offset, length);
+
 	    return length;
 	}
 
@@ -24,10 +24,26 @@ public class UThread extends KThread {
 	this.process = process;
     }
 
+    /**
+     * Allocate a new UThread that starts running user code with the
+     * specified registers, instead of at the start of the program.
+     *
+     * @param	process		the process to which the thread belongs.
+     * @param	registers	the thread's initial user registers.
+     */
+    public UThread(UserProcess process, int[] registers) {
+	this(process);
+
+	System.arraycopy(registers, 0, userRegisters, 0, userRegisters.length);
+	registersSet = true;
+    }
+
     private void runProgram() {
-	process.initRegisters();
+	if (!registersSet)
+	    process.initRegisters();
 	process.restoreState();
 
+	Metrics.leaveKernel();
 	Machine.processor().run();
 	
 	Lib.assertNotReached();
@@ -53,6 +69,14 @@ public class UThread extends KThread {
 	
 	for (int i=0; i<Processor.numUserRegisters; i++)
 	    Machine.processor().writeRegister(i, userRegisters[i]);
+
+	// a thread of an exiting process leaves as soon as it runs user code
+	if (process.isExiting()) {
+	    Machine.processor().writeRegister(Processor.regPC,
+					      UserProcess.threadReturnAddress);
+	    Machine.processor().writeRegister(Processor.regNextPC,
+					      UserProcess.threadReturnAddress+4);
+	}
 	
 	process.restoreState();
     }
@@ -72,4 +96,12 @@ public class UThread extends KThread {
      * The process to which this thread belongs.
      */
     public UserProcess process;
+
+    /**
+     * This thread's ID within its process. The thread that runs the program
+     * from the start is thread 0.
+     */
+    public int tid = 0;
+
+    private boolean registersSet = false;
 }
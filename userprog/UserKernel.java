@@ -3,10 +3,10 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
+import nachos.filesys.*;
 
 
 import java.util.LinkedList;
-import java.util.HashMap;
 
 /**
  * A kernel that can support multiple user processes.
@@ -20,23 +20,42 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * Initialize this kernel. Creates a synchronized console, a buffer cache
+     * in front of the file system (unless <tt>UserKernel.bufferCache</tt> is
+     * <tt>false</tt>), and sets the processor's exception handler.
      */
     public void initialize(String[] args) {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
+
+		if (fileSystem != null &&
+		    Config.getBoolean("UserKernel.bufferCache", true))
+		    bufferCache = new BufferCache(fileSystem);
 	
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() { exceptionHandler(); }
 			});
+		Profiler.install();
 			
         int numPhyPages = Machine.processor().getNumPhysPages();
         for(int i = 0; i < numPhyPages; i++)
             pageList.add(i);
         memoryLock = new Lock();
-        processLock = new Lock();
+
+		Metrics.gauge("processes", new Metrics.Gauge() {
+			public long value() { return processTable.size(); }
+		    });
+		Metrics.addSource(new Metrics.Source() {
+			public void collect(Metrics.Snapshot snapshot) {
+			    int[] pids = processTable.pids();
+			    for (int i=0; i<pids.length; i++) {
+				UserProcess process = processTable.get(pids[i]);
+				snapshot.counters("process", "" + pids[i],
+						  process.getCounters());
+			    }
+			}
+		    });
     }
 
     /**
@@ -91,13 +110,17 @@ public class UserKernel extends ThreadedKernel {
 
 	UserProcess process = ((UThread) KThread.currentThread()).process;
 	int cause = Machine.processor().readRegister(Processor.regCause);
+
+	Metrics.enterKernel();
 	process.handleException(cause);
+	Metrics.leaveKernel();
     }
 
     /**
      * Start running user programs, by creating a process and running a shell
      * program in it. The name of the shell program it must run is returned by
-     * <tt>Machine.getShellProgramName()</tt>.
+     * <tt>Machine.getShellProgramName()</tt>. If <tt>UserKernel.restore</tt>
+     * names a process image, the process resumes from that image instead.
      *
      * @see	nachos.machine.Machine#getShellProgramName
      */
@@ -105,17 +128,42 @@ public class UserKernel extends ThreadedKernel {
 	super.run();
 
 	UserProcess process = UserProcess.newUserProcess();
-	
-	String shellProgram = Machine.getShellProgramName();	
-	Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+
+	String image = Config.getString("UserKernel.restore", null);
+	if (image != null) {
+	    Lib.assertTrue(process.restore(image));
+	}
+	else {
+	    String shellProgram = Machine.getShellProgramName();
+	    Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+	}
 
 	KThread.currentThread().finish();
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Sends any buffered console output and writes
+     * back the buffer cache first, then prints I/O statistics, and the
+     * process table if the <tt>a</tt> debug flag is set. Never returns.
      */
     public void terminate() {
+	if (console != null)
+	    console.flush();
+
+	IORing.print();
+	UserProcess.print();
+
+	if (bufferCache != null) {
+	    bufferCache.flush();
+	    bufferCache.print();
+	}
+
+	if (fileSystem instanceof DiskFileSystem)
+	    ((DiskFileSystem) fileSystem).print();
+
+	if (Lib.test(dbgProcess))
+	    processTable.print();
+
 	super.terminate();
     }
     
@@ -161,67 +209,62 @@ public class UserKernel extends ThreadedKernel {
     	return temp;
     }
     
-    public static int newProcess() {
-    	processLock.acquire();
-    	
-    	int temp = ++nProcess;
-    	
-    	processLock.release();
-    	
-    	return temp;
+    /**
+     * Add a new process to the process table.
+     *
+     * @param	process	the new process.
+     * @return	the process's PID.
+     */
+    public static int newProcess(UserProcess process) {
+	return processTable.add(process);
     }
-    
+
+    /**
+     * Return the process with the specified PID.
+     *
+     * @param	pid	the process ID.
+     * @return	the process, or <tt>null</tt> if there is no such process.
+     */
     public static UserProcess getProcess(int pid) {
-		boolean intStatus = Machine.interrupt().disable();
-		
-    	processLock.acquire();
-		
-    	UserProcess temp = pidMap.get(pid);
-    	
-    	processLock.release();
-        
-		Machine.interrupt().restore(intStatus);
-		
-		return temp;
+	return processTable.get(pid);
     }
-    
-    public static void mapProcess(int pid, UserProcess process) {
-		boolean intStatus = Machine.interrupt().disable();
-		
-    	processLock.acquire();
-		
-		pidMap.put(pid,process);
-		
-    	processLock.release();
-        
-		Machine.interrupt().restore(intStatus);
+
+    /**
+     * Remove a process that was never started from the process table.
+     *
+     * @param	pid	the process ID.
+     */
+    public static void deleteProcess(int pid) {
+	processTable.remove(pid);
+    }
+
+    /** Every user process, with its parent and children. */
+    public static ProcessTable processTable = new ProcessTable();
+
+    /**
+     * Return the file system user processes should open files through: the
+     * buffer cache if there is one, otherwise the kernel's file system.
+     *
+     * @return	the file system for user file descriptors.
+     */
+    public static FileSystem fileSystem() {
+	if (bufferCache != null)
+	    return bufferCache;
+
+	return fileSystem;
     }
-	 
-	public static void deleteProcess(int pid) {
-		boolean intStatus = Machine.interrupt().disable();
-		
-    	processLock.acquire();
-    	
-		pidMap.remove(pid);
-        
-    	processLock.release();
-    	
-		Machine.interrupt().restore(intStatus);
-	}
-    
-    
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** The buffer cache in front of the file system, or <tt>null</tt>. */
+    public static BufferCache bufferCache = null;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
     
-    private static int nProcess = 0;
-    private static HashMap<Integer, UserProcess> pidMap =
-    	new HashMap<Integer, UserProcess>();
-    
     private static LinkedList<Integer> pageList = new LinkedList<Integer>();
-    private static Lock processLock;
     private static Lock memoryLock;
+
+    private static final char dbgProcess = 'a';
 }
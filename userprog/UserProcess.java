@@ -6,9 +6,10 @@ import nachos.userprog.*;
 
 import java.io.EOFException;
 
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.IdentityHashMap;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -27,9 +28,7 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-    	pid = UserKernel.newProcess();
-    	UserKernel.mapProcess(pid, this);
-    	finished = new Semaphore(0);
+    	pid = UserKernel.newProcess(this);
     	
     	openFiles = new OpenFile[16];
     	openFiles[0] = UserKernel.console.openForReading();
@@ -59,7 +58,65 @@ public class UserProcess {
 	if (!load(name, args))
 	    return false;
 	
-	new UThread(this).setName(name).fork();
+	UThread thread = new UThread(this);
+	threads.put(thread.tid, new ThreadRecord(thread, -1));
+	liveThreads = 1;
+	thread.setName(name).fork();
+
+	return true;
+    }
+
+    /**
+     * Resume a process saved by <tt>checkpoint()</tt>. Loads the image into
+     * this process, and then forks a thread that continues from the call to
+     * <tt>checkpoint()</tt>, which returns 1 in it.
+     *
+     * @param	name	the name of the file containing the image.
+     * @return	<tt>true</tt> if the image was successfully restored.
+     */
+    public boolean restore(String name) {
+	Lib.debug(dbgProcess, "UserProcess.restore(\"" + name + "\")");
+
+	OpenFile file = UserKernel.fileSystem().open(name, false);
+	if (file == null) {
+	    Lib.debug(dbgProcess, "\topen failed");
+	    return false;
+	}
+
+	ProcessImage image = ProcessImage.read(file);
+	file.close();
+	if (image == null) {
+	    Lib.debug(dbgProcess, "\tnot a process image");
+	    return false;
+	}
+
+	int[] ppns = null;
+	if (prepareToGrow(image.getNumPages()))
+	    ppns = UserKernel.allocPhyPage(image.getNumPages());
+	if (ppns == null) {
+	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
+	    return false;
+	}
+
+	numPages = image.getNumPages();
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn] = new TranslationEntry(vpn, ppns[vpn], true,
+						  image.isReadOnly(vpn),
+						  false, false);
+	    image.loadPage(vpn, ppns[vpn]);
+	}
+
+	for (int fd=0; fd<openFiles.length && fd<image.getNumFiles(); fd++) {
+	    if (openFiles[fd] != null)
+		releaseFile(openFiles[fd]);
+	    openFiles[fd] = image.loadFile(fd);
+	}
+
+	UThread thread = new UThread(this, image.registers);
+	threads.put(thread.tid, new ThreadRecord(thread, -1));
+	liveThreads = 1;
+	thread.setName(name).fork();
 
 	return true;
     }
@@ -259,6 +316,9 @@ public class UserProcess {
 	    return false;
 	}
 
+	if (Profiler.enabled())
+	    profiler = new Profiler(name, executable, coff.getEntryPoint());
+
 	// make sure the sections are contiguous and start at page 0
 	numPages = 0;
 	for (int s=0; s<coff.getNumSections(); s++) {
@@ -298,24 +358,22 @@ public class UserProcess {
 	if (!loadSections())
 	    return false;
 
-	// store arguments in last page
+	// store arguments in last page, built here and copied in at once
 	int entryOffset = (numPages-1)*pageSize;
-	int stringOffset = entryOffset + args.length*4;
+	int stringOffset = args.length*4;
 
 	this.argc = args.length;
 	this.argv = entryOffset;
-	
+
+	byte[] argPage = new byte[argsSize];
 	for (int i=0; i<argv.length; i++) {
-	    byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-	    Lib.assertTrue(writeVirtualMemory(entryOffset,stringOffsetBytes) == 4);
-	    entryOffset += 4;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) ==
-		       argv[i].length);
-	    stringOffset += argv[i].length;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset,new byte[] { 0 }) == 1);
-	    stringOffset += 1;
+	    Lib.bytesFromInt(argPage, i*4, entryOffset + stringOffset);
+	    System.arraycopy(argv[i], 0, argPage, stringOffset, argv[i].length);
+	    stringOffset += argv[i].length + 1;
 	}
 
+	Lib.assertTrue(writeVirtualMemory(entryOffset, argPage) == argsSize);
+
 	return true;
     }
 
@@ -364,7 +422,9 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-    	coff.close();
+    	// a restored process has no executable
+    	if (coff != null)
+    		coff.close();
     	for(int i = 0; i < numPages; i++)
     		UserKernel.releasePhyPage(pageTable[i].ppn);
     	pageTable = null;
@@ -398,79 +458,255 @@ public class UserProcess {
      */
     private int handleHalt() {
 
-	Machine.halt();
+	Kernel.kernel.terminate();
 	
-	Lib.assertNotReached("Machine.halt() did not halt machine!");
+	Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 	return 0;
     }
 
    public int handleExit(int status) {
-		this.status = status;
+		boolean first = false;
+		
+		threadLock.acquire();
+		if(!exiting) {
+			first = true;
+			exiting = true;
+			this.status = status;
+			
+			// every other thread leaves as soon as it runs again
+			for(Futex futex : futexes.values())
+				futex.waiters.wakeAll();
+			futexes.clear();
+			threadFinished.wakeAll();
+		}
+		threadLock.release();
+		
+		if(first)
+			interruptWaits();
+		
+		finishThread(status);
+		
+		return 0;
+    }
+
+    /**
+     * Wake the threads of this process that are blocked in a pipe, in
+     * <tt>ring_enter()</tt> or in <tt>join()</tt>, so that they see the
+     * process exiting and leave.
+     */
+    private void interruptWaits() {
+	for (int i=0; i<openFiles.length; i++) {
+	    if (openFiles[i] instanceof Pipe.End)
+		((Pipe.End) openFiles[i]).interrupt();
+	}
+
+	if (ring != null)
+	    ring.interrupt();
+
+	threadLock.acquire();
+	LinkedList<UserProcess> children = new LinkedList<UserProcess>(joining);
+	threadLock.release();
+
+	for (UserProcess child : children) {
+	    child.joinLock.acquire();
+	    child.finished.wakeAll();
+	    child.joinLock.release();
+	}
+    }
+
+    /**
+     * End the current thread. The last thread to leave releases the process's
+     * resources, with <i>status</i> as the exit status unless
+     * <tt>exit()</tt> was called.
+     */
+    private void finishThread(int status) {
+		UThread thread = (UThread) KThread.currentThread();
+		
+		threadLock.acquire();
+		
+		ThreadRecord record = threads.get(thread.tid);
+		record.status = status;
+		record.done = true;
+		record.thread = null;
+		if (Metrics.enabled)
+			finishedCounters.addAll(thread.getCounters());
+		if(record.stackVPN != -1)
+			freeStacks.add(record.stackVPN);
+		threadFinished.wakeAll();
+		
+		boolean last = (--liveThreads == 0);
+		if(last && !exiting) {
+			exiting = true;
+			this.status = status;
+		}
+		
+		threadLock.release();
+		
+		if(!last)
+			UThread.finish();
 		
 		for(int i = 0; i < 16; i++)
 			if(openFiles[i] != null) {
-				openFiles[i].close();
+				releaseFile(openFiles[i]);
 				openFiles[i] = null;
 			}
 			
-		while(childrenPid != null && !childrenPid.isEmpty()) {
-			int pid = childrenPid.removeFirst();
-			UserProcess process = UserKernel.getProcess(pid);
-			process.parentPid = 1;
-		}
+		// in-flight ring requests may still be using our memory
+		if (ring != null)
+			ring.close();
+
+		if (profiler != null)
+			profiler.report(pid);
+
+		joinLock.acquire();
+		done = true;
+		finished.wakeAll();
+		joinLock.release();
 		
-		finished.V();
 		unloadSections();
 		
 		if(pid == 1)
-			Machine.halt();
-			
-		UThread.finish();
-		UserKernel.deleteProcess(pid);
+			Kernel.kernel.terminate();
 		
-		return 0;
+		// our children are orphaned, and we wait for our parent to join us
+		UserKernel.processTable.exit(pid);
+		
+		UThread.finish();
     }
 
     public int handleExec(int file, int argc, int argv) {
+		long startTime = Machine.timer().getTime();
+		
+		int childPid = exec(file, argc, argv);
+		
+		numExecs++;
+		if(childPid == -1)
+			numFailedExecs++;
+		execTicks += Machine.timer().getTime() - startTime;
+		
+		return childPid;
+    }
+    
+    private int exec(int file, int argc, int argv) {
 		String name = readVirtualMemoryString(file, 256);
-		if(name == null || !name.endsWith(".coff") || argc < 0)
+		if(name == null || !name.endsWith(".coff"))
+			return -1;
+		
+		String[] arg = readArguments(argc, argv);
+		if(arg == null)
 			return -1;
-			
-		String[] arg = new String[argc];
-		byte argAddr[] = new byte[4];
-		for(int i = 0; i<argc; i++) {
-			if(readVirtualMemory(argv + 4 * i, argAddr) != 4)
-				return -1;
-			arg[i] = readVirtualMemoryString(Lib.bytesToInt(argAddr, 0), 256);
-			if(arg[i] == null)
-				return -1;
-		}
 		
 		UserProcess childProcess = UserProcess.newUserProcess();
-		childProcess.parentPid = pid;
+		UserKernel.processTable.setParent(childProcess.pid, pid);
+		
+		// the child shares our standard input and output
+		for(int i = 0; i < 2; i++) {
+			releaseFile(childProcess.openFiles[i]);
+			childProcess.openFiles[i] = retainFile(openFiles[i]);
+		}
 		
-		if(!childProcess.execute(name, arg))
+		if(!childProcess.execute(name, arg)) {
+			for(int i = 0; i < 2; i++)
+				if(childProcess.openFiles[i] != null)
+					releaseFile(childProcess.openFiles[i]);
+			UserKernel.deleteProcess(childProcess.pid);
 			return -1;
-		childrenPid.add(childProcess.pid);
+		}
 		
 		return childProcess.pid;
     }
      
+    /**
+     * Read an argument vector of <i>argc</i> strings from <i>argv</i>. The
+     * pointers are read in one transfer, and so are the strings when they
+     * lie close together, as they do when a program builds its arguments in
+     * one buffer. Returns <tt>null</tt> if any argument cannot be read.
+     */
+    private String[] readArguments(int argc, int argv) {
+	// the arguments have to fit in the child's argument page anyway
+	if (argc < 0 || argc > pageSize/4)
+	    return null;
+
+	byte[] pointers = new byte[argc*4];
+	if (readVirtualMemory(argv, pointers) != pointers.length)
+	    return null;
+
+	int low = Integer.MAX_VALUE, high = Integer.MIN_VALUE;
+	for (int i=0; i<argc; i++) {
+	    int vaddr = Lib.bytesToInt(pointers, i*4);
+	    low = Math.min(low, vaddr);
+	    high = Math.max(high, vaddr);
+	}
+
+	byte[] strings = null;
+	int stringsRead = 0;
+	if (argc > 0 && low >= 0 && high - low < pageSize) {
+	    strings = new byte[high - low + maxArgLength + 1];
+	    stringsRead = readVirtualMemory(low, strings);
+	}
+
+	String[] args = new String[argc];
+	for (int i=0; i<argc; i++) {
+	    int vaddr = Lib.bytesToInt(pointers, i*4);
+
+	    if (strings != null) {
+		for (int j=vaddr-low; j<stringsRead && j-(vaddr-low) <= maxArgLength;
+		     j++) {
+		    if (strings[j] == 0) {
+			args[i] = new String(strings, vaddr-low, j-(vaddr-low));
+			break;
+		    }
+		}
+	    }
+
+	    // not in the bulk read, perhaps because it was cut short
+	    if (args[i] == null) {
+		args[i] = readVirtualMemoryString(vaddr, maxArgLength);
+		if (args[i] == null)
+		    return null;
+	    }
+	}
+
+	return args;
+    }
+
+    /**
+     * Print the number of <tt>exec()</tt> calls made, how many failed, and
+     * the average number of ticks each took.
+     */
+    public static void print() {
+	if (numExecs > 0) {
+	    System.out.println("Exec: calls " + numExecs + ", failed " +
+			       numFailedExecs + ", average ticks " +
+			       execTicks/numExecs);
+	}
+    }
+     
    public int handleJoin(int childPid, int childAddr) {
-		UserProcess process = null;
-		Iterator<Integer> it = childrenPid.iterator();
-		
-		while(it.hasNext())
-			if(childPid == it.next()) {
-				process = UserKernel.getProcess(childPid);
-				it.remove();
-				break;
-			}
+		// nobody else can join the child once we have disowned it
+		UserProcess process = UserKernel.processTable.disown(pid, childPid);
 		
         if(process == null)
         	return -1;
         	
-		process.finished.P();
+		threadLock.acquire();
+		joining.add(process);
+		threadLock.release();
+		
+		// an exit() by another of our threads ends the wait
+		process.joinLock.acquire();
+		while(!process.done && !exiting)
+			process.finished.sleep();
+		boolean childDone = process.done;
+		process.joinLock.release();
+		
+		threadLock.acquire();
+		joining.remove(process);
+		threadLock.release();
+		
+		if(!childDone)
+			return -1;
+		
 		writeVirtualMemory(childAddr, Lib.bytesFromInt(process.status));
 
 		if(process.error)
@@ -478,6 +714,224 @@ public class UserProcess {
 		return 1;
     }
 
+    /**
+     * Handle the thread_create() system call: start a new thread running
+     * <i>func</i>(<i>arg</i>) on a stack of its own. Returns the new thread's
+     * ID, or -1 if there is no memory for its stack.
+     */
+    private int handleThreadCreate(int func, int arg) {
+	int stackVPN = allocateThreadStack();
+	if (stackVPN == -1)
+	    return -1;
+
+	Processor processor = Machine.processor();
+
+	int[] registers = new int[Processor.numUserRegisters];
+	for (int i=0; i<registers.length; i++)
+	    registers[i] = processor.readRegister(i);
+
+	registers[Processor.regPC] = func;
+	registers[Processor.regNextPC] = func+4;
+	registers[Processor.regSP] = (stackVPN + stackPages)*pageSize;
+	registers[Processor.regA0] = arg;
+	// returning from func faults here, which ends the thread
+	registers[Processor.regRA] = threadReturnAddress;
+
+	UThread thread = new UThread(this, registers);
+
+	threadLock.acquire();
+	thread.tid = nextTid++;
+	threads.put(thread.tid, new ThreadRecord(thread, stackVPN));
+	liveThreads++;
+	threadLock.release();
+
+	thread.setName(KThread.currentThread().getName() + " thread " +
+		       thread.tid).fork();
+
+	return thread.tid;
+    }
+
+    /**
+     * Return the first page of a free thread stack, adding
+     * <tt>stackPages</tt> pages to the end of the address space if no stack
+     * is free. Returns -1 if there is no memory for a stack.
+     */
+    private int allocateThreadStack() {
+	threadLock.acquire();
+
+	int stackVPN = -1;
+	if (!freeStacks.isEmpty())
+	    stackVPN = freeStacks.removeFirst();
+
+	threadLock.release();
+
+	if (stackVPN != -1 || !prepareToGrow(stackPages))
+	    return stackVPN;
+
+	int[] ppns = UserKernel.allocPhyPage(stackPages);
+	if (ppns == null)
+	    return -1;
+
+	TranslationEntry[] table = new TranslationEntry[numPages + stackPages];
+	System.arraycopy(pageTable, 0, table, 0, numPages);
+	for (int i=0; i<stackPages; i++) {
+	    table[numPages+i] = new TranslationEntry(numPages+i, ppns[i],
+						     true, false, false, false);
+	}
+
+	stackVPN = numPages;
+	pageTable = table;
+	numPages += stackPages;
+
+	restoreState();
+
+	return stackVPN;
+    }
+
+    /**
+     * Called before <i>pages</i> pages are added to the end of the address
+     * space, to make sure there is room for them.
+     *
+     * @param	pages	the number of pages to add.
+     * @return	<tt>true</tt> if the address space can grow.
+     */
+    protected boolean prepareToGrow(int pages) {
+	return true;
+    }
+
+    /**
+     * Handle the thread_exit() system call: end the current thread. The
+     * process exits once its last thread has.
+     */
+    private int handleThreadExit(int status) {
+	finishThread(status);
+
+	Lib.assertNotReached();
+	return 0;
+    }
+
+    /**
+     * Handle the thread_join() system call: wait for another thread of this
+     * process to finish, and store its exit status at <i>statusAddr</i>
+     * unless that is 0. A thread can be joined only once.
+     */
+    private int handleThreadJoin(int tid, int statusAddr) {
+	threadLock.acquire();
+
+	ThreadRecord record = threads.get(tid);
+	if (record == null || record.joined ||
+	    tid == ((UThread) KThread.currentThread()).tid) {
+	    threadLock.release();
+	    return -1;
+	}
+
+	record.joined = true;
+	while (!record.done && !exiting)
+	    threadFinished.sleep();
+
+	if (record.done)
+	    threads.remove(tid);
+
+	threadLock.release();
+
+	if (!record.done)
+	    return -1;
+
+	if (statusAddr != 0)
+	    writeVirtualMemory(statusAddr, Lib.bytesFromInt(record.status));
+
+	return 0;
+    }
+
+    /**
+     * Handle the futex_wait() system call: if the int at <i>addr</i> still
+     * holds <i>value</i>, sleep until another thread wakes <i>addr</i>.
+     * Returns 0 once woken, or -1 if the value differed.
+     */
+    private int handleFutexWait(int addr, int value) {
+	byte[] buf = new byte[4];
+
+	threadLock.acquire();
+
+	// checked under the lock, so a wake after the store can't be missed
+	if ((addr & 3) != 0 || exiting || readVirtualMemory(addr, buf) != 4 ||
+	    Lib.bytesToInt(buf, 0) != value) {
+	    threadLock.release();
+	    return -1;
+	}
+
+	Futex futex = futexes.get(addr);
+	if (futex == null) {
+	    futex = new Futex();
+	    futexes.put(addr, futex);
+	}
+
+	futex.numWaiters++;
+	futex.waiters.sleep();
+
+	threadLock.release();
+
+	return 0;
+    }
+
+    /**
+     * Handle the futex_wake() system call: wake up to <i>count</i> threads
+     * waiting on <i>addr</i>. Returns the number woken.
+     */
+    private int handleFutexWake(int addr, int count) {
+	threadLock.acquire();
+
+	int woken = 0;
+	Futex futex = futexes.get(addr);
+	if (futex != null) {
+	    woken = Math.min(Math.max(count, 0), futex.numWaiters);
+	    for (int i=0; i<woken; i++)
+		futex.waiters.wake();
+
+	    futex.numWaiters -= woken;
+	    if (futex.numWaiters == 0)
+		futexes.remove(addr);
+	}
+
+	threadLock.release();
+
+	return woken;
+    }
+
+    /**
+     * Return <tt>true</tt> if the current thread should end instead of
+     * handling exception <i>cause</i>: either the process is exiting, or the
+     * thread returned from its function to <tt>threadReturnAddress</tt>.
+     *
+     * @param	cause	the user exception that occurred.
+     * @return	<tt>true</tt> if the thread is done.
+     */
+    protected boolean isThreadDone(int cause) {
+	return exiting ||
+	    (cause != Processor.exceptionSyscall &&
+	     Machine.processor().readRegister(Processor.regPC) ==
+	     threadReturnAddress);
+    }
+
+    /**
+     * Return <tt>true</tt> once this process has begun to exit. Its threads
+     * then leave instead of running more user code.
+     *
+     * @return	<tt>true</tt> if the process is exiting.
+     */
+    public boolean isExiting() {
+	return exiting;
+    }
+
+    /**
+     * Return this process's ID.
+     *
+     * @return	the PID.
+     */
+    public int getPid() {
+	return pid;
+    }
+
     private int handleCreate(int fileAddr) {
         String filename = readVirtualMemoryString(fileAddr, 256);
         if (filename == null || removed.contains(filename))
@@ -487,7 +941,7 @@ public class UserProcess {
         if (id == -1)
         	return -1;
         
-        openFiles[id] = ThreadedKernel.fileSystem.open(filename, true);
+        openFiles[id] = UserKernel.fileSystem().open(filename, true);
         if (openFiles[id] == null)
         	return -1;
         
@@ -504,7 +958,7 @@ public class UserProcess {
         if (id == -1)
         	return -1;
         
-        openFiles[id] = ThreadedKernel.fileSystem.open(filename, false);
+        openFiles[id] = UserKernel.fileSystem().open(filename, false);
         if (openFiles[id] == null)
         	return -1;
         
@@ -512,6 +966,9 @@ public class UserProcess {
     }
     
     private int handleRead(int id, int buffer, int cnt) {
+        if(id >=0 && id < 16 && openFiles[id] instanceof Pipe.End)
+        	return ((Pipe.End) openFiles[id]).read(this, buffer, cnt);
+        
         if(id >=0 && id < 16 && openFiles[id] != null && 
         	buffer >= 0 && cnt >= 0) {
             byte buf[] = new byte[cnt];
@@ -526,6 +983,8 @@ public class UserProcess {
     }
     
     private int handleWrite(int id, int buffer, int cnt) {
+        if(id > -1 && id < 16 && openFiles[id] instanceof Pipe.End)
+        	return ((Pipe.End) openFiles[id]).write(this, buffer, cnt);
     
         if(id > -1 && id < 16 && openFiles[id] != null &&
         	buffer >= 0 && cnt >= 0) {
@@ -542,16 +1001,19 @@ public class UserProcess {
         	return -1;
         
         String filename = openFiles[id].getName();
-        openFiles[id].close();
+        boolean last = releaseFile(openFiles[id]);
         openFiles[id] = null;
         
+        if(!last)
+        	return 0;
+        
         if(removed.contains(filename)) {
             for(int i = 0; i < 16; i++)
                 if(openFiles[i] != null && openFiles[i].getName() == filename)
                 	return 0;
             
             removed.remove(filename);
-            ThreadedKernel.fileSystem.remove(filename);
+            UserKernel.fileSystem().remove(filename);
         }
         
         return 0;
@@ -569,13 +1031,365 @@ public class UserProcess {
 		        return 0;
             }
         
-        if(!ThreadedKernel.fileSystem.remove(filename))
+        if(!UserKernel.fileSystem().remove(filename))
         	return -1;
         
         return 0;
         
     }
 
+    /**
+     * Handle the pread() system call: read from a file at <i>pos</i>,
+     * without using or moving its file position.
+     */
+    private int handlePread(int id, int buffer, int cnt, int pos) {
+	OpenFile file = getOpenFile(id);
+	if (file == null || buffer < 0 || cnt < 0 || pos < 0)
+	    return -1;
+
+	byte buf[] = new byte[cnt];
+	int len = file.read(pos, buf, 0, cnt);
+	if (len == -1)
+	    return -1;
+
+	return writeVirtualMemory(buffer, buf, 0, len);
+    }
+
+    /**
+     * Handle the pwrite() system call: write to a file at <i>pos</i>,
+     * without using or moving its file position.
+     */
+    private int handlePwrite(int id, int buffer, int cnt, int pos) {
+	OpenFile file = getOpenFile(id);
+	if (file == null || buffer < 0 || cnt < 0 || pos < 0)
+	    return -1;
+
+	byte buf[] = new byte[cnt];
+	int len = readVirtualMemory(buffer, buf, 0, cnt);
+
+	return file.write(pos, buf, 0, len);
+    }
+
+    /**
+     * Read an array of <tt>struct iovec</tt> from user memory, returning
+     * the base address and length of each segment, two ints per segment, or
+     * <tt>null</tt> if the array is invalid.
+     */
+    private int[] readIovec(int iov, int iovcnt) {
+	if (iov < 0 || iovcnt < 0 || iovcnt > maxIovec)
+	    return null;
+
+	byte[] bytes = new byte[iovcnt*8];
+	if (readVirtualMemory(iov, bytes) != bytes.length)
+	    return null;
+
+	int[] segments = new int[iovcnt*2];
+	long total = 0;
+	for (int i=0; i<iovcnt*2; i+=2) {
+	    segments[i] = Lib.bytesToInt(bytes, i*4);
+	    segments[i+1] = Lib.bytesToInt(bytes, i*4+4);
+
+	    total += segments[i+1];
+	    if (segments[i] < 0 || segments[i+1] < 0 || total > Integer.MAX_VALUE)
+		return null;
+	}
+
+	return segments;
+    }
+
+    private static int totalLength(int[] segments) {
+	int total = 0;
+	for (int i=1; i<segments.length; i+=2)
+	    total += segments[i];
+
+	return total;
+    }
+
+    /**
+     * Return how many of the <i>length</i> bytes at <i>vaddr</i> can be
+     * written, stopping at the first read-only page or the end of the
+     * address space. Must agree with <tt>writeVirtualMemory()</tt>.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	length	the number of bytes to write.
+     * @return	the number of bytes <tt>writeVirtualMemory()</tt> could
+     *		transfer.
+     */
+    protected int writableLength(int vaddr, int length) {
+	if (vaddr < 0)
+	    return 0;
+
+	int total = 0;
+	int offset = Machine.processor().offsetFromAddress(vaddr);
+	int vpn = Machine.processor().pageFromAddress(vaddr);
+
+	for (; total < length && vpn < numPages; vpn++) {
+	    if (pageTable[vpn].readOnly)
+		break;
+
+	    total += Math.min(length - total, pageSize - offset);
+	    offset = 0;
+	}
+
+	return total;
+    }
+
+    /**
+     * Return how many bytes can be scattered over the segments, stopping at
+     * the first one that cannot be written in full.
+     */
+    private int writableLength(int[] segments) {
+	int total = 0;
+	for (int i=0; i<segments.length; i+=2) {
+	    int amount = writableLength(segments[i], segments[i+1]);
+
+	    total += amount;
+	    if (amount < segments[i+1])
+		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Handle the readv() system call: read from a file with a single
+     * <tt>read()</tt>, and scatter the data over the segments described by
+     * an array of <tt>struct iovec</tt>. Only as much as the segments can
+     * take is read, so a bad segment does not consume input that is then
+     * lost.
+     */
+    private int handleReadv(int id, int iov, int iovcnt) {
+	OpenFile file = getOpenFile(id);
+	int[] segments = readIovec(iov, iovcnt);
+	if (file == null || segments == null)
+	    return -1;
+
+	byte buf[] = new byte[writableLength(segments)];
+	int len = file.read(buf, 0, buf.length);
+	if (len == -1)
+	    return -1;
+
+	int done = 0;
+	for (int i=0; i<segments.length && done<len; i+=2) {
+	    int amount = Math.min(segments[i+1], len-done);
+	    int copied = writeVirtualMemory(segments[i], buf, done, amount);
+
+	    done += copied;
+	    if (copied < amount)
+		break;
+	}
+
+	return done;
+    }
+
+    /**
+     * Handle the writev() system call: gather the segments described by an
+     * array of <tt>struct iovec</tt>, and write them to a file with a single
+     * <tt>write()</tt>.
+     */
+    private int handleWritev(int id, int iov, int iovcnt) {
+	OpenFile file = getOpenFile(id);
+	int[] segments = readIovec(iov, iovcnt);
+	if (file == null || segments == null)
+	    return -1;
+
+	byte buf[] = new byte[totalLength(segments)];
+
+	int len = 0;
+	for (int i=0; i<segments.length; i+=2) {
+	    int copied = readVirtualMemory(segments[i], buf, len,
+					   segments[i+1]);
+
+	    len += copied;
+	    if (copied < segments[i+1])
+		break;
+	}
+
+	return file.write(buf, 0, len);
+    }
+
+    /**
+     * Handle the pipe() system call: create a pipe, and store the descriptor
+     * of its read end and then of its write end at <i>fdsAddr</i>.
+     */
+    private int handlePipe(int fdsAddr) {
+	int readFd = getEmptyOpenFile();
+	if (readFd == -1)
+	    return -1;
+
+	Pipe pipe = new Pipe();
+	openFiles[readFd] = pipe.openForReading();
+
+	int writeFd = getEmptyOpenFile();
+	if (writeFd != -1)
+	    openFiles[writeFd] = pipe.openForWriting();
+
+	byte[] fds = new byte[8];
+	Lib.bytesFromInt(fds, 0, readFd);
+	Lib.bytesFromInt(fds, 4, writeFd);
+
+	if (writeFd == -1 || writeVirtualMemory(fdsAddr, fds) != fds.length) {
+	    handleClose(readFd);
+	    if (writeFd != -1)
+		handleClose(writeFd);
+	    return -1;
+	}
+
+	return 0;
+    }
+
+    /**
+     * Handle the dup2() system call: make <i>newFd</i> refer to the same
+     * open file as <i>oldFd</i>, closing whatever it referred to first.
+     */
+    private int handleDup2(int oldFd, int newFd) {
+	OpenFile file = getOpenFile(oldFd);
+	if (file == null || newFd < 0 || newFd >= openFiles.length)
+	    return -1;
+
+	if (newFd != oldFd) {
+	    if (openFiles[newFd] != null)
+		handleClose(newFd);
+
+	    openFiles[newFd] = retainFile(file);
+	}
+
+	return newFd;
+    }
+
+    /**
+     * Note another descriptor (or mapping) referring to <i>file</i>, which
+     * may be <tt>null</tt>.
+     */
+    protected static OpenFile retainFile(OpenFile file) {
+	if (file != null) {
+	    Integer refs = fileRefs.get(file);
+	    fileRefs.put(file, (refs == null ? 2 : refs + 1));
+	}
+
+	return file;
+    }
+
+    /**
+     * Drop a descriptor (or mapping) referring to <i>file</i>, and close it
+     * if that was the last one. Returns <tt>true</tt> if the file was
+     * closed.
+     */
+    protected static boolean releaseFile(OpenFile file) {
+	Integer refs = fileRefs.get(file);
+
+	if (refs == null) {
+	    file.close();
+	    return true;
+	}
+
+	if (refs == 2)
+	    fileRefs.remove(file);
+	else
+	    fileRefs.put(file, refs - 1);
+
+	return false;
+    }
+
+    /**
+     * Handle the ring_setup() system call: set up an I/O ring with
+     * <i>entries</i> entries at <i>vaddr</i>. A process has at most one ring.
+     */
+    private int handleRingSetup(int vaddr, int entries) {
+	if (ring != null || vaddr < 0 || entries <= 0 ||
+	    entries > IORing.maxEntries)
+	    return -1;
+
+	// make sure the whole ring is writable
+	byte[] zeros = new byte[IORing.size(entries)];
+	if (writeVirtualMemory(vaddr, zeros) != zeros.length)
+	    return -1;
+
+	ring = new IORing(this, vaddr, entries);
+	return 0;
+    }
+
+    /**
+     * Handle the ring_enter() system call: submit requests from the ring and
+     * wait for completions.
+     */
+    private int handleRingEnter(int toSubmit, int minComplete) {
+	if (ring == null || toSubmit < 0)
+	    return -1;
+
+	return ring.enter(toSubmit, minComplete);
+    }
+
+    /**
+     * Handle the checkpoint() system call: save this process to the file
+     * named by <i>fileAddr</i>. Only a process with one thread and no I/O
+     * ring can be saved.
+     */
+    private int handleCheckpoint(int fileAddr) {
+	String filename = readVirtualMemoryString(fileAddr, 256);
+	if (filename == null)
+	    return -1;
+
+	threadLock.acquire();
+	boolean alone = (liveThreads == 1);
+	threadLock.release();
+
+	if (!alone || ring != null || !canCheckpoint())
+	    return -1;
+
+	Processor processor = Machine.processor();
+	ProcessImage image = new ProcessImage();
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    image.registers[i] = processor.readRegister(i);
+
+	// the restored process returns 1 from this call
+	image.registers[Processor.regV0] = 1;
+	image.registers[Processor.regPC] =
+	    processor.readRegister(Processor.regNextPC);
+	image.registers[Processor.regNextPC] =
+	    image.registers[Processor.regPC] + 4;
+
+	image.setNumPages(numPages);
+	for (int vpn=0; vpn<numPages; vpn++)
+	    image.savePage(vpn, pageTable[vpn].ppn, pageTable[vpn].readOnly);
+
+	image.setNumFiles(openFiles.length);
+	for (int fd=0; fd<openFiles.length; fd++)
+	    image.saveFile(fd, openFiles[fd]);
+
+	OpenFile file = UserKernel.fileSystem().open(filename, true);
+	if (file == null)
+	    return -1;
+
+	boolean written = image.write(file);
+	file.close();
+
+	return (written ? 0 : -1);
+    }
+
+    /**
+     * Test whether everything in this process's address space is saved by a
+     * checkpoint.
+     *
+     * @return	<tt>true</tt> if the process can be checkpointed.
+     */
+    protected boolean canCheckpoint() {
+	return true;
+    }
+
+    /**
+     * Return the file a file descriptor refers to.
+     *
+     * @param	fd	the file descriptor.
+     * @return	the open file, or <tt>null</tt> if <i>fd</i> is not open.
+     */
+    protected OpenFile getOpenFile(int fd) {
+	if (fd < 0 || fd >= openFiles.length)
+	    return null;
+
+	return openFiles[fd];
+    }
+
     private int getEmptyOpenFile() {
         for(int i = 0; i < 16; i++)
             if(openFiles[i] == null)
@@ -594,7 +1408,24 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallPread = 14,
+	syscallPwrite = 15,
+	syscallReadv = 16,
+	syscallWritev = 17,
+	syscallRingSetup = 18,
+	syscallRingEnter = 19,
+	syscallPipe = 20,
+	syscallDup2 = 21,
+	syscallThreadCreate = 22,
+	syscallThreadExit = 23,
+	syscallThreadJoin = 24,
+	syscallFutexWait = 25,
+	syscallFutexWake = 26,
+	syscallCheckpoint = 27;
+
+    /** The most segments readv() and writev() accept. */
+    private static final int maxIovec = 16;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -615,6 +1446,30 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  pread(int fd, char *buffer, int size,
+     *							int pos);</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  pwrite(int fd, char *buffer, int size,
+     *							int pos);</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  readv(int fd, struct iovec *iov,
+     *							int iovcnt);</tt></td></tr>
+     * <tr><td>17</td><td><tt>int  writev(int fd, struct iovec *iov,
+     *							int iovcnt);</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  ring_setup(struct io_ring *ring,
+     *							int entries);</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  ring_enter(int toSubmit,
+     *							int minComplete);</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  pipe(int fds[2]);</tt></td></tr>
+     * <tr><td>21</td><td><tt>int  dup2(int oldfd, int newfd);</tt></td></tr>
+     * <tr><td>22</td><td><tt>int  thread_create(void (*func)(void *),
+     *							void *arg);</tt></td></tr>
+     * <tr><td>23</td><td><tt>void thread_exit(int status);</tt></td></tr>
+     * <tr><td>24</td><td><tt>int  thread_join(int tid, int *status);
+     *								</tt></td></tr>
+     * <tr><td>25</td><td><tt>int  futex_wait(int *addr, int value);
+     *								</tt></td></tr>
+     * <tr><td>26</td><td><tt>int  futex_wake(int *addr, int count);
+     *								</tt></td></tr>
+     * <tr><td>27</td><td><tt>int  checkpoint(char *name);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -636,6 +1491,20 @@ public class UserProcess {
 		    case syscallWrite: return handleWrite(a0, a1, a2);
 		    case syscallClose: return handleClose(a0);
 		    case syscallUnlink: return handleUnlink(a0);
+		    case syscallPread: return handlePread(a0, a1, a2, a3);
+		    case syscallPwrite: return handlePwrite(a0, a1, a2, a3);
+		    case syscallReadv: return handleReadv(a0, a1, a2);
+		    case syscallWritev: return handleWritev(a0, a1, a2);
+		    case syscallRingSetup: return handleRingSetup(a0, a1);
+		    case syscallRingEnter: return handleRingEnter(a0, a1);
+		    case syscallPipe: return handlePipe(a0);
+		    case syscallDup2: return handleDup2(a0, a1);
+		    case syscallThreadCreate: return handleThreadCreate(a0, a1);
+		    case syscallThreadExit: return handleThreadExit(a0);
+		    case syscallThreadJoin: return handleThreadJoin(a0, a1);
+		    case syscallFutexWait: return handleFutexWait(a0, a1);
+		    case syscallFutexWake: return handleFutexWake(a0, a1);
+		    case syscallCheckpoint: return handleCheckpoint(a0);
 		    
 			default:
 				Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -655,14 +1524,28 @@ public class UserProcess {
     public void handleException(int cause) {
 		Processor processor = Machine.processor();
 
+		if (isThreadDone(cause))
+			finishThread(processor.readRegister(Processor.regV0));
+
 		switch (cause) {
 			case Processor.exceptionSyscall:
-				int result = handleSyscall(processor.readRegister(Processor.regV0),
+				int syscall = processor.readRegister(Processor.regV0);
+				long startTime = Machine.timer().getTime();
+				if (Trace.enabled())
+					Trace.record(Trace.eventSyscallEnter, syscall, pid);
+				int result = handleSyscall(syscall,
 							   processor.readRegister(Processor.regA0),
 							   processor.readRegister(Processor.regA1),
 							   processor.readRegister(Processor.regA2),
 							   processor.readRegister(Processor.regA3)
 							   );
+				if (Metrics.enabled)
+					countSyscall(syscall, result, startTime);
+				if (Trace.enabled())
+					Trace.record(Trace.eventSyscallExit, syscall, result);
+				// another thread may have called exit() while we slept
+				if (exiting)
+					finishThread(0);
 				processor.writeRegister(Processor.regV0, result);
 				processor.advancePC();
 				break;				       
@@ -677,6 +1560,62 @@ public class UserProcess {
 		}
     }
 
+    /**
+     * Charge a system call, and the bytes it read or wrote, to the current
+     * thread.
+     */
+    private static void countSyscall(int syscall, int result, long startTime) {
+	Metrics.add(Metrics.syscalls, 1);
+	syscallTicks.record(Machine.timer().getTime() - startTime);
+
+	if (syscall >= 0 && syscall < syscallCounters.length) {
+	    if (syscallCounters[syscall] == 0)
+		syscallCounters[syscall] = Metrics.counter("syscall." + syscall);
+	    Metrics.add(syscallCounters[syscall], 1);
+	}
+
+	if (result <= 0)
+	    return;
+
+	switch (syscall) {
+	case syscallRead:
+	case syscallPread:
+	case syscallReadv:
+	    Metrics.add(Metrics.bytesRead, result);
+	    break;
+	case syscallWrite:
+	case syscallPwrite:
+	case syscallWritev:
+	    Metrics.add(Metrics.bytesWritten, result);
+	    break;
+	}
+    }
+
+    /**
+     * Return the totals of this process's counters, over the threads that
+     * have finished and those still running. Must be called with interrupts
+     * disabled.
+     *
+     * @return	new counters holding the totals, or <tt>null</tt> if metrics
+     *		are not being kept.
+     */
+    public Metrics.Counters getCounters() {
+	if (!Metrics.enabled)
+	    return null;
+
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Metrics.Counters totals = new Metrics.Counters();
+	totals.addAll(finishedCounters);
+
+	for (ThreadRecord record : threads.values()) {
+	    if (record.thread != null)
+		totals.addAll(record.thread.getCounters());
+	}
+
+	return totals;
+    }
+
     /** The program being run by this process. */
     protected Coff coff;
 
@@ -698,12 +1637,82 @@ public class UserProcess {
     
     protected static HashSet<String> removed = new HashSet<String>();
     private OpenFile openFiles[] = new OpenFile[16];
+    private IORing ring = null;
+    /** This process's profiler, if profiling is on. */
+    Profiler profiler = null;
+    
+    /** The number of descriptors sharing each file, if more than one. */
+    private static IdentityHashMap<OpenFile, Integer> fileRefs =
+    	new IdentityHashMap<OpenFile, Integer>();
     
-    protected Semaphore finished;
     private int pid;
     
     protected boolean error = false;
     protected int status;
-    private int parentPid;
-    private LinkedList<Integer> childrenPid = new LinkedList<Integer>();
+
+    /** The longest argument <tt>exec()</tt> accepts. */
+    private static final int maxArgLength = 256;
+
+    private static int numExecs = 0, numFailedExecs = 0;
+    private static long execTicks = 0;
+
+    /** The counter of each system call, once it has been made. */
+    private static int[] syscallCounters = new int[64];
+    private static Metrics.Histogram syscallTicks =
+	Metrics.histogram("syscallTicks");
+    /** The counters of this process's finished threads. */
+    private Metrics.Counters finishedCounters =
+	(Metrics.enabled ? new Metrics.Counters() : null);
+
+    /**
+     * What a process knows of one of its threads, kept until the thread is
+     * joined or the process exits.
+     */
+    private static class ThreadRecord {
+	ThreadRecord(UThread thread, int stackVPN) {
+	    this.thread = thread;
+	    this.stackVPN = stackVPN;
+	}
+
+	/** The thread, until it finishes. */
+	UThread thread;
+
+	/** The first page of the thread's stack, or -1 for the main thread. */
+	int stackVPN;
+	boolean done = false, joined = false;
+	int status;
+    }
+
+    /**
+     * The threads waiting on one address with <tt>futex_wait()</tt>.
+     */
+    private class Futex {
+	Condition2 waiters = new Condition2(threadLock);
+	int numWaiters = 0;
+    }
+
+    /**
+     * The address a thread returns to when its function returns. Fetching an
+     * instruction there always faults.
+     */
+    public static final int threadReturnAddress = 0xFFFFFFFC;
+
+    /** Protects the thread table, free stacks and futexes. */
+    private Lock threadLock = new Lock();
+    private Condition2 threadFinished = new Condition2(threadLock);
+    private HashMap<Integer, ThreadRecord> threads =
+    	new HashMap<Integer, ThreadRecord>();
+    private HashMap<Integer, Futex> futexes = new HashMap<Integer, Futex>();
+    private LinkedList<Integer> freeStacks = new LinkedList<Integer>();
+    private int nextTid = 1, liveThreads = 0;
+    /** Set once the process begins to exit; every thread then leaves. */
+    private boolean exiting = false;
+    /** The children our threads are waiting in <tt>join()</tt> for. */
+    private LinkedList<UserProcess> joining = new LinkedList<UserProcess>();
+
+    /** Set once the last thread has left; guarded by <tt>joinLock</tt>. */
+    private boolean done = false;
+    private Lock joinLock = new Lock();
+    /** Signalled when <tt>done</tt> is set, for the parent's join(). */
+    private Condition2 finished = new Condition2(joinLock);
 }
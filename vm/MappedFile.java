@@ -0,0 +1,112 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.LinkedList;
+
+/**
+ * A file mapped into the address space of one or more processes. Every
+ * mapping of the same open file, including one shared through
+ * <tt>fork()</tt> or <tt>dup2()</tt>, shares one <tt>MappedFile</tt>, so a
+ * page of the file occupies at most one physical frame however many
+ * processes map it.
+ *
+ * <p>
+ * The file's length is fixed when it is first mapped; the part of the last
+ * page past the end reads as zeros and is not written back.
+ */
+class MappedFile {
+    /**
+     * Allocate a new mapped file.
+     *
+     * @param	file	the open file, used to read and write back pages.
+     *			Each mapping keeps it open.
+     */
+    MappedFile(OpenFile file) {
+	this.file = file;
+
+	length = Math.max(file.length(), 0);
+	frames = new Frame[(length + pageSize - 1) / pageSize];
+    }
+
+    /**
+     * Return the number of pages the file occupies.
+     */
+    int getNumPages() {
+	return frames.length;
+    }
+
+    /**
+     * Read a page of the file into a physical page.
+     */
+    void readPage(int page, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	int paddr = ppn*pageSize;
+
+	int amount = Math.max(file.read(page*pageSize, memory, paddr,
+					pageBytes(page)), 0);
+	for (int i=amount; i<pageSize; i++)
+	    memory[paddr+i] = 0;
+    }
+
+    /**
+     * Write a physical page back to the file.
+     */
+    void writePage(int page, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	file.write(page*pageSize, memory, ppn*pageSize, pageBytes(page));
+    }
+
+    private int pageBytes(int page) {
+	return Math.min(pageSize, length - page*pageSize);
+    }
+
+    /**
+     * A physical frame holding one page of a mapped file.
+     */
+    static class Frame {
+	Frame(MappedFile file, int page, int ppn) {
+	    this.file = file;
+	    this.page = page;
+	    this.ppn = ppn;
+	}
+
+	/**
+	 * Return <tt>true</tt> if any mapping has written to this frame since
+	 * it was last written back.
+	 */
+	boolean isDirty() {
+	    if (dirty)
+		return true;
+
+	    for (TranslationEntry entry : mappers) {
+		if (entry.dirty)
+		    return true;
+	    }
+
+	    return false;
+	}
+
+	final MappedFile file;
+	final int page, ppn;
+	/** Set when a mapping that wrote to this frame goes away. */
+	boolean dirty = false;
+	/** The page table entries of every mapping using this frame. */
+	LinkedList<TranslationEntry> mappers =
+	    new LinkedList<TranslationEntry>();
+    }
+
+    /** The file's length when it was first mapped. */
+    final int length;
+    /** The number of mappings of this file. */
+    int refCount = 0;
+    /** The frame holding each page, or <tt>null</tt> if it is not resident. */
+    Frame[] frames;
+
+    OpenFile file;
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -5,8 +5,18 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * The kernel keeps the frames holding pages of memory-mapped files. These
+ * are the only frames that can be evicted, since their pages can always be
+ * read back from the file; when no free frame is left, one is chosen with the
+ * CLOCK algorithm and written back first if it is dirty.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,11 +31,13 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	vmLock = new Lock();
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,14 +48,197 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	System.out.println("Mapped files: page faults " + numFileFaults +
+			   ", shared " + numSharedFaults + ", evictions " +
+			   numEvictions + ", writebacks " + numWritebacks);
+
 	super.terminate();
     }
 
+    /**
+     * Map a file for a new mapping, sharing it with existing mappings of the
+     * same open file. The caller keeps the file open until the mapping is
+     * closed. Called with the VM lock held.
+     *
+     * @param	file	the open file.
+     * @return	the mapped file.
+     */
+    static MappedFile openMappedFile(OpenFile file) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	MappedFile mappedFile = mappedFiles.get(file);
+	if (mappedFile == null) {
+	    mappedFile = new MappedFile(file);
+	    mappedFiles.put(file, mappedFile);
+	}
+
+	mappedFile.refCount++;
+	return mappedFile;
+    }
+
+    /**
+     * Release a mapping of a file. Once the last mapping is gone, the file is
+     * forgotten. Called with the VM lock held, after every frame of the
+     * mapping has been released.
+     *
+     * @param	mappedFile	the mapped file.
+     */
+    static void closeMappedFile(MappedFile mappedFile) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	if (--mappedFile.refCount == 0) {
+	    mappedFiles.remove(mappedFile.file);
+	    mappedFile.file = null;
+	}
+    }
+
+    /**
+     * Return the frame holding a page of a mapped file, reading the page in
+     * if no mapping has it resident. Called with the VM lock held.
+     *
+     * @param	mappedFile	the mapped file.
+     * @param	page		the page of the file.
+     * @return	the frame, or <tt>null</tt> if there is no memory for it.
+     */
+    static MappedFile.Frame getFrame(MappedFile mappedFile, int page) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	MappedFile.Frame frame = mappedFile.frames[page];
+	if (frame != null) {
+	    numSharedFaults++;
+	    return frame;
+	}
+
+	int ppn = allocateFrame();
+	if (ppn == -1)
+	    return null;
+
+	Lib.debug(dbgVM, "reading page " + page + " of " +
+		  mappedFile.file.getName() + " into frame " + ppn);
+
+	mappedFile.readPage(page, ppn);
+	numFileFaults++;
+
+	frame = new MappedFile.Frame(mappedFile, page, ppn);
+	mappedFile.frames[page] = frame;
+	frames.add(frame);
+
+	return frame;
+    }
+
+    /**
+     * Release a frame no mapping uses any more, writing it back if it is
+     * dirty. Called with the VM lock held.
+     *
+     * @param	frame	the frame to release.
+     */
+    static void releaseFrame(MappedFile.Frame frame) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread() &&
+		       frame.mappers.isEmpty());
+
+	removeFrame(frame);
+	releasePhyPage(frame.ppn);
+    }
+
+    /**
+     * Evict mapped files' pages until at least <i>numPages</i> physical pages
+     * are free, or no more can be evicted. Called with the VM lock held.
+     *
+     * @param	numPages	the number of free pages wanted.
+     */
+    static void reclaimFrames(int numPages) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	while (getNumPhyPages() < numPages) {
+	    int ppn = evictFrame();
+	    if (ppn == -1)
+		break;
+
+	    releasePhyPage(ppn);
+	}
+    }
+
+    /**
+     * Return a free physical page, evicting a mapped file's page if there is
+     * none. Returns -1 if every page is in use and none can be evicted.
+     */
+    private static int allocateFrame() {
+	int[] ppns = allocPhyPage(1);
+	if (ppns != null)
+	    return ppns[0];
+
+	return evictFrame();
+    }
+
+    private static int evictFrame() {
+	if (frames.isEmpty())
+	    return -1;
+
+	// the TLB may know of references the page tables don't
+	VMProcess.flushOwnerTLB();
+
+	while (true) {
+	    hand %= frames.size();
+	    MappedFile.Frame frame = frames.get(hand);
+
+	    boolean used = false;
+	    for (TranslationEntry entry : frame.mappers) {
+		used |= entry.used;
+		entry.used = false;
+	    }
+
+	    if (!used) {
+		Lib.debug(dbgVM, "evicting page " + frame.page + " of " +
+			  frame.file.file.getName() + " from frame " +
+			  frame.ppn);
+
+		numEvictions++;
+		removeFrame(frame);
+
+		for (TranslationEntry entry : frame.mappers) {
+		    entry.valid = false;
+		    entry.dirty = false;
+		}
+		frame.mappers.clear();
+
+		return frame.ppn;
+	    }
+
+	    hand++;
+	}
+    }
+
+    private static void removeFrame(MappedFile.Frame frame) {
+	if (frame.isDirty()) {
+	    frame.file.writePage(frame.page, frame.ppn);
+	    numWritebacks++;
+	}
+
+	frame.file.frames[frame.page] = null;
+
+	int index = frames.indexOf(frame);
+	frames.remove(index);
+	if (index < hand)
+	    hand--;
+    }
+
+    /** Protects the frame table, mapped files, and every mapping. */
+    static Lock vmLock;
+
+    private static IdentityHashMap<OpenFile, MappedFile> mappedFiles =
+	new IdentityHashMap<OpenFile, MappedFile>();
+    private static ArrayList<MappedFile.Frame> frames =
+	new ArrayList<MappedFile.Frame>();
+    private static int hand = 0;
+
+    private static int numFileFaults = 0, numSharedFaults = 0;
+    private static int numEvictions = 0, numWritebacks = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,8 +5,18 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Iterator;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * Address translation goes through the TLB, which is refilled from the page
+ * table on each TLB miss and emptied on every context switch. A process can
+ * also map files into its address space with <tt>mmap()</tt>: pages of a
+ * mapping are read from the file the first time they are touched, and
+ * written back when they are evicted or the mapping is removed.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -26,10 +36,52 @@ public class VMProcess extends UserProcess {
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The TLB is emptied only if it holds
+     * another process's entries, so switching between threads of the same
+     * process keeps it warm.
      */
     public void restoreState() {
-	super.restoreState();
+	if (tlbOwner != this) {
+	    flushOwnerTLB();
+	    tlbOwner = this;
+	}
+    }
+
+    /**
+     * Empty the TLB, copying its used and dirty bits back to the page table
+     * of the process it belongs to.
+     */
+    static void flushOwnerTLB() {
+	if (tlbOwner != null)
+	    tlbOwner.flushTLB();
+    }
+
+    /**
+     * Copy the used and dirty bits of every TLB entry back to the page
+     * table, and invalidate the TLB.
+     */
+    void flushTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (!tlbEntry.valid)
+		continue;
+
+	    syncEntry(tlbEntry);
+
+	    tlbEntry.valid = false;
+	    processor.writeTLBEntry(i, tlbEntry);
+	}
+    }
+
+    private void syncEntry(TranslationEntry tlbEntry) {
+	TranslationEntry entry = findEntry(tlbEntry.vpn);
+
+	if (entry != null && entry.valid && entry.ppn == tlbEntry.ppn) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
     }
 
     /**
@@ -39,15 +91,376 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
+	// mapped files may be holding the memory we need
+	VMKernel.vmLock.acquire();
+	VMKernel.reclaimFrames(numPages);
+	VMKernel.vmLock.release();
+
 	return super.loadSections();
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>, and remove
+     * every mapping.
      */
     protected void unloadSections() {
+	VMKernel.vmLock.acquire();
+
+	while (!mappings.isEmpty())
+	    unmap(mappings.getFirst());
+
+	if (tlbOwner == this) {
+	    flushTLB();
+	    tlbOwner = null;
+	}
+
+	VMKernel.vmLock.release();
+
 	super.unloadSections();
-    }    
+    }
+
+    /**
+     * Make sure no mapping lies where the address space is about to grow, and
+     * evict mapped files' pages to make room for it.
+     */
+    protected boolean prepareToGrow(int pages) {
+	VMKernel.vmLock.acquire();
+
+	boolean overlaps = false;
+	for (Iterator i=mappings.iterator(); i.hasNext() && !overlaps; ) {
+	    Mapping mapping = (Mapping) i.next();
+	    overlaps = (mapping.firstVPN < numPages + pages);
+	}
+
+	if (!overlaps)
+	    VMKernel.reclaimFrames(pages);
+
+	VMKernel.vmLock.release();
+
+	return !overlaps;
+    }
+
+    /**
+     * A checkpoint does not save mappings, so a process with mapped files
+     * cannot be checkpointed.
+     */
+    protected boolean canCheckpoint() {
+	VMKernel.vmLock.acquire();
+	boolean unmapped = mappings.isEmpty();
+	VMKernel.vmLock.release();
+
+	return unmapped;
+    }
+
+    /**
+     * Transfer data from this process's virtual memory to the specified
+     * array, faulting in mapped pages as needed.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset,
+				 int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= data.length);
+
+	return transfer(vaddr, data, offset, length, false);
+    }
+
+    /**
+     * Transfer data from the specified array to this process's virtual
+     * memory, faulting in mapped pages as needed.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= data.length);
+
+	return transfer(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Count mapped pages as well as the ones in the page table. A mapped
+     * page is not faulted in here; if there is no memory for it later, the
+     * transfer comes up short.
+     */
+    protected int writableLength(int vaddr, int length) {
+	if (vaddr < 0)
+	    return 0;
+
+	VMKernel.vmLock.acquire();
+
+	int total = 0;
+	while (total < length) {
+	    int vpn = Processor.pageFromAddress(vaddr + total);
+	    int pageOffset = Processor.offsetFromAddress(vaddr + total);
+
+	    TranslationEntry entry = findEntry(vpn);
+	    if (entry == null || entry.readOnly)
+		break;
+
+	    total += Math.min(length - total, pageSize - pageOffset);
+	}
+
+	VMKernel.vmLock.release();
+
+	return total;
+    }
+
+    private int transfer(int vaddr, byte[] data, int offset, int length,
+			 boolean write) {
+	byte[] memory = Machine.processor().getMemory();
+
+	if (vaddr < 0)
+	    return 0;
+
+	// hold the lock so that nobody evicts a page while we copy it
+	VMKernel.vmLock.acquire();
+
+	int total = 0;
+	while (length > 0) {
+	    int vpn = Processor.pageFromAddress(vaddr);
+	    int pageOffset = Processor.offsetFromAddress(vaddr);
+
+	    TranslationEntry entry = getEntry(vpn);
+	    if (entry == null || (write && entry.readOnly))
+		break;
+
+	    int paddr = entry.ppn*pageSize + pageOffset;
+	    int amount = Math.min(length, pageSize - pageOffset);
+
+	    if (write)
+		System.arraycopy(data, offset, memory, paddr, amount);
+	    else
+		System.arraycopy(memory, paddr, data, offset, amount);
+
+	    entry.used = true;
+	    if (write)
+		entry.dirty = true;
+
+	    vaddr += amount;
+	    offset += amount;
+	    length -= amount;
+	    total += amount;
+	}
+
+	VMKernel.vmLock.release();
+
+	return total;
+    }
+
+    /**
+     * Return the page table entry for a virtual page, without faulting it
+     * in. Returns <tt>null</tt> if the page is not part of the address space.
+     */
+    private TranslationEntry findEntry(int vpn) {
+	if (vpn >= 0 && vpn < numPages)
+	    return pageTable[vpn];
+
+	Mapping mapping = findMapping(vpn);
+	if (mapping == null)
+	    return null;
+
+	return mapping.entries[vpn - mapping.firstVPN];
+    }
+
+    /**
+     * Return the valid page table entry for a virtual page, reading it in
+     * from its file if it belongs to a mapping. Returns <tt>null</tt> if the
+     * page is not part of the address space or there is no memory for it.
+     * Called with the VM lock held.
+     */
+    private TranslationEntry getEntry(int vpn) {
+	TranslationEntry entry = findEntry(vpn);
+	if (entry == null || entry.valid)
+	    return entry;
+
+	Mapping mapping = findMapping(vpn);
+	MappedFile.Frame frame =
+	    VMKernel.getFrame(mapping.file, vpn - mapping.firstVPN);
+	if (frame == null)
+	    return null;
+
+	Metrics.add(Metrics.pageFaults, 1);
+	if (Trace.enabled())
+	    Trace.record(Trace.eventPageFault, vpn, getPid());
+
+	entry.ppn = frame.ppn;
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+	frame.mappers.add(entry);
+
+	return entry;
+    }
+
+    private Mapping findMapping(int vpn) {
+	for (Iterator i=mappings.iterator(); i.hasNext(); ) {
+	    Mapping mapping = (Mapping) i.next();
+	    if (vpn >= mapping.firstVPN &&
+		vpn < mapping.firstVPN + mapping.entries.length)
+		return mapping;
+	}
+
+	return null;
+    }
+
+    /**
+     * Handle a TLB miss by loading the page's entry into the TLB, replacing
+     * an invalid entry if there is one.
+     */
+    private void handleTLBMiss(int vaddr) {
+	Processor processor = Machine.processor();
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	VMKernel.vmLock.acquire();
+
+	TranslationEntry entry = getEntry(vpn);
+	if (entry != null) {
+	    int victim = -1;
+	    for (int i=0; i<processor.getTLBSize() && victim == -1; i++) {
+		if (!processor.readTLBEntry(i).valid)
+		    victim = i;
+	    }
+
+	    if (victim == -1) {
+		victim = tlbHand;
+		tlbHand = (tlbHand+1) % processor.getTLBSize();
+
+		syncEntry(processor.readTLBEntry(victim));
+	    }
+
+	    processor.writeTLBEntry(victim, entry);
+	}
+
+	VMKernel.vmLock.release();
+
+	if (entry == null) {
+	    Lib.debug(dbgVM, "bad address " + Lib.toHexString(vaddr));
+	    error = true;
+	    handleExit(-1);
+	}
+    }
+
+    /**
+     * Handle the mmap() system call: map the whole of an open file into
+     * memory, starting at a page-aligned address that must not overlap the
+     * program or another mapping. Only files in the kernel's file system can
+     * be mapped, and the mapping keeps the file open. Returns the length of
+     * the file, or -1.
+     */
+    private int handleMmap(int fd, int vaddr) {
+	OpenFile file = getOpenFile(fd);
+	if (file == null || file.getFileSystem() != UserKernel.fileSystem() ||
+	    vaddr <= 0 || Processor.offsetFromAddress(vaddr) != 0)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+
+	VMKernel.vmLock.acquire();
+
+	MappedFile mappedFile = VMKernel.openMappedFile(file);
+
+	int length = mappedFile.length;
+	int mappedPages = mappedFile.getNumPages();
+
+	boolean overlaps = (mappedPages == 0 || firstVPN < numPages ||
+			    firstVPN + mappedPages > maxVPN);
+	for (Iterator i=mappings.iterator(); i.hasNext() && !overlaps; ) {
+	    Mapping mapping = (Mapping) i.next();
+	    overlaps = (firstVPN < mapping.firstVPN + mapping.entries.length &&
+			mapping.firstVPN < firstVPN + mappedPages);
+	}
+
+	if (overlaps) {
+	    VMKernel.closeMappedFile(mappedFile);
+	    VMKernel.vmLock.release();
+	    return -1;
+	}
+
+	mappings.add(new Mapping(firstVPN, mappedFile));
+	retainFile(file);
+
+	VMKernel.vmLock.release();
+
+	Lib.debug(dbgVM, "mapped " + file.getName() + " at " +
+		  Lib.toHexString(vaddr) + " (" + mappedPages + " pages)");
+
+	return length;
+    }
+
+    /**
+     * Handle the munmap() system call: remove the mapping starting at
+     * <i>vaddr</i>, writing back its dirty pages. Returns 0, or -1 if no
+     * mapping starts there.
+     */
+    private int handleMunmap(int vaddr) {
+	if (vaddr <= 0 || Processor.offsetFromAddress(vaddr) != 0)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+
+	VMKernel.vmLock.acquire();
+
+	Mapping mapping = findMapping(firstVPN);
+	boolean found = (mapping != null && mapping.firstVPN == firstVPN);
+	if (found)
+	    unmap(mapping);
+
+	VMKernel.vmLock.release();
+
+	return found ? 0 : -1;
+    }
+
+    /**
+     * Remove a mapping. Called with the VM lock held.
+     */
+    private void unmap(Mapping mapping) {
+	flushTLB();
+
+	for (int i=0; i<mapping.entries.length; i++) {
+	    TranslationEntry entry = mapping.entries[i];
+	    if (!entry.valid)
+		continue;
+
+	    MappedFile.Frame frame = mapping.file.frames[i];
+	    frame.dirty |= entry.dirty;
+	    frame.mappers.remove(entry);
+	    entry.valid = false;
+
+	    if (frame.mappers.isEmpty())
+		VMKernel.releaseFrame(frame);
+	}
+
+	OpenFile file = mapping.file.file;
+
+	mappings.remove(mapping);
+	VMKernel.closeMappedFile(mapping.file);
+	releaseFile(file);
+    }
+
+    private static final int
+	syscallMmap = 10,
+	syscallMunmap = 13;
+
+    /**
+     * Handle a syscall exception. Adds the following syscalls to those
+     * handled by <tt>UserProcess</tt>:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  munmap(char *address);</tt></td></tr>
+     * </table>
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+	case syscallMunmap:
+	    return handleMunmap(a0);
+
+	default:
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,13 +474,53 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    Metrics.add(Metrics.tlbMisses, 1);
+	    if (Trace.enabled()) {
+		Trace.record(Trace.eventTLBMiss,
+			     processor.readRegister(Processor.regBadVAddr),
+			     getPid());
+	    }
+	    if (isThreadDone(cause))
+		super.handleException(cause);
+	    else
+		handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * A region of the address space mapped to a file.
+     */
+    private class Mapping {
+	Mapping(int firstVPN, MappedFile file) {
+	    this.firstVPN = firstVPN;
+	    this.file = file;
+
+	    entries = new TranslationEntry[file.getNumPages()];
+	    for (int i=0; i<entries.length; i++) {
+		entries[i] = new TranslationEntry(firstVPN+i, 0, false, false,
+						  false, false);
+	    }
+	}
+
+	int firstVPN;
+	MappedFile file;
+	TranslationEntry[] entries;
+    }
+
+    private LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+    private int tlbHand = 0;
+
+    /** The process whose entries are in the TLB, or <tt>null</tt>. */
+    private static VMProcess tlbOwner = null;
+
     private static final int pageSize = Processor.pageSize;
+    private static final int maxVPN = 0x7FFFFFFF / pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
 }